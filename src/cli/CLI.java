@@ -24,6 +24,7 @@ public class CLI {
 	public static String VERBOSITY = "none", INDEX_FILE_NAME = "index.dat", DATABASE_FILE_NAME="database.dat";
 	private static BPlusTree tree;
 	private static HashSet<Integer> storedKeys;
+	private static int nextPointer = 1; // Disk pointer of the next key inserted, 0 being reserved for BPlusTree.NOT_FOUND
 
 	private static Scanner sc;
 
@@ -49,6 +50,7 @@ public class CLI {
 					"I[M]port index\n" +
 					"[Q]uery\n" +
 					"[R]ead database table from file\n"+
+					"Remo[V]e key\n" +
 					"[E]xit"
 			);
 			log("-----------------");
@@ -69,6 +71,8 @@ public class CLI {
 			break;
 			case 'R': readDatabaseFromFile();
 			break;
+			case 'V': remove();
+			break;
 			case 'H': height();
 			break;
 			case 'E': exit();
@@ -84,10 +88,10 @@ public class CLI {
 			log("No tree available, creating new tree.");
 			log("Block size:");
 			int blockSize = Integer.parseInt(sc.nextLine());
-			if(blockSize >= 38){
+			if(blockSize >= 41){
 				tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
 			}else{
-				log("Block size cannot be lower than 38 bytes.");
+				log("Block size cannot be lower than 41 bytes.");
 				return;
 			}
 		}
@@ -133,9 +137,9 @@ public class CLI {
 			log("Specify block size of the to be read index file:");
 			blockSize = Integer.parseInt(sc.nextLine());
 		}
-		if(blockSize < 38){
-			log("Block size cannot be lower than 38 bytes. Setting block size to 38 bytes.");
-			blockSize = 38;
+		if(blockSize < 41){
+			log("Block size cannot be lower than 41 bytes. Setting block size to 41 bytes.");
+			blockSize = 41;
 		}else{
 			tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
 		}
@@ -162,11 +166,11 @@ public class CLI {
 			log("No tree available, creating new tree.");
 			log("Block size:");
 			int blockSize = Integer.parseInt(sc.nextLine());
-			if(blockSize >= 38){
+			if(blockSize >= 41){
 				tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
 			}else{
-				log("Block size lower than 38 bytes not allowed. Setting block size to 38 bytes.");
-				blockSize = 38;
+				log("Block size lower than 41 bytes not allowed. Setting block size to 41 bytes.");
+				blockSize = 41;
 				tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
 			}
 		}
@@ -178,7 +182,7 @@ public class CLI {
 		Iterator<Integer> it = storedKeys.iterator();
 		while(it.hasNext()){
 			int keyvalue = it.next();
-			tree.insert(keyvalue, keyvalue);
+			tree.insert(keyvalue, nextPointer++);
 		}
 		log("Done.");
 	}
@@ -189,21 +193,37 @@ public class CLI {
 			log("No tree available, creating new tree.");
 			log("Block size:");
 			int blockSize = Integer.parseInt(sc.nextLine());
-			if(blockSize >= 38){
+			if(blockSize >= 41){
 				tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
 			}else{
-				log("Block size cannot be lower than 38 bytes.");
+				log("Block size cannot be lower than 41 bytes.");
 				return;
 			}
 		}
 		log("Key to insert:");
 		int key = Integer.parseInt(sc.nextLine());
-		tree.insert(key, key);
+		tree.insert(key, nextPointer++);
 		if(storedKeys == null) storedKeys = new HashSet<Integer>();
 		storedKeys.add(key);
 		log("Done.");
 	}
 
+	/* Removes a user-specified key from the BPT */
+	public static void remove(){
+		if(tree == null){
+			log("No tree available to remove from, returning to main menu..");
+			return;
+		}
+		log("Key to remove:");
+		int key = Integer.parseInt(sc.nextLine());
+		if(tree.delete(key)){
+			if(storedKeys != null) storedKeys.remove(key);
+			log("Done.");
+		}else{
+			log("The key does not exist in the current BPlusTree.");
+		}
+	}
+
 	/* Queries the BPT for the pointer associated with a user-specified key */
 	public static void queryTree(){
 		if(tree == null){
@@ -211,6 +231,7 @@ public class CLI {
 			return;
 		}
 		tree.getFileManager().resetReadWriteCounter();
+		tree.getBufferPool().resetHitMissCounters();
 		log("Key to query:");	
 		int key = Integer.parseInt(sc.nextLine());
 		long start = System.currentTimeMillis();
@@ -218,12 +239,14 @@ public class CLI {
 		long stop = System.currentTimeMillis();
 		log("Query Result:");
 		log("Queried key: " + key );
-		if(result != 0){
+		if(result != BPlusTree.NOT_FOUND){
 			log("Block pointer: " + result);
 		}else{
 			log("The key does not exist in the current BPlusTree.");
 		}
 		log("Amount of disk accesses: " + tree.getFileManager().getNumberOfReadWrites());
+		log("Buffer pool hits/misses: " + tree.getBufferPool().getNumberOfHits() + "/" 
+				+ tree.getBufferPool().getNumberOfMisses());
 		long execution = stop - start;
 		log("Query time: " + execution + " ms");
 	}
@@ -231,6 +254,13 @@ public class CLI {
 	/* Exits the command line interface program  */
 	public static void exit(){
 		log("---PROGRAM EXIT---");
+		if(tree != null){
+			try {
+				tree.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		pw.close();
 		System.exit(0);
 	}
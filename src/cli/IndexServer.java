@@ -0,0 +1,336 @@
+package cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import objects.BPlusTree;
+import objects.RangeCursor;
+/**
+ * A small server that lets several processes share one open BPlusTree through a binary protocol over TCP,
+ * listening on the loopback interface only. Each connection is served by a thread of its own, and the
+ * connections use the tree at the same time.
+ * <p>
+ * A request is an operation byte followed by its arguments, all integers being 4 bytes big-endian:
+ * <ul>
+ * <li>{@link #GET} key: responds with the disk pointer of the key, or {@link BPlusTree#NOT_FOUND}</li>
+ * <li>{@link #INSERT} key pointer: inserts the key, responds with nothing more</li>
+ * <li>{@link #DELETE} key: responds with a byte that is 1 if the key was in the tree</li>
+ * <li>{@link #SCAN} from to limit: responds with the number of pairs n, followed by n <key, pointer> pairs of
+ * the range from the first key up to and including the last key, at most limit of them</li>
+ * <li>{@link #GET_ALL} n key...: responds with the n disk pointers of the keys, in request order</li>
+ * <li>{@link #INSERT_ALL} n key... pointer...: inserts the n keys as a batch, responds with nothing more</li>
+ * </ul>
+ * Every response starts with a status byte, {@link #OK} or {@link #ERROR}; an error is followed by a message
+ * in modified UTF-8 instead of the rest of the response. A request the tree fails to carry out because reading
+ * or writing the index failed, or refuses, such as an insert of disk pointer {@link BPlusTree#NOT_FOUND}, gets
+ * an error, and the connection stays open. A request that cannot be read, such as one with an unknown operation,
+ * gets an error after which the connection is closed.
+ * <p>
+ * Requests may be pipelined: a client can send many requests without waiting for their responses. The requests
+ * of a connection are carried out in order, and responses are only flushed once every request that has arrived
+ * has been answered, so a burst of requests is answered with few writes.
+ * <p>
+ * Java 7 has neither virtual threads nor Unix domain sockets, so connections are served by a cached thread pool
+ * and clients connect over TCP to the loopback address.
+ * @author Emil Bergwik
+ */
+public class IndexServer {
+	public static final byte GET = 1, INSERT = 2, DELETE = 3, SCAN = 4, GET_ALL = 5, INSERT_ALL = 6;
+	public static final byte OK = 0, ERROR = 1;
+	public static final int DEFAULT_PORT = 7654;
+	public static final int MAX_BATCH = 1 << 20; // Most keys of a GET_ALL or INSERT_ALL, or pairs of a SCAN
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final BPlusTree tree;
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private final Set<Socket> openSockets = Collections.synchronizedSet(new HashSet<Socket>());
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor for an IndexServer serving the tree on a port of the loopback interface.
+	 * Connections are accepted once the server is started.
+	 * @param tree - the tree to serve
+	 * @param port - the port to listen on, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public IndexServer(BPlusTree tree, int port) throws IOException{
+		this.tree = tree;
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * Starts accepting connections in a thread of its own, which runs until the server is closed.
+	 */
+	public void start(){
+		Thread acceptor = new Thread("IndexServer acceptor"){
+			public void run(){
+				acceptConnections();
+			}
+		};
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 * @return the port
+	 */
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones, waiting for the requests being carried out to
+	 * finish. The tree is not closed.
+	 */
+	public void close(){
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized(openSockets){
+			for(Socket socket : openSockets){
+				closeQuietly(socket);
+			}
+		}
+		connections.shutdown();
+		try {
+			connections.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Accepts connections until the server is closed, handing each to a thread of the pool */
+	private void acceptConnections(){
+		while(running){
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				openSockets.add(socket);
+				connections.execute(new Runnable(){
+					public void run(){
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				if(running) e.printStackTrace();
+			}
+		}
+	}
+
+	/* Carries out the requests of a connection in order until the client closes it */
+	private void serve(Socket socket){
+		tree.takeFailure(); // Left by an earlier use of the thread
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+			while(true){
+				int operation = in.read();
+				if(operation < 0) break;
+				if(!handle(operation, in, out)){
+					out.flush();
+					break;
+				}
+				// Responses to pipelined requests are sent together once no more requests have arrived
+				if(in.available() == 0) out.flush();
+			}
+		} catch (EOFException e) {
+			// The client closed the connection in the middle of a request
+		} catch (SocketException e) {
+			// The connection was reset or the server closed it
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			openSockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Reads a request and writes its response.
+	 * @param operation - the operation byte of the request
+	 * @param in - the stream to read the arguments from
+	 * @param out - the stream to write the response to
+	 * @return false if the request could not be read and the connection must be closed
+	 * @throws IOException if reading or writing the connection fails
+	 */
+	private boolean handle(int operation, DataInputStream in, DataOutputStream out) throws IOException{
+		int[] keys, pointers;
+		switch(operation){
+		case GET:
+			int found = tree.getDiskPointer(in.readInt());
+			if(respond(out)) out.writeInt(found);
+			return true;
+		case INSERT:
+			int key = in.readInt(), value = in.readInt();
+			try {
+				tree.insert(key, value);
+			} catch (IllegalArgumentException e) {
+				return reject(out, e);
+			}
+			respond(out);
+			return true;
+		case DELETE:
+			boolean deleted = tree.delete(in.readInt());
+			if(respond(out)) out.writeBoolean(deleted);
+			return true;
+		case SCAN:
+			int from = in.readInt(), to = in.readInt(), limit = in.readInt();
+			if(limit < 0 || limit > MAX_BATCH) return error(out, "Scan limit " + limit + " is not between 0 and " + MAX_BATCH);
+			scan(from, to, limit, out);
+			return true;
+		case GET_ALL:
+			keys = readInts(in, readCount(in));
+			if(keys == null) return error(out, "A batch must have between 0 and " + MAX_BATCH + " keys");
+			pointers = tree.getAll(keys);
+			if(respond(out)){
+				for(int pointer : pointers){
+					out.writeInt(pointer);
+				}
+			}
+			return true;
+		case INSERT_ALL:
+			int count = readCount(in);
+			keys = readInts(in, count);
+			if(keys == null) return error(out, "A batch must have between 0 and " + MAX_BATCH + " keys");
+			pointers = readInts(in, count);
+			try {
+				tree.insertAll(keys, pointers);
+			} catch (IllegalArgumentException e) {
+				return reject(out, e);
+			}
+			respond(out);
+			return true;
+		default:
+			return error(out, "Unknown operation " + operation);
+		}
+	}
+
+	/* Writes the pairs of a range, at most limit of them, after the number of pairs */
+	private void scan(int from, int to, int limit, DataOutputStream out) throws IOException{
+		int[] keys = new int[Math.min(limit, 1024)];
+		int[] pointers = new int[keys.length];
+		int count = 0;
+		RangeCursor cursor = tree.scan(from, to);
+		while(count < limit && cursor.hasNext()){
+			if(count == keys.length){
+				int larger = (int) Math.min(limit, 2L*keys.length);
+				keys = Arrays.copyOf(keys, larger);
+				pointers = Arrays.copyOf(pointers, larger);
+			}
+			pointers[count] = cursor.nextPointer();
+			keys[count++] = cursor.getKey();
+		}
+		if(!respond(out)) return;
+		out.writeInt(count);
+		for(int i=0;i<count;i++){
+			out.writeInt(keys[i]);
+			out.writeInt(pointers[i]);
+		}
+	}
+
+	/**
+	 * Writes the status of a request the tree has carried out: an error with its message if a call the request
+	 * made to the tree failed, else OK.
+	 * @param out - the stream to write the status to
+	 * @return true if the rest of the response should be written
+	 * @throws IOException if writing the connection fails
+	 */
+	private boolean respond(DataOutputStream out) throws IOException{
+		IOException failure = tree.takeFailure();
+		if(failure == null){
+			out.writeByte(OK);
+			return true;
+		}
+		out.writeByte(ERROR);
+		out.writeUTF(failure.toString());
+		return false;
+	}
+
+	/* Reads the number of keys of a batch, which is -1 if it is out of bounds */
+	private static int readCount(DataInputStream in) throws IOException{
+		int count = in.readInt();
+		return count >= 0 && count <= MAX_BATCH ? count : -1;
+	}
+
+	/* Reads a number of integers, returns null if the number is -1 */
+	private static int[] readInts(DataInputStream in, int count) throws IOException{
+		if(count < 0) return null;
+		int[] values = new int[count];
+		for(int i=0;i<count;i++){
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	/* Writes an error response for a request that could not be read; the connection is closed after it */
+	private static boolean error(DataOutputStream out, String message) throws IOException{
+		out.writeByte(ERROR);
+		out.writeUTF(message);
+		return false;
+	}
+
+	/* Writes an error for a request the tree refused, such as an insert of a reserved disk pointer, keeping the connection */
+	private static boolean reject(DataOutputStream out, IllegalArgumentException e) throws IOException{
+		error(out, e.getMessage());
+		return true;
+	}
+
+	private static void closeQuietly(Socket socket){
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Opens (or creates) an index file and serves it until the process is stopped, when the tree is closed.
+	 * @param args - the index file name, the block size and optionally the port
+	 */
+	public static void main(String[] args){
+		if(args.length < 2){
+			System.out.println("Usage: IndexServer <index file> <block size> [port]");
+			return;
+		}
+		final BPlusTree tree = new BPlusTree(args[0], Integer.parseInt(args[1]));
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+		final IndexServer server;
+		try {
+			server = new IndexServer(tree, port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.close();
+				try {
+					tree.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		server.start();
+		System.out.println("Serving " + args[0] + " on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort());
+	}
+}
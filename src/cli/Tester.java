@@ -1,16 +1,34 @@
 package cli;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import data.BufferPool;
+import data.FileManager;
+import data.MappedFileManager;
 import data.RecordManager;
+import data.WriteAheadLog;
 
 import objects.BPlusTree;
+import objects.BatchInserter;
+import objects.LeafScanner;
+import objects.RangeCursor;
+import objects.Snapshot;
 /**
  * Class for testing the performance of this B+-tree implementation.
  * Currently contains three test sequences with different ways of inserting index records into the
@@ -29,7 +47,7 @@ public class Tester {
 
 	private static BPlusTree tree;
 	private static int BLOCK_SIZE;
-	private static int MIN_BLOCK_SIZE = 38; 
+	private static int MIN_BLOCK_SIZE = 41; 
 	private static int MAX_BLOCK_SIZE = 1024;
 	private static int BLOCK_INCREMENT = 32;
 	private static int KEY_AMOUNT = 50000;
@@ -48,6 +66,35 @@ public class Tester {
 	private static String TEST_TYPE_THREE = "Read data from file";
 	private static String DATABASE_FILE_NAME = "database.dat";
 	private static String INDEX_FILE_NAME = "index.dat";
+	private static boolean MEMORY_MAPPED = false; // Use the memory mapped backend for the index file
+	private static boolean WRITE_AHEAD_LOG = false; // Make every insert durable through a redo log
+	private static boolean DELTA_LEAVES = false; // Store the leaves delta encoded
+	private static boolean B_LINK_TREE = false; // Create the index as a B-link tree, whose lookups take no latches
+	private static boolean LOOKUP_BENCHMARK = false; // Measure the CPU time of lookups at large block sizes
+	private static int[] LOOKUP_BENCHMARK_BLOCK_SIZES = {4096, 16384, 65536};
+	private static boolean BULK_LOAD = false; // Build the index of test sequence 3 with a bulk load
+	private static double BULK_LOAD_FILL_FACTOR = 1.0;
+	private static int BULK_LOAD_PARALLELISM = 1; // Threads building the nodes of a bulk load
+	private static boolean SPLIT_WRITE_CHECK = false; // Check that the writes of an insert do not grow with the order
+	private static int[] SPLIT_WRITE_CHECK_BLOCK_SIZES = {64, 512, 4096, 16384};
+	private static boolean MULTI_TREE_CHECK = false; // Check that trees with different block sizes can be open at once
+	private static int[] MULTI_TREE_CHECK_BLOCK_SIZES = {64, 512, 4096};
+	private static boolean CONCURRENCY_CHECK = false; // Insert and query from several threads at once
+	private static int CONCURRENCY_CHECK_THREADS = 8;
+	private static boolean LATCHING_BENCHMARK = false; // Compare a global lock and latching for durable inserts from several threads
+	private static int LATCHING_BENCHMARK_KEY_AMOUNT = 5000; // Every insert forces the log, unless it shares the force of another thread
+	private static boolean OPTIMISTIC_LOOKUP_BENCHMARK = false; // Compare latched and optimistic lookups from several threads
+	private static int OPTIMISTIC_LOOKUP_BENCHMARK_BLOCK_SIZE = 4096;
+	private static boolean BATCH_INSERT_BENCHMARK = false; // Compare inserting keys one at a time and in batches
+	private static int BATCH_INSERT_BENCHMARK_BLOCK_SIZE = 4096;
+	private static int BATCH_INSERT_BENCHMARK_KEY_AMOUNT = 500000;
+	private static int BATCH_INSERT_BENCHMARK_BATCH_SIZE = 100000;
+	private static boolean MULTI_GET_BENCHMARK = false; // Compare looking keys up one at a time and with getAll
+	private static int MULTI_GET_BENCHMARK_BLOCK_SIZE = 4096;
+	private static boolean INDEX_SERVER_CHECK = false; // Insert and query through an IndexServer from several clients
+	private static int INDEX_SERVER_CHECK_BLOCK_SIZE = 4096;
+	private static int INDEX_SERVER_CHECK_PIPELINE = 1000; // Requests a client sends before reading their responses
+	private static boolean SNAPSHOT_CHECK = false; // Read a snapshot while other threads update and delete its keys
 
 	public static void main(String[] args) {
 		TEST_OUTPUT_FILE +=	new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime()) + ".txt";
@@ -78,6 +125,52 @@ public class Tester {
 				NUM_READ_WRITES[j][i] = runResults[2];
 			}
 		}
+		if(LOOKUP_BENCHMARK){
+			log("Running lookup benchmark...");
+			benchmarkLookups();
+		}
+		if(SPLIT_WRITE_CHECK){
+			log("Running split write check...");
+			checkSplitWrites();
+		}
+		if(MULTI_TREE_CHECK){
+			log("Running multiple tree check...");
+			checkMultipleTrees();
+		}
+		if(CONCURRENCY_CHECK){
+			log("Running concurrency check...");
+			checkConcurrentAccess(true, false, false);
+			checkConcurrentAccess(false, false, false);
+			checkConcurrentAccess(false, true, false);
+		}
+		if(LATCHING_BENCHMARK){
+			log("Running latching benchmark...");
+			checkConcurrentAccess(true, false, true);
+			checkConcurrentAccess(false, false, true);
+		}
+		if(OPTIMISTIC_LOOKUP_BENCHMARK){
+			log("Running optimistic lookup benchmark...");
+			benchmarkOptimisticLookups(false);
+			benchmarkOptimisticLookups(true);
+		}
+		if(BATCH_INSERT_BENCHMARK){
+			log("Running batch insert benchmark...");
+			benchmarkBatchInserts(false);
+			benchmarkBatchInserts(true);
+		}
+		if(MULTI_GET_BENCHMARK){
+			log("Running multi-get benchmark...");
+			benchmarkMultiGet();
+		}
+		if(INDEX_SERVER_CHECK){
+			log("Running index server check...");
+			checkIndexServer();
+		}
+		if(SNAPSHOT_CHECK){
+			log("Running snapshot check...");
+			checkSnapshots(false);
+			checkSnapshots(true);
+		}
 		printResultsFromTesting();
 		log("---END OF TEST PROGRAM---");
 		pw.close();
@@ -170,6 +263,8 @@ public class Tester {
 		stopInsert = System.currentTimeMillis();
 		executionInsert = stopInsert - startInsert;
 		log("Test sequence 2 insertion phase completed in " + executionInsert + " milliseconds.");
+		log("Node writes requested: " + tree.getNumberOfNodeWrites() + ", blocks written after coalescing: " 
+				+ tree.getNumberOfBlockWrites());
 		startQuery = System.currentTimeMillis();
 		int rootID = tree.getRoot();
 		for(int i=1;i<=KEY_AMOUNT;i++){
@@ -193,17 +288,42 @@ public class Tester {
 		TEST_TYPE = TEST_TYPE_THREE;
 		BLOCK_SIZE = blockSize;
 		KEY_AMOUNT = keyAmount;
-		tree = new BPlusTree(INDEX_FILE_NAME, BLOCK_SIZE);
+		FileManager fm;
+		if(MEMORY_MAPPED){
+			fm = new MappedFileManager(INDEX_FILE_NAME, BLOCK_SIZE);
+		}else{
+			fm = new FileManager(INDEX_FILE_NAME, BLOCK_SIZE);
+		}
+		WriteAheadLog wal = null;
+		if(WRITE_AHEAD_LOG){
+			try {
+				wal = new WriteAheadLog(INDEX_FILE_NAME + ".log");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		tree = new BPlusTree(fm, BufferPool.DEFAULT_CAPACITY, wal, 
+				DELTA_LEAVES ? BPlusTree.LEAF_FORMAT_DELTA : BPlusTree.LEAF_FORMAT_FIXED, B_LINK_TREE);
 		log("Test sequence information\n" +
 				"Block size: " + BLOCK_SIZE + " bytes\n" +
-				"Node size: " + BPlusTree.getOrder() + "\n" +
+				"Node size: " + tree.getOrder() + "\n" +
 				"Amount of insertions: " + KEY_AMOUNT + "\n" +
 				"Data source: " + TEST_TYPE + "\n" +
+				"Memory mapped: " + MEMORY_MAPPED + "\n" +
+				"Write-ahead log: " + WRITE_AHEAD_LOG + "\n" +
+				"Delta encoded leaves: " + DELTA_LEAVES + "\n" +
+				"B-link tree: " + B_LINK_TREE + "\n" +
+				"Bulk load: " + (BULK_LOAD ? "fill factor " + BULK_LOAD_FILL_FACTOR + ", " + BULK_LOAD_PARALLELISM + " threads" : "no") + "\n" +
 				"Description: Generating index from data table stored on disk."
 		);
 		startInsert = System.currentTimeMillis();
 		try {
-			storedKeys = RecordManager.loadDatabaseIntoTree(tree, DATABASE_FILE_NAME, KEY_AMOUNT);
+			if(BULK_LOAD){
+				storedKeys = RecordManager.bulkLoadDatabaseIntoTree(tree, DATABASE_FILE_NAME, KEY_AMOUNT, BULK_LOAD_FILL_FACTOR, 
+						BULK_LOAD_PARALLELISM);
+			}else{
+				storedKeys = RecordManager.loadDatabaseIntoTree(tree, DATABASE_FILE_NAME, KEY_AMOUNT);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -211,6 +331,7 @@ public class Tester {
 		executionInsert = stopInsert - startInsert;
 		log("Test sequence 3 insertion phase completed in " + executionInsert + " milliseconds.");
 		tree.getFileManager().resetReadWriteCounter(); // To only count reads for querying
+		tree.getBufferPool().resetHitMissCounters();
 		startQuery = System.currentTimeMillis();
 		int rootID = tree.getRoot();
 		for(int e: storedKeys){
@@ -219,15 +340,507 @@ public class Tester {
 		stopQuery = System.currentTimeMillis();
 		executionQuery = stopQuery - startQuery;
 		log("Test sequence 3 query phase completed in " + executionQuery + " milliseconds.");
+		scanAllLeaves();
 		TEST_THREE_RUN = true;
 		log("Inserted and queried " + KEY_AMOUNT + " keys with " + 
 				tree.getFileManager().getNumberOfReadWrites() + " number of disk accesses.");
+		log("Buffer pool hits/misses: " + tree.getBufferPool().getNumberOfHits() + "/" 
+				+ tree.getBufferPool().getNumberOfMisses());
 		TREE_LEVEL = tree.getTreeLevel();
+		log("Index size: " + tree.getBufferPool().getSize() + " blocks, tree height: " + TREE_LEVEL);
+		if(wal != null){
+			log("Log forces: " + wal.getNumberOfForces());
+			log("Deleting log file for next run: " + wal.deleteFile());
+		}
 		log("Deleting index file for next run: " + tree.getFileManager().deleteFile());
 		log("--------------");
 		long[] result = {executionQuery, TREE_LEVEL, tree.getFileManager().getNumberOfReadWrites()};
 		return result;
 	}
+	/**
+	 * Measures the CPU time spent on lookups in trees with large blocks. The trees fit in the buffer pool,
+	 * so the time is spent searching within the nodes rather than waiting for the disk.
+	 */
+	private static void benchmarkLookups(){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		for(int blockSize : LOOKUP_BENCHMARK_BLOCK_SIZES){
+			tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
+			int[] lookupKeys = new int[KEY_AMOUNT];
+			for(int i=0;i<KEY_AMOUNT;i++){
+				lookupKeys[i] = rnd.nextInt(Integer.MAX_VALUE-1)+1;
+				tree.insert(lookupKeys[i], i+1);
+			}
+			// Warm up the buffer pool and the JIT before measuring
+			for(int e: lookupKeys){
+				tree.getDiskPointer(e);
+			}
+			long start = threads.getCurrentThreadCpuTime();
+			for(int e: lookupKeys){
+				tree.getDiskPointer(e);
+			}
+			long cpuTime = threads.getCurrentThreadCpuTime() - start;
+			log("Block size " + blockSize + " bytes (order " + tree.getOrder() + "): " + KEY_AMOUNT 
+					+ " lookups used " + cpuTime/1000000 + " ms of CPU time, " + cpuTime/KEY_AMOUNT + " ns per lookup.");
+			log("Deleting index file for next run: " + tree.getFileManager().deleteFile());
+		}
+	}
+	/**
+	 * Opens one index file per block size, with fixed and delta encoded leaves in turn, and inserts the same
+	 * random keys into all of them in an interleaved order. Every tree must return the pointer of every key,
+	 * which requires each tree to keep its own block size and order.
+	 */
+	private static void checkMultipleTrees(){
+		int treeCount = MULTI_TREE_CHECK_BLOCK_SIZES.length;
+		BPlusTree[] trees = new BPlusTree[treeCount];
+		for(int t=0;t<treeCount;t++){
+			trees[t] = new BPlusTree(new FileManager("multi_" + t + "_" + INDEX_FILE_NAME, MULTI_TREE_CHECK_BLOCK_SIZES[t]), 
+					BufferPool.DEFAULT_CAPACITY, null, t % 2 == 0 ? BPlusTree.LEAF_FORMAT_FIXED : BPlusTree.LEAF_FORMAT_DELTA);
+		}
+		int[] insertedKeys = new int[KEY_AMOUNT];
+		for(int i=0;i<KEY_AMOUNT;i++){
+			insertedKeys[i] = rnd.nextInt(Integer.MAX_VALUE-1)+1;
+			for(BPlusTree t : trees){
+				t.insert(insertedKeys[i], insertedKeys[i]);
+			}
+		}
+		for(int t=0;t<treeCount;t++){
+			int missing = 0;
+			for(int key : insertedKeys){
+				if(trees[t].getDiskPointer(key) != key) missing++;
+			}
+			log("Block size " + trees[t].getBlockSize() + " bytes (order " + trees[t].getOrder() + ", height " 
+					+ trees[t].getTreeLevel() + "): " + (missing == 0 ? "OK" : "FAILED, " + missing + " keys not found"));
+			log("Deleting index file: " + trees[t].getFileManager().deleteFile());
+		}
+	}
+	/**
+	 * Inserts random keys from several threads, each thread inserting its own share of the keys and querying
+	 * every key it has inserted so far, and logs the time it took. With a global lock every call is serialized,
+	 * as a caller had to do before the tree latched its pages; without it the threads only wait for each other
+	 * on the pages they share, and in a B-link tree lookups do not wait at all. Every key must be found afterwards.
+	 * When the inserts are durable, a thread holding the global lock forces the log alone, while latched threads
+	 * commit together and share one force of the log.
+	 * @param globalLock - true to serialize every call to the tree
+	 * @param linked - true to create a B-link tree
+	 * @param durable - true to log every insert in a write-ahead log and force it before the insert returns
+	 */
+	private static void checkConcurrentAccess(final boolean globalLock, boolean linked, boolean durable){
+		int keyAmount = durable ? LATCHING_BENCHMARK_KEY_AMOUNT : KEY_AMOUNT;
+		WriteAheadLog wal = null;
+		if(durable){
+			try {
+				wal = new WriteAheadLog(INDEX_FILE_NAME + ".log");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		tree = new BPlusTree(new FileManager(INDEX_FILE_NAME, 512), BufferPool.DEFAULT_CAPACITY, wal, BPlusTree.LEAF_FORMAT_FIXED, linked);
+		final int[] insertedKeys = uniqueRandomKeys(keyAmount);
+		final Object lock = new Object();
+		final int[] missing = new int[1];
+		Thread[] threads = new Thread[CONCURRENCY_CHECK_THREADS];
+		long start = System.currentTimeMillis();
+		for(int t=0;t<threads.length;t++){
+			final int first = t;
+			threads[t] = new Thread(){
+				public void run(){
+					for(int i=first;i<insertedKeys.length;i+=CONCURRENCY_CHECK_THREADS){
+						int found;
+						if(globalLock){
+							synchronized(lock){
+								tree.insert(insertedKeys[i], insertedKeys[i]);
+							}
+							synchronized(lock){
+								found = tree.getDiskPointer(insertedKeys[i]);
+							}
+						}else{
+							tree.insert(insertedKeys[i], insertedKeys[i]);
+							found = tree.getDiskPointer(insertedKeys[i]);
+						}
+						if(found != insertedKeys[i]){
+							synchronized(missing){
+								missing[0]++;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads){
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		long stop = System.currentTimeMillis();
+		missing[0] += countMissing(insertedKeys);
+		log(CONCURRENCY_CHECK_THREADS + " threads " + (globalLock ? "with" : "without") + " a global lock inserted into and queried " 
+				+ (linked ? "a B-link tree " : "a tree ") + "with " 
+				+ keyAmount + (durable ? " durable keys in " : " keys in ") + (stop - start) + " milliseconds" 
+				+ (durable ? " with " + wal.getNumberOfForces() + " log forces: " : ": ") + outcome(missing[0], "keys not found"));
+		if(wal != null){
+			log("Deleting log file for next run: " + wal.deleteFile());
+		}
+		deleteIndexFile();
+	}
+	/**
+	 * Looks up every key of a tree from several threads while one more thread inserts new keys, and logs the
+	 * time it took. The tree fits in the buffer pool, so the lookups only differ in how they protect the nodes
+	 * they read: latching them in shared mode, or reading them optimistically and validating their versions.
+	 * Every key must be found.
+	 * @param optimistic - true to use optimistic lock coupling for the lookups
+	 */
+	private static void benchmarkOptimisticLookups(boolean optimistic){
+		tree = new BPlusTree(INDEX_FILE_NAME, OPTIMISTIC_LOOKUP_BENCHMARK_BLOCK_SIZE);
+		tree.setOptimisticLookups(optimistic);
+		final int[] lookupKeys = uniqueRandomKeys(KEY_AMOUNT);
+		insertKeys(lookupKeys);
+		final int[] missing = new int[1];
+		Thread[] threads = new Thread[CONCURRENCY_CHECK_THREADS];
+		long start = System.currentTimeMillis();
+		for(int t=0;t<threads.length;t++){
+			final int first = t;
+			threads[t] = new Thread(){
+				public void run(){
+					int notFound = 0;
+					for(int i=0;i<lookupKeys.length;i++){
+						int key = lookupKeys[(first + i) % lookupKeys.length];
+						if(tree.getDiskPointer(key) != key) notFound++;
+					}
+					synchronized(missing){
+						missing[0] += notFound;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		// Negative keys are never looked up
+		Random writerRandom = new Random(1);
+		for(int i=0;i<KEY_AMOUNT/100;i++){
+			tree.insert(-writerRandom.nextInt(Integer.MAX_VALUE-1)-1, i+1);
+		}
+		for(Thread thread : threads){
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		long stop = System.currentTimeMillis();
+		log(CONCURRENCY_CHECK_THREADS + " threads made " + (long) CONCURRENCY_CHECK_THREADS*KEY_AMOUNT + " " 
+				+ (optimistic ? "optimistic" : "latched") + " lookups while " + KEY_AMOUNT/100 + " keys were inserted in " 
+				+ (stop - start) + " milliseconds: " + outcome(missing[0], "keys not found"));
+		deleteIndexFile();
+	}
+	/**
+	 * Inserts random keys into a new tree one at a time or in batches through a {@link BatchInserter}, and logs
+	 * the time and node writes it took. Every key must be found afterwards.
+	 * @param batched - true to insert the keys in batches
+	 */
+	private static void benchmarkBatchInserts(boolean batched){
+		tree = new BPlusTree(INDEX_FILE_NAME, BATCH_INSERT_BENCHMARK_BLOCK_SIZE);
+		Random keyRandom = new Random(1);
+		int[] insertedKeys = new int[BATCH_INSERT_BENCHMARK_KEY_AMOUNT];
+		for(int i=0;i<BATCH_INSERT_BENCHMARK_KEY_AMOUNT;i++){
+			insertedKeys[i] = keyRandom.nextInt(Integer.MAX_VALUE-1)+1;
+		}
+		long nodeWrites = tree.getNumberOfNodeWrites();
+		long start = System.currentTimeMillis();
+		if(batched){
+			BatchInserter inserter = tree.batchInserter(BATCH_INSERT_BENCHMARK_BATCH_SIZE);
+			for(int key : insertedKeys){
+				inserter.add(key, key);
+			}
+			inserter.flush();
+		}else{
+			insertKeys(insertedKeys);
+		}
+		long stop = System.currentTimeMillis();
+		log("Inserted " + BATCH_INSERT_BENCHMARK_KEY_AMOUNT + " keys " + (batched ? "in batches of " + BATCH_INSERT_BENCHMARK_BATCH_SIZE : "one at a time") 
+				+ " in " + (stop - start) + " milliseconds with " + (tree.getNumberOfNodeWrites() - nodeWrites) + " node writes: " 
+				+ outcome(countMissing(insertedKeys), "keys not found"));
+		deleteIndexFile();
+	}
+	/**
+	 * Looks up every key of a tree of random keys one at a time, with getAll, and with getAll searching subtrees
+	 * in a ForkJoinPool, and logs the time and block pins each took. Every key must be found.
+	 */
+	private static void benchmarkMultiGet(){
+		tree = new BPlusTree(INDEX_FILE_NAME, MULTI_GET_BENCHMARK_BLOCK_SIZE);
+		int[] lookupKeys = uniqueRandomKeys(KEY_AMOUNT);
+		insertKeys(lookupKeys);
+		ForkJoinPool pool = new ForkJoinPool(CONCURRENCY_CHECK_THREADS);
+		for(int run=0;run<3;run++){
+			BufferPool bp = tree.getBufferPool();
+			long pins = bp.getNumberOfHits() + bp.getNumberOfMisses();
+			long start = System.currentTimeMillis();
+			int[] pointers;
+			if(run == 0){
+				pointers = new int[KEY_AMOUNT];
+				for(int i=0;i<KEY_AMOUNT;i++){
+					pointers[i] = tree.getDiskPointer(lookupKeys[i]);
+				}
+			}else{
+				pointers = tree.getAll(lookupKeys, run == 2 ? pool : null);
+			}
+			long stop = System.currentTimeMillis();
+			int missing = 0;
+			for(int i=0;i<KEY_AMOUNT;i++){
+				if(pointers[i] != lookupKeys[i]) missing++;
+			}
+			log("Looked up " + KEY_AMOUNT + " keys " + (run == 0 ? "one at a time" : run == 1 ? "with getAll" 
+					: "with getAll in " + CONCURRENCY_CHECK_THREADS + " threads") + " in " + (stop - start) + " milliseconds with " 
+					+ (bp.getNumberOfHits() + bp.getNumberOfMisses() - pins) + " block pins: " + outcome(missing, "keys not found"));
+		}
+		pool.shutdown();
+		deleteIndexFile();
+	}
+	/**
+	 * Takes a snapshot of a tree of random keys, and reads every key of it with lookups and a scan while several
+	 * threads update and delete the keys. The snapshot must keep returning the pointers the keys had when it was
+	 * taken, also for a key deleted from the tree right after it was taken, while the tree returns the new
+	 * pointers. The version store must be deleted once the snapshot is closed.
+	 * @param linked - true to create the tree as a B-link tree
+	 */
+	private static void checkSnapshots(boolean linked){
+		tree = new BPlusTree(new FileManager(INDEX_FILE_NAME, 512), BufferPool.DEFAULT_CAPACITY, null, BPlusTree.LEAF_FORMAT_FIXED, linked);
+		final int[] snapshotKeys = uniqueRandomKeys(KEY_AMOUNT);
+		insertKeys(snapshotKeys);
+		Snapshot snapshot = tree.snapshot();
+		int wrong = 0;
+		// Deleted before the writers start, so the snapshot is read after the delete has certainly happened
+		int deletedKey = snapshotKeys[0];
+		if(!tree.delete(deletedKey) || tree.getDiskPointer(deletedKey) != BPlusTree.NOT_FOUND 
+				|| snapshot.getDiskPointer(deletedKey) != deletedKey) wrong++;
+		Thread[] writers = new Thread[CONCURRENCY_CHECK_THREADS];
+		for(int t=0;t<writers.length;t++){
+			final int thread = t;
+			writers[t] = new Thread(){
+				public void run(){
+					for(int i=thread;i<KEY_AMOUNT;i+=CONCURRENCY_CHECK_THREADS){
+						if(i % 2 == 0) tree.delete(snapshotKeys[i]);
+						else tree.insert(snapshotKeys[i], -snapshotKeys[i]);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for(int key : snapshotKeys){
+			if(snapshot.getDiskPointer(key) != key) wrong++;
+		}
+		int scanned = 0;
+		RangeCursor cursor = snapshot.scan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		while(cursor.hasNext()){
+			if(cursor.nextPointer() != cursor.getKey()) wrong++;
+			scanned++;
+		}
+		for(Thread writer : writers){
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		for(int key : snapshotKeys){
+			if(snapshot.getDiskPointer(key) != key) wrong++;
+		}
+		// Keys at even positions were deleted and the others given negative pointers
+		for(int i=0;i<KEY_AMOUNT;i++){
+			if(tree.getDiskPointer(snapshotKeys[i]) != (i % 2 == 0 ? BPlusTree.NOT_FOUND : -snapshotKeys[i])) wrong++;
+		}
+		File versionStore = new File(tree.getFileManager().getFileName() + ".versions");
+		snapshot.close();
+		log("Read a snapshot of " + KEY_AMOUNT + " keys of a " + (linked ? "B-link tree" : "tree") + " while " 
+				+ CONCURRENCY_CHECK_THREADS + " threads changed them: " 
+				+ (wrong == 0 && scanned == KEY_AMOUNT && !versionStore.exists() ? "OK" 
+						: "FAILED, " + wrong + " wrong pointers, " + scanned + " keys scanned, version store " 
+						+ (versionStore.exists() ? "kept" : "deleted")));
+		deleteIndexFile();
+	}
+	/**
+	 * Serves a new tree with an IndexServer and lets several clients insert, look up, scan and delete their own
+	 * keys through it at the same time, each pipelining its requests. Every response must match the keys the
+	 * client has stored.
+	 */
+	private static void checkIndexServer(){
+		tree = new BPlusTree(INDEX_FILE_NAME, INDEX_SERVER_CHECK_BLOCK_SIZE);
+		final IndexServer server;
+		try {
+			server = new IndexServer(tree, 0);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		server.start();
+		final int[] failures = new int[1];
+		Thread[] clients = new Thread[CONCURRENCY_CHECK_THREADS];
+		long start = System.currentTimeMillis();
+		for(int t=0;t<clients.length;t++){
+			final int client = t;
+			clients[t] = new Thread(){
+				public void run(){
+					int failed = 0;
+					try {
+						failed = runIndexClient(server.getPort(), client);
+					} catch (IOException e) {
+						e.printStackTrace();
+						failed++;
+					}
+					synchronized(failures){
+						failures[0] += failed;
+					}
+				}
+			};
+			clients[t].start();
+		}
+		for(Thread client : clients){
+			try {
+				client.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		long stop = System.currentTimeMillis();
+		server.close();
+		log(CONCURRENCY_CHECK_THREADS + " clients made " + 4*KEY_AMOUNT/CONCURRENCY_CHECK_THREADS*CONCURRENCY_CHECK_THREADS 
+				+ " pipelined requests and a scan and batch each in " + (stop - start) + " milliseconds: " 
+				+ outcome(failures[0], "wrong responses"));
+		deleteIndexFile();
+	}
+	/**
+	 * Inserts, looks up, deletes and scans the keys of one client through the server, whose keys are the
+	 * multiples of the number of clients plus the client number.
+	 * @return the number of wrong responses
+	 */
+	private static int runIndexClient(int port, int client) throws IOException{
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		int count = KEY_AMOUNT / CONCURRENCY_CHECK_THREADS;
+		int[] clientKeys = new int[count];
+		for(int i=0;i<count;i++){
+			clientKeys[i] = i*CONCURRENCY_CHECK_THREADS + client + 1;
+		}
+		int failed = 0;
+		// Insert the keys, look them up, delete every other key and look them up again
+		for(int step=0;step<4;step++){
+			for(int first=0;first<count;first+=INDEX_SERVER_CHECK_PIPELINE){
+				int last = Math.min(count, first + INDEX_SERVER_CHECK_PIPELINE);
+				for(int i=first;i<last;i++){
+					if(step == 0){
+						out.writeByte(IndexServer.INSERT);
+						out.writeInt(clientKeys[i]);
+						out.writeInt(clientKeys[i]);
+					}else if(step == 2){
+						out.writeByte(IndexServer.DELETE);
+						out.writeInt(clientKeys[i]);
+						i++; // Keys at odd positions are kept
+					}else{
+						out.writeByte(IndexServer.GET);
+						out.writeInt(clientKeys[i]);
+					}
+				}
+				out.flush();
+				for(int i=first;i<last;i++){
+					if(in.readByte() != IndexServer.OK) failed++;
+					if(step == 2){
+						if(!in.readBoolean()) failed++;
+						i++;
+					}else if(step != 0){
+						boolean deleted = step == 3 && i % 2 == 0;
+						if(in.readInt() != (deleted ? BPlusTree.NOT_FOUND : clientKeys[i])) failed++;
+					}
+				}
+			}
+		}
+		// Scan the key range of the client, which holds the keys of other clients too
+		out.writeByte(IndexServer.SCAN);
+		out.writeInt(clientKeys[0]);
+		out.writeInt(clientKeys[count-1]);
+		out.writeInt(IndexServer.MAX_BATCH);
+		// Replace the pointers of the kept keys with a batch and read them back with another
+		out.writeByte(IndexServer.INSERT_ALL);
+		out.writeInt(count/2);
+		for(int i=1;i<count;i+=2){
+			out.writeInt(clientKeys[i]);
+		}
+		for(int i=1;i<count;i+=2){
+			out.writeInt(-clientKeys[i]);
+		}
+		out.writeByte(IndexServer.GET_ALL);
+		out.writeInt(count);
+		for(int key : clientKeys){
+			out.writeInt(key);
+		}
+		out.flush();
+		if(in.readByte() != IndexServer.OK) failed++;
+		int scanned = in.readInt();
+		int own = 0;
+		for(int i=0;i<scanned;i++){
+			int key = in.readInt();
+			int pointer = in.readInt();
+			if((key - client - 1) % CONCURRENCY_CHECK_THREADS == 0){
+				if(pointer != key) failed++;
+				own++;
+			}
+		}
+		if(own != count/2) failed++;
+		if(in.readByte() != IndexServer.OK) failed++;
+		if(in.readByte() != IndexServer.OK) failed++;
+		for(int i=0;i<count;i++){
+			if(in.readInt() != (i % 2 == 0 ? BPlusTree.NOT_FOUND : -clientKeys[i])) failed++;
+		}
+		socket.close();
+		return failed;
+	}
+	/**
+	 * Inserts random keys at several block sizes and records the most node and block writes caused by a
+	 * single insert. A split writes the two halves and the parent once each, so an insert may write at most
+	 * two blocks per level of the tree plus a new root, however large the order is.
+	 */
+	private static void checkSplitWrites(){
+		for(int blockSize : SPLIT_WRITE_CHECK_BLOCK_SIZES){
+			tree = new BPlusTree(INDEX_FILE_NAME, blockSize);
+			long mostNodeWrites = 0, mostBlockWrites = 0;
+			for(int i=0;i<KEY_AMOUNT;i++){
+				long nodeWrites = tree.getNumberOfNodeWrites();
+				long blockWrites = tree.getNumberOfBlockWrites();
+				tree.insert(rnd.nextInt(), i+1);
+				mostNodeWrites = Math.max(mostNodeWrites, tree.getNumberOfNodeWrites() - nodeWrites);
+				mostBlockWrites = Math.max(mostBlockWrites, tree.getNumberOfBlockWrites() - blockWrites);
+			}
+			tree.getDiskPointer(0); // Descends the tree to measure its height
+			int height = tree.getTreeLevel();
+			boolean passed = mostBlockWrites <= 2*height + 1;
+			log("Block size " + blockSize + " bytes (order " + tree.getOrder() + ", height " + height 
+					+ "): at most " + mostNodeWrites + " node writes and " + mostBlockWrites + " block writes per insert. " 
+					+ (passed ? "OK" : "FAILED, expected at most " + (2*height + 1) + " block writes"));
+			log("Deleting index file for next run: " + tree.getFileManager().deleteFile());
+		}
+	}
+	/**
+	 * Walks the whole leaf chain of the current tree with read-ahead and logs the time it took.
+	 */
+	private static void scanAllLeaves(){
+		long prefetchHits = tree.getBufferPool().getNumberOfPrefetchHits();
+		long start = System.currentTimeMillis();
+		int leaves = 0;
+		try {
+			LeafScanner scanner = tree.scanLeaves(Integer.MIN_VALUE);
+			while(scanner.hasNext()){
+				scanner.next();
+				leaves++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		long stop = System.currentTimeMillis();
+		log("Scanned " + leaves + " leaves in " + (stop - start) + " milliseconds with " 
+				+ (tree.getBufferPool().getNumberOfPrefetchHits() - prefetchHits) + " prefetched leaves.");
+	}
 	/**
 	 * Prints the test results for the tests that was run to stdout and log file.
 	 */
@@ -298,6 +911,60 @@ public class Tester {
 		}
 	}
 
+	/**
+	 * Generates distinct random keys for a check or benchmark. No key is 0, since that is not a valid disk
+	 * pointer and the keys are inserted as their own disk pointers.
+	 * @param amount - the number of keys
+	 * @return the keys, in the order they were generated
+	 */
+	private static int[] uniqueRandomKeys(int amount){
+		int[] result = new int[amount];
+		HashSet<Integer> unique = new HashSet<Integer>();
+		for(int i=0;i<amount;i++){
+			int key;
+			do{
+				key = rnd.nextInt(Integer.MAX_VALUE-1)+1;
+			}while(!unique.add(key));
+			result[i] = key;
+		}
+		return result;
+	}
+	/**
+	 * Inserts the keys into the tree one at a time, each key as its own disk pointer.
+	 * @param insertedKeys - the keys to insert
+	 */
+	private static void insertKeys(int[] insertedKeys){
+		for(int key : insertedKeys){
+			tree.insert(key, key);
+		}
+	}
+	/**
+	 * Counts the keys that the tree does not return themselves as disk pointers for.
+	 * @param insertedKeys - the keys inserted as their own disk pointers
+	 * @return the number of keys not found
+	 */
+	private static int countMissing(int[] insertedKeys){
+		int missing = 0;
+		for(int key : insertedKeys){
+			if(tree.getDiskPointer(key) != key) missing++;
+		}
+		return missing;
+	}
+	/**
+	 * Describes the outcome of a check or benchmark for the end of its log line.
+	 * @param failures - the number of failures found
+	 * @param failure - what the failures were, in plural
+	 * @return OK if there were no failures, otherwise how many failures there were
+	 */
+	private static String outcome(int failures, String failure){
+		return failures == 0 ? "OK" : "FAILED, " + failures + " " + failure;
+	}
+	/**
+	 * Deletes the index file of the tree so the next check or benchmark starts with an empty file.
+	 */
+	private static void deleteIndexFile(){
+		log("Deleting index file for next run: " + tree.getFileManager().deleteFile());
+	}
 	private static void log(String message){
 		pw.println(message);
 		System.out.println(message);
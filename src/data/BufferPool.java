@@ -0,0 +1,744 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Class for caching blocks of a FileManager in main memory.
+ * The BufferPool holds a fixed number of frames, each containing the image of one block.
+ * A block is pinned while it is in use by an operation and may not be evicted until it is unpinned.
+ * When a frame is needed and all frames are occupied, a victim is chosen with the CLOCK algorithm
+ * (second chance): the clock hand sweeps the frames, clearing the reference bit of recently used
+ * frames and evicting the first unpinned frame whose reference bit is already cleared.
+ * Modified (dirty) frames are only written back to the FileManager when they are evicted or
+ * when the pool is flushed.
+ * Blocks that are about to be needed can be prefetched: an asynchronous read is started and its result is
+ * placed in a frame when the block is pinned, so the caller only waits for whatever part of the read
+ * has not completed yet.
+ * If a WriteAheadLog is attached, every frame carries the LSN of the last log record describing it,
+ * and a dirty frame is only written back once the log is durable up to that LSN.
+ * The pool may be used by several threads at once without a lock of its own on the way to a cached block: the
+ * page table is a ConcurrentHashMap and a frame is pinned by increasing its pin count with compare-and-set. A
+ * frame whose pin count is zero may be reserved for another block by setting the count to -1, after which
+ * it cannot be pinned until it holds the new block. The thread reserving a frame writes back the old block,
+ * forcing the log if needed, and reads the new one without holding a lock of the pool, so a thread waiting for
+ * the disk only holds up threads that want the same frame; they wait for the reservation of the frame to end.
+ * Only the choice of a victim and the growth of the file are serialized.
+ * Every frame has a read/write latch that protects the contents of the block while it is pinned (see
+ * {@link #pinShared(int)} and {@link #pinExclusive(int)}).
+ * Blocks stored with {@link #pinAndReplace(int, byte[])} get a new frame image instead, so they may also be
+ * read while pinned without a latch.
+ * Every frame also has a version word for optimistic readers, which neither pin nor latch a block: the word
+ * is odd while the frame is latched exclusively or being given another block, and is increased again
+ * when that ends. A reader takes the version before reading the frame (see {@link #readVersion(int, int)})
+ * and checks afterwards that it has not changed (see {@link #validate(int, long)}); if it has, what it read
+ * may be inconsistent and the read is made again.
+ * @author Emil Bergwik
+ *
+ */
+public class BufferPool {
+
+	public static final int DEFAULT_CAPACITY = 256;
+	private static final int NO_BLOCK = -1;
+	private static final int RESERVED = -1; // Pin count of a frame that is being given another block
+
+	private final FileManager fm;
+	private final int capacity;
+	private final AtomicReferenceArray<byte[]> frames; // Current image of each frame, replaced by pinAndReplace
+	private final ByteBuffer[] frameBuffers; // Views of the frames, used to read blocks without allocating
+	private final int[] blockIDs; // Only changed while the frame is reserved
+	private final AtomicIntegerArray pinCounts;
+	private final boolean[] dirty; // Guarded by the write-back lock of the frame
+	private final boolean[] referenced; // Set without synchronization, races only affect the choice of a victim
+	private final long[] pageLSNs; // Guarded by the write-back lock of the frame
+	private final Object[] writeBackLocks; // Held while a frame is marked dirty or written back
+	private final ReentrantLock[] reservations; // Held by the thread that reserved a frame until it holds its new block
+	private final ReentrantReadWriteLock[] latches; // Latch of the block held by each frame
+	private final AtomicLongArray versions; // Version word of each frame, odd while the frame is changed
+	private volatile WriteAheadLog log;
+	private final LinkedHashMap<Integer, Future<ByteBuffer>> prefetches; // Asynchronous reads not yet claimed by a pin, guarded by itself
+	private final int maxPrefetches;
+	private final ConcurrentHashMap<Integer, Integer> pageTable; // Maps block ID to frame index, also read by optimistic readers
+	private final Object clock = new Object(); // Guards the clock hand and the choice of a victim
+	private int clockHand = 0;
+	private final Object appendLock = new Object(); // Guards the growth of the file, blocks beyond its end are written in order
+	private volatile int size; // Number of blocks in the file, including blocks not yet written back
+	private final AtomicLongArray numHits; // Hits of each frame, so pins of different blocks do not update one counter
+	private final AtomicLong numMisses = new AtomicLong(), numPrefetchHits = new AtomicLong();
+
+	/**
+	 * Constructor for the BufferPool.
+	 * @param fm - the FileManager whose blocks are cached
+	 * @param capacity - the maximum number of blocks held in main memory
+	 */
+	public BufferPool(FileManager fm, int capacity){
+		if(capacity < 1){
+			throw new IllegalArgumentException("The buffer pool must hold at least one frame.");
+		}
+		this.fm = fm;
+		this.capacity = capacity;
+		this.frames = new AtomicReferenceArray<byte[]>(capacity);
+		this.frameBuffers = new ByteBuffer[capacity];
+		this.blockIDs = new int[capacity];
+		this.pinCounts = new AtomicIntegerArray(capacity);
+		this.dirty = new boolean[capacity];
+		this.referenced = new boolean[capacity];
+		this.pageLSNs = new long[capacity];
+		this.writeBackLocks = new Object[capacity];
+		this.reservations = new ReentrantLock[capacity];
+		this.latches = new ReentrantReadWriteLock[capacity];
+		this.versions = new AtomicLongArray(capacity);
+		this.numHits = new AtomicLongArray(capacity);
+		this.pageTable = new ConcurrentHashMap<Integer, Integer>(capacity * 2);
+		this.prefetches = new LinkedHashMap<Integer, Future<ByteBuffer>>();
+		this.maxPrefetches = Math.max(1, capacity / 4);
+		for(int i=0;i<capacity;i++){
+			blockIDs[i] = NO_BLOCK;
+			writeBackLocks[i] = new Object();
+			reservations[i] = new ReentrantLock();
+			latches[i] = new ReentrantReadWriteLock();
+		}
+		this.size = fm.getSize();
+	}
+
+	/**
+	 * Pins a block in the pool, reading it from the FileManager if it is not already cached.
+	 * The returned array is the frame itself; it stays valid until the block is unpinned.
+	 * @param block - the block to pin
+	 * @return the frame containing the block
+	 * @throws IOException if the block has to be read and the read fails
+	 */
+	public byte[] pin(int block) throws IOException{
+		return frames.get(pinFrame(block));
+	}
+
+	/**
+	 * Pins a block and latches it in shared mode, so other threads may read the block but not modify it
+	 * until it is unpinned with {@link #unpinShared(int)}.
+	 * @param block - the block to pin
+	 * @return the frame containing the block
+	 * @throws IOException if the block has to be read and the read fails
+	 */
+	public byte[] pinShared(int block) throws IOException{
+		int frame = pinFrame(block);
+		latches[frame].readLock().lock();
+		// A thread that held the latch may have replaced the image while it was waited for
+		return frames.get(frame);
+	}
+
+	/**
+	 * Pins a block and latches it in exclusive mode, so no other thread may read or modify the block
+	 * until it is unpinned with {@link #unpinExclusive(int, boolean)}.
+	 * @param block - the block to pin
+	 * @return the frame containing the block
+	 * @throws IOException if the block has to be read and the read fails
+	 */
+	public byte[] pinExclusive(int block) throws IOException{
+		int frame = pinFrame(block);
+		ReentrantReadWriteLock latch = latches[frame];
+		latch.writeLock().lock();
+		if(latch.getWriteHoldCount() == 1) beginChange(frame);
+		return frames.get(frame);
+	}
+
+	/**
+	 * Releases the shared latch and one pin on a block pinned with {@link #pinShared(int)}.
+	 * @param block - the block to unpin
+	 */
+	public void unpinShared(int block){
+		int frame = pinnedFrame(block);
+		latches[frame].readLock().unlock();
+		unpinFrame(frame, false);
+	}
+
+	/**
+	 * Releases the exclusive latch and one pin on a block pinned with {@link #pinExclusive(int)}.
+	 * @param block - the block to unpin
+	 * @param modified - true if the frame was modified while it was pinned
+	 */
+	public void unpinExclusive(int block, boolean modified){
+		int frame = pinnedFrame(block);
+		ReentrantReadWriteLock latch = latches[frame];
+		if(latch.getWriteHoldCount() == 1) endChange(frame);
+		latch.writeLock().unlock();
+		unpinFrame(frame, modified);
+	}
+
+	/**
+	 * Pins the frame of a block, reading the block into a frame if it is not cached.
+	 * @param block - the block to pin
+	 * @return the index of the frame
+	 * @throws IOException if the block has to be read and the read fails
+	 */
+	private int pinFrame(int block) throws IOException{
+		if(block < 0 || block >= size){
+			throw new IndexOutOfBoundsException("Block " + block + " out of bounds when pinning.\n"
+					+ "Size of file is " + size);
+		}
+		while(true){
+			Integer frame = pageTable.get(block);
+			if(frame == null){
+				int loaded = load(block, true);
+				if(loaded >= 0) return loaded;
+			}else if(tryPin(frame, block)){
+				numHits.incrementAndGet(frame);
+				// Only written when it changes, so pins of a cached block do not write to memory shared between threads
+				if(!referenced[frame]) referenced[frame] = true;
+				return frame;
+			}
+		}
+	}
+
+	/**
+	 * Adds a pin to a frame found in the page table, which may have been given another block since.
+	 * If the frame is reserved, waits until it has been given its new block.
+	 * @param frame - the frame
+	 * @param block - the block the frame should hold
+	 * @return true if the frame holds the block and has been pinned, false if the block has to be looked up again
+	 */
+	private boolean tryPin(int frame, int block){
+		while(true){
+			int count = pinCounts.get(frame);
+			if(count == RESERVED){
+				// Not the latch of the frame, which the thread that reserved it may latch as soon as it is ready
+				reservations[frame].lock();
+				reservations[frame].unlock();
+				return false;
+			}
+			if(pinCounts.compareAndSet(frame, count, count + 1)){
+				if(blockIDs[frame] == block) return true;
+				unpinFrame(frame, false);
+				return false;
+			}
+		}
+	}
+
+	/* Gets the frame of a pinned block, which stays with the block as long as it is pinned */
+	private int pinnedFrame(int block){
+		Integer frame = pageTable.get(block);
+		if(frame == null || pinCounts.get(frame) <= 0){
+			throw new IllegalStateException("Block " + block + " is not pinned.");
+		}
+		return frame;
+	}
+
+	/* Releases one pin on a frame, marking it dirty first if it was modified */
+	private void unpinFrame(int frame, boolean modified){
+		if(modified) markDirty(frame);
+		while(true){
+			int count = pinCounts.get(frame);
+			if(count <= 0){
+				throw new IllegalStateException("Block " + blockIDs[frame] + " is not pinned.");
+			}
+			if(pinCounts.compareAndSet(frame, count, count - 1)) return;
+		}
+	}
+
+	/**
+	 * Finds the frame of a cached block for an optimistic read, without pinning the block. The frame may be
+	 * given another block at any time, which {@link #readVersion(int, int)} and {@link #validate(int, long)} detect.
+	 * @param block - the block to find
+	 * @return the index of the frame holding the block, or -1 if the block is not cached
+	 */
+	public int lookup(int block){
+		Integer frame = pageTable.get(block);
+		return frame == null ? -1 : frame;
+	}
+
+	/**
+	 * Takes the version of a frame before reading it optimistically.
+	 * @param frame - the frame, see {@link #lookup(int)}
+	 * @param block - the block the frame should hold
+	 * @return the version, or -1 if the frame is being changed or no longer holds the block
+	 */
+	public long readVersion(int frame, int block){
+		long version = versions.get(frame);
+		if((version & 1) != 0 || blockIDs[frame] != block) return -1;
+		return version;
+	}
+
+	/**
+	 * Takes the version of a frame before reading it optimistically, when its block is only stored with
+	 * {@link #pinAndReplace(int, byte[])}. Such an image is never changed in place, so it may be read while the
+	 * block is latched exclusively; the read only fails if the frame is given another block meanwhile.
+	 * @param frame - the frame, see {@link #lookup(int)}
+	 * @param block - the block the frame should hold
+	 * @return the version, or -1 if the frame is being given another block or no longer holds the block
+	 */
+	public long readImageVersion(int frame, int block){
+		long version = versions.get(frame);
+		if(pinCounts.get(frame) == RESERVED || blockIDs[frame] != block) return -1;
+		return version;
+	}
+
+	/**
+	 * Returns the image of a frame for an optimistic read. Its contents may change while they are read,
+	 * so nothing read from it may be relied on before the read has been validated.
+	 * @param frame - the frame, see {@link #lookup(int)}
+	 * @return the image of the frame
+	 */
+	public byte[] image(int frame){
+		return frames.get(frame);
+	}
+
+	/**
+	 * Checks that a frame has not been changed since its version was taken, so what was read from it is
+	 * consistent.
+	 * @param frame - the frame
+	 * @param version - the version taken with {@link #readVersion(int, int)}
+	 * @return true if the frame is unchanged
+	 */
+	public boolean validate(int frame, long version){
+		return versions.get(frame) == version;
+	}
+
+	/* Makes the version of a frame odd while it is changed, so optimistic reads of it fail */
+	private void beginChange(int frame){
+		versions.incrementAndGet(frame);
+	}
+
+	/* Makes the version of a changed frame even again */
+	private void endChange(int frame){
+		versions.incrementAndGet(frame);
+	}
+
+	/**
+	 * Starts reading a block asynchronously so that a later pin does not have to wait for the whole read.
+	 * Nothing is done if the block is cached, already being prefetched or not yet stored in the file.
+	 * If the maximum number of outstanding prefetches has been reached, the oldest one is abandoned.
+	 * @param block - the block that will be pinned soon
+	 * @throws IOException if the asynchronous read cannot be started
+	 */
+	public void prefetch(int block) throws IOException{
+		if(block < 0 || block >= fm.getSize()) return;
+		synchronized(prefetches){
+			// Checked with the prefetches locked, so a thread caching the block meanwhile claims the prefetch
+			if(pageTable.containsKey(block) || prefetches.containsKey(block)) return;
+			if(prefetches.size() >= maxPrefetches){
+				Iterator<Integer> oldest = prefetches.keySet().iterator();
+				oldest.next();
+				oldest.remove();
+			}
+			prefetches.put(block, fm.readAsync(block));
+		}
+	}
+
+	/* Copies the result of a prefetch into the frame, returning false if the read failed */
+	private boolean readPrefetched(Future<ByteBuffer> prefetch, ByteBuffer dst){
+		try {
+			dst.put(prefetch.get());
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Fall back to a synchronous read
+		}
+		dst.clear();
+		return false;
+	}
+
+	/**
+	 * Pins a block whose contents the caller is about to overwrite completely, such as a node being written.
+	 * The block is not read from the file if it is not cached. Pinning the block at the end of the file
+	 * appends it. The caller must unpin the block as modified when done.
+	 * @param block - the block to pin
+	 * @return the frame for the block
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	public byte[] pinForOverwrite(int block) throws IOException{
+		return frames.get(pinFrameForOverwrite(block));
+	}
+
+	/* Pins the frame of a block for pinForOverwrite, appending the block if it is at the end of the file */
+	private int pinFrameForOverwrite(int block) throws IOException{
+		if(block >= size){
+			synchronized(appendLock){
+				if(block == size){
+					int frame = load(block, false);
+					markDirty(frame);
+					size++;
+					return frame;
+				}
+			}
+		}
+		if(block < 0 || block > size){
+			throw new IndexOutOfBoundsException("Position Index out of bounds when writing to block " + block + "\n"
+					+ "Size of file is " + size);
+		}
+		while(true){
+			Integer frame = pageTable.get(block);
+			if(frame == null){
+				frame = load(block, false);
+				if(frame < 0) continue;
+			}else if(!tryPin(frame, block)){
+				continue;
+			}
+			markDirty(frame);
+			if(!referenced[frame]) referenced[frame] = true;
+			return frame;
+		}
+	}
+
+	/**
+	 * Pins a block and makes a new image of the block its frame, instead of overwriting the frame in place.
+	 * Threads that pinned the block before keep the image they pinned, so a thread that reads a pinned block
+	 * without latching it sees either all of the old or all of the new contents of the block.
+	 * The pool takes over the image, which must not be modified afterwards. Pinning the block at the end of
+	 * the file appends it. The caller must unpin the block as modified when done.
+	 * @param block - the block to pin
+	 * @param image - the new contents of the block, one block long
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	public void pinAndReplace(int block, byte[] image) throws IOException{
+		int frame = pinFrameForOverwrite(block);
+		// Read by the thread that next reserves the frame, after this thread has unpinned it
+		frameBuffers[frame] = ByteBuffer.wrap(image);
+		frames.set(frame, image);
+	}
+
+	/**
+	 * Releases one pin on a block.
+	 * @param block - the block to unpin
+	 * @param modified - true if the frame was modified while it was pinned
+	 */
+	public void unpin(int block, boolean modified){
+		unpinFrame(pinnedFrame(block), modified);
+	}
+
+	/**
+	 * Reserves a range of new blocks at the end of the file that the caller writes directly to the
+	 * FileManager, bypassing the pool, such as the nodes of a tree built by several threads at once.
+	 * The pool is flushed first, so every block it holds is in the file and the range follows them.
+	 * @param count - the number of blocks to reserve
+	 * @return the first block of the range
+	 * @throws IOException if flushing the pool or growing the file fails
+	 * @see FileManager#reserve(int)
+	 */
+	public int reserve(int count) throws IOException{
+		synchronized(appendLock){
+			flush();
+			int first = fm.reserve(count);
+			size = fm.getSize();
+			return first;
+		}
+	}
+
+	/**
+	 * Method for reading a block through the pool.
+	 * The returned array is the cached frame and must not be kept after the next pool operation, so while
+	 * other threads use the pool the block should be pinned instead.
+	 * @param block - the position of the block in the file
+	 * @return the cached image of the block
+	 * @throws IOException if the block is not cached and reading it from the file fails
+	 */
+	public byte[] read(int block) throws IOException{
+		int frame = pinFrame(block);
+		byte[] data = frames.get(frame);
+		unpinFrame(frame, false);
+		return data;
+	}
+
+	/**
+	 * Method for writing a block to the pool, given a position to write it to.
+	 * The block is written back to the file lazily.
+	 * @param bytes - the byte representation of the block
+	 * @param position - the position to write it to
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	public void write(byte[] bytes, int position) throws IOException{
+		int frame = pinFrameForOverwrite(position);
+		beginChange(frame);
+		System.arraycopy(bytes, 0, frames.get(frame), 0, Math.min(bytes.length, fm.getBlockSize()));
+		endChange(frame);
+		unpinFrame(frame, true);
+	}
+
+	/**
+	 * Method for writing a block to the end of the file.
+	 * @param bytes - the byte representation of the block
+	 * @return the new size of the file (after writing the block)
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	public int write(byte[] bytes) throws IOException{
+		synchronized(appendLock){
+			write(bytes, size);
+			return size;
+		}
+	}
+
+	/**
+	 * Writes every dirty frame back to the FileManager, in ascending block order.
+	 * @throws IOException if any write fails
+	 */
+	public void flush() throws IOException{
+		synchronized(appendLock){
+			for(int block = fm.getSize(); block < size; block++){
+				// Blocks beyond the end of the file must be appended in order
+				writeFrame(frameOf(block));
+			}
+			for(int i=0;i<capacity;i++){
+				writeFrame(i);
+			}
+		}
+	}
+
+	/**
+	 * Reads a block into a reserved frame and pins it, or gives an uncached block a zeroed frame when the
+	 * caller is about to overwrite it. If another thread caches the block first, the frame is given up.
+	 * @param block - the block to cache
+	 * @param read - true to read the block from the file
+	 * @return the index of the pinned frame, or -1 if another thread has cached the block
+	 * @throws IOException if a frame has to be evicted and writing it back fails, or the read fails
+	 */
+	private int load(int block, boolean read) throws IOException{
+		int frame = claimFrame();
+		blockIDs[frame] = block;
+		if(pageTable.putIfAbsent(block, frame) != null){
+			blockIDs[frame] = NO_BLOCK;
+			ready(frame, 0);
+			return -1;
+		}
+		Future<ByteBuffer> prefetch;
+		synchronized(prefetches){
+			prefetch = prefetches.remove(block);
+		}
+		boolean loaded = false;
+		try {
+			if(read){
+				numMisses.incrementAndGet();
+				ByteBuffer dst = frameBuffers[frame];
+				dst.clear();
+				if(prefetch != null && readPrefetched(prefetch, dst)){
+					numPrefetchHits.incrementAndGet();
+				}else{
+					fm.read(block, dst);
+				}
+			}
+			loaded = true;
+		} finally {
+			if(!loaded){
+				pageTable.remove(block, frame);
+				blockIDs[frame] = NO_BLOCK;
+				ready(frame, 0);
+			}
+		}
+		referenced[frame] = true;
+		ready(frame, 1);
+		return frame;
+	}
+
+	/**
+	 * Reserves a frame, evicting a victim chosen by the CLOCK algorithm: the clock hand sweeps the frames,
+	 * clearing the reference bit of recently used frames, and takes the first unpinned frame whose reference
+	 * bit is already cleared, or that holds no block. Only the sweep is serialized; the victim is written back
+	 * once it has been reserved, while other threads go on pinning other frames.
+	 * The frame is returned zeroed and changing; {@link #ready(int, int)} ends the change and the reservation.
+	 * @return the index of the reserved frame
+	 * @throws IOException if the victim is dirty and writing it back fails
+	 */
+	private int claimFrame() throws IOException{
+		int victim = -1;
+		synchronized(clock){
+			// Two full sweeps clear every reference bit, so a third finding nothing means all frames are pinned
+			for(int swept = 0; swept < 3*capacity && victim == -1; swept++){
+				int frame = clockHand;
+				clockHand = (clockHand + 1) % capacity;
+				if(pinCounts.get(frame) != 0) continue;
+				if(referenced[frame] && blockIDs[frame] != NO_BLOCK){
+					referenced[frame] = false;
+					continue;
+				}
+				// Locked before the frame is reserved, so a thread finding the frame reserved can wait for it
+				ReentrantLock reservation = reservations[frame];
+				if(!reservation.tryLock()) continue;
+				if(pinCounts.compareAndSet(frame, 0, RESERVED)){
+					victim = frame;
+				}else{
+					reservation.unlock();
+				}
+			}
+		}
+		if(victim == -1){
+			throw new IllegalStateException("All " + capacity + " frames of the buffer pool are pinned.");
+		}
+		beginChange(victim);
+		int evicted = blockIDs[victim];
+		if(evicted != NO_BLOCK){
+			try {
+				writeBack(victim);
+			} catch (IOException e) {
+				ready(victim, 0);
+				throw e;
+			}
+			pageTable.remove(evicted, victim);
+		}
+		byte[] image = frames.get(victim);
+		if(image == null){
+			image = new byte[fm.getBlockSize()];
+			frames.set(victim, image);
+			frameBuffers[victim] = ByteBuffer.wrap(image);
+		}else{
+			Arrays.fill(image, (byte) 0);
+		}
+		synchronized(writeBackLocks[victim]){
+			dirty[victim] = false;
+			pageLSNs[victim] = 0;
+		}
+		blockIDs[victim] = NO_BLOCK;
+		referenced[victim] = false;
+		return victim;
+	}
+
+	/* Ends the change and the reservation of a frame, setting its pin count and letting waiting threads on */
+	private void ready(int frame, int pins){
+		endChange(frame);
+		pinCounts.set(frame, pins);
+		reservations[frame].unlock();
+	}
+
+	/* Gets the frame of a block that is beyond the end of the file and therefore must be cached */
+	private int frameOf(int block){
+		Integer frame = pageTable.get(block);
+		if(frame == null){
+			throw new IllegalStateException("Block " + block + " was allocated but never written.");
+		}
+		return frame;
+	}
+
+	/* Writes back a reserved or pinned frame, first appending the blocks before it if it is beyond the end of the file */
+	private void writeBack(int frame) throws IOException{
+		int block = blockIDs[frame];
+		if(block < fm.getSize()){
+			writeFrame(frame);
+			return;
+		}
+		synchronized(appendLock){
+			for(int b = fm.getSize(); b < block; b++){
+				// The file cannot have holes, so write back the blocks before the evicted one first
+				writeFrame(frameOf(b));
+			}
+			writeFrame(frame);
+		}
+	}
+
+	/* Writes a frame back to the FileManager if it is dirty, forcing the log first if needed */
+	private void writeFrame(int frame) throws IOException{
+		synchronized(writeBackLocks[frame]){
+			if(!dirty[frame]) return;
+			WriteAheadLog log = this.log;
+			if(log != null && pageLSNs[frame] > log.getFlushedLSN()){
+				log.commit(pageLSNs[frame]);
+			}
+			fm.write(frames.get(frame), blockIDs[frame]);
+			dirty[frame] = false;
+		}
+	}
+
+	/* Marks a frame as holding changes that are not written back */
+	private void markDirty(int frame){
+		synchronized(writeBackLocks[frame]){
+			dirty[frame] = true;
+		}
+	}
+
+	/**
+	 * Attaches the log that describes the changes made to the cached blocks.
+	 * @param log - the log to force before writing back a frame
+	 */
+	public void setWriteAheadLog(WriteAheadLog log){
+		this.log = log;
+	}
+
+	/**
+	 * Records that the current contents of a cached block are described by the log record with the given LSN.
+	 * @param block - the cached block
+	 * @param lsn - the LSN of the log record
+	 */
+	public void setPageLSN(int block, long lsn){
+		Integer frame = pageTable.get(block);
+		if(frame != null){
+			synchronized(writeBackLocks[frame]){
+				if(blockIDs[frame] == block) pageLSNs[frame] = Math.max(pageLSNs[frame], lsn);
+			}
+		}
+	}
+
+	/**
+	 * Reserves a block at the end of the file and gives it a zeroed frame, so that the blocks after it can be
+	 * written back before the caller has stored anything in it.
+	 * @return the ID of the reserved block
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	public int allocate() throws IOException{
+		synchronized(appendLock){
+			int block = size;
+			unpinFrame(pinFrameForOverwrite(block), true);
+			return block;
+		}
+	}
+
+	public int getSize(){
+		return size;
+	}
+
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public int getMaxPrefetches(){
+		return maxPrefetches;
+	}
+
+	public FileManager getFileManager(){
+		return fm;
+	}
+
+	public long getNumberOfHits(){
+		long hits = 0;
+		for(int i=0;i<capacity;i++){
+			hits += numHits.get(i);
+		}
+		return hits;
+	}
+
+	public long getNumberOfMisses(){
+		return numMisses.get();
+	}
+
+	/**
+	 * Returns the number of misses that were served by a prefetch instead of a synchronous read.
+	 * @return the number of prefetched misses
+	 */
+	public long getNumberOfPrefetchHits(){
+		return numPrefetchHits.get();
+	}
+
+	public void resetHitMissCounters(){
+		for(int i=0;i<capacity;i++){
+			numHits.set(i, 0);
+		}
+		numMisses.set(0);
+		numPrefetchHits.set(0);
+	}
+
+	/**
+	 * Flushes the pool and closes the underlying FileManager.
+	 * @throws IOException if writing back a dirty frame or closing the file fails
+	 */
+	public void close() throws IOException{
+		flush();
+		fm.close();
+	}
+}
@@ -98,52 +98,55 @@ public class Bytes{
 		return 0;
 	}
 
-	public static void appendInt(byte[] dest, int k){
-		int size=0;	
-		for(int i=0;i<=dest.length-4;i+=4){
-//			System.out.println("Bytes["+i+"]:"+bytesToInt(dest,i));
-//			System.out.flush();
-			if(bytesToInt(dest, i) != 0){				
-				size+=4;
-			}else{
-				//System.out.println("Found end of dest at position " + size);
-				break;
-			}
-		}
-//		System.out.println("End: " + size);
-//		System.out.println("Dest length: " + dest.length);
-		if(size <= dest.length-4){
-			//System.out.println("Appending " + k + " at position " + size + ".");
-			intToBytes(k, dest, size);
-		}
+	/**
+	 * Returns the number of bits needed to store the non-negative value.
+	 * @param value - the value to store
+	 * @return the number of significant bits of the value, 0 for 0
+	 */
+	public static int bitWidth(long value){
+		return 64 - Long.numberOfLeadingZeros(value);
 	}
 	/**
-	 * Gets the last filled position of the byte array.
-	 * If the byte array is full, it returns the length of the array.
-	 * @param bytes - the byte[] to get the last filled position of.
-	 * @return the index of the last filled position
+	 * Stores the lowest bits of a value at a bit position of the array, most significant bit first.
+	 * The other bits of the bytes touched are kept.
+	 * @param data - the byte array to store the value in
+	 * @param bitPosition - the position of the first bit, counted from the start of the array
+	 * @param width - the number of bits to store, at most 64
+	 * @param value - the value to store
 	 */
-	public static int getLastIndex(byte[] bytes){
-		int size=0;
-		for(int i=0;i<=bytes.length-4;i+=4){
-			if(bytesToInt(bytes, i) != 0){
-				size+=4;
-			}else{
-				return size;
-			}
+	public static void writeBits(byte[] data, long bitPosition, int width, long value){
+		int written = 0;
+		while(written < width){
+			long position = bitPosition + written;
+			int index = (int) (position >>> 3);
+			int bitInByte = (int) (position & 7);
+			int take = Math.min(8 - bitInByte, width - written);
+			int shift = 8 - bitInByte - take;
+			int mask = ((1 << take) - 1) << shift;
+			int bits = (int) (value >>> (width - written - take)) << shift;
+			data[index] = (byte) ((data[index] & ~mask) | (bits & mask));
+			written += take;
 		}
-		return bytes.length;
 	}
 	/**
-	 * Empties the byte array from index and forward
-	 * @param data - the byte array to empty from
-	 * @param index - the position to clear from
+	 * Reads a value stored by {@link #writeBits(byte[], long, int, long)}.
+	 * @param data - the byte array to read from
+	 * @param bitPosition - the position of the first bit, counted from the start of the array
+	 * @param width - the number of bits to read, at most 64
+	 * @return the value, as an unsigned number
 	 */
-	public static void clearBytesFromPosition(byte[] data, int index){
-		if(index > data.length-4) return;
-		for(int i=index; i <= data.length-4; i+=4){
-			Bytes.intToBytes(0, data, i);
+	public static long readBits(byte[] data, long bitPosition, int width){
+		long value = 0;
+		int read = 0;
+		while(read < width){
+			long position = bitPosition + read;
+			int bitInByte = (int) (position & 7);
+			int take = Math.min(8 - bitInByte, width - read);
+			int bits = ((data[(int) (position >>> 3)] & 0xff) >>> (8 - bitInByte - take)) & ((1 << take) - 1);
+			value = (value << take) | bits;
+			read += take;
 		}
+		return value;
 	}
 
 	public static class ByteArrayComparator implements Comparator<byte[]>{
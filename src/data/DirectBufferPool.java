@@ -0,0 +1,64 @@
+package data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable direct ByteBuffers of one fixed size.
+ * Direct buffers are expensive to allocate and are only reclaimed by the garbage collector, so the
+ * FileManager borrows one per I/O call from this pool instead of allocating a new buffer per block.
+ * At most {@code maxRetained} released buffers are kept; any further buffers are left to the garbage collector.
+ * @author Emil Bergwik
+ *
+ */
+public class DirectBufferPool {
+
+	private final int bufferSize;
+	private final int maxRetained;
+	private final ConcurrentLinkedQueue<ByteBuffer> free;
+	private final AtomicInteger retained;
+
+	/**
+	 * Constructor for the DirectBufferPool.
+	 * @param bufferSize - the capacity of every buffer in the pool
+	 * @param maxRetained - the maximum number of idle buffers kept for reuse
+	 */
+	public DirectBufferPool(int bufferSize, int maxRetained){
+		this.bufferSize = bufferSize;
+		this.maxRetained = maxRetained;
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.retained = new AtomicInteger(0);
+	}
+
+	/**
+	 * Borrows a cleared buffer from the pool, allocating a new one if the pool is empty.
+	 * @return a direct buffer with position 0 and limit equal to the buffer size
+	 */
+	public ByteBuffer acquire(){
+		ByteBuffer buffer = free.poll();
+		if(buffer == null){
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}else{
+			retained.decrementAndGet();
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+	 * @param buffer - the buffer previously borrowed with {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer){
+		if(retained.incrementAndGet() <= maxRetained){
+			free.offer(buffer);
+		}else{
+			retained.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize(){
+		return bufferSize;
+	}
+}
@@ -5,25 +5,47 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class for simulating an index file. An FileManager can read and write to blocks
  * within the FileManager. the FileManager stores the number of blocks in the file, the block size
  * and the random access file it writes and reads to.
  * It contains methods for writing and reading from a specific position within the RAF.
+ * Blocks can also be read asynchronously through an AsynchronousFileChannel, which lets callers keep
+ * several reads in flight while they work on blocks already read.
+ * Blocks that are no longer used are kept in a free list and handed out again by {@link #allocate()}
+ * before the file is grown. Each free block links to the next one:
+ * Attribute:			Stored @ byte:
+ * ID 					0 to 3
+ * Block type (2)		4
+ * Next free block		5 to 8 (0 ends the list)
+ * The head of the list is not stored by the FileManager itself; its owner (the BPlusTree header) persists it.
  * @author Emil Bergwik
  *
  */
 public class FileManager {
 
-	private RandomAccessFile file;
-	private File inputFile;
-	private FileChannel fc;
-	private ByteBuffer bb;
-	private final int blockSize;  // Size of one block
-	private int size = 0; // Number of blocks in the file
-    private long numReadWrites = 0; // Number of reads and writes performed on RAF
+	protected RandomAccessFile file;
+	protected File inputFile;
+	protected FileChannel fc;
+	private DirectBufferPool buffers; // Reusable direct buffers for reading and writing blocks
+	private AsynchronousFileChannel afc; // Opened on the first asynchronous read
+	protected final int blockSize;  // Size of one block
+	protected volatile int size = 0; // Number of blocks in the file, read by threads that did not grow it
+	// Number of reads and writes performed on RAF, counted atomically as blocks may be written by several threads
+	protected final AtomicLong numReadWrites = new AtomicLong();
+	protected int freeListHead = 0; // First block of the free list, 0 if the list is empty
+	public static final byte FREE_BLOCK = 2; // Value of the block type byte for a free block
 	/**
 	 * Constructor for the FileManager. Given a file name and a block size, either opens an existing file
 	 * (if the file exists) or creates a new one, in R/W mode. 
@@ -33,12 +55,11 @@ public class FileManager {
 	 */
 	public FileManager(String name, int blockSize){
 		this.blockSize = blockSize;
-		this.numReadWrites = 0;
 		this.inputFile = new File(name);
 		try {
 			this.file = new RandomAccessFile(inputFile, "rw");
 			this.fc = file.getChannel();
-			this.bb = ByteBuffer.allocate(blockSize);
+			this.buffers = new DirectBufferPool(blockSize, 16);
 			if (inputFile.exists()){
 				this.size  = (int) (this.inputFile.length() / blockSize);
 				if (this.inputFile.length() % blockSize != 0){
@@ -66,11 +87,21 @@ public class FileManager {
 			throw new IndexOutOfBoundsException("Position Index out of bounds when writing to block " + position + "\n"
 					+ "Size of file is " + size);
 		}else{
-			bb = ByteBuffer.allocate(blockSize);
-			bb.put(bytes);
-			bb.rewind();
-			fc.write(bb, position*blockSize);
-			this.numReadWrites++;
+			ByteBuffer bb = buffers.acquire();
+			try {
+				int length = Math.min(bytes.length, blockSize);
+				bb.put(bytes, 0, length);
+				while(bb.hasRemaining()){
+					bb.put((byte) 0);
+				}
+				bb.flip();
+				while(bb.hasRemaining()){
+					fc.write(bb, (long) position*blockSize + bb.position());
+				}
+			} finally {
+				buffers.release(bb);
+			}
+			numReadWrites.incrementAndGet();
 			if(position == size) size++;
 		}
 	}
@@ -81,12 +112,8 @@ public class FileManager {
 	 * @throws IOException if either the seek or the writing of the block to the file fails.
 	 */
 	public int write(byte[] bytes)throws IOException{
-		bb = ByteBuffer.allocate(blockSize);
-		bb.put(bytes);
-		bb.rewind();
-		fc.write(bb, size*blockSize);
-		this.numReadWrites++;
-		return ++size;
+		write(bytes, size);
+		return size;
 	}
 	/**
 	 * Method for reading a block given a position within the file
@@ -95,16 +122,251 @@ public class FileManager {
 	 * @throws IOException if the total amount of bytes read into the byte buffer does not match the block size
 	 */
 	public byte[] read(int blockPosition) throws IOException{
+		byte[] result = new byte[blockSize];
+		read(blockPosition, ByteBuffer.wrap(result));
+		return result;
+	}
+
+	/**
+	 * Method for reading a block into a buffer supplied by the caller, so no memory is allocated per read.
+	 * The block is stored from the current position of the buffer, which is advanced by the block size.
+	 * Heap buffers are filled through a pooled direct buffer.
+	 * @param blockPosition - the position of the block in the file
+	 * @param dst - the buffer to read into; it must have at least block size bytes remaining
+	 * @throws IOException if reading from the channel fails
+	 */
+	public void read(int blockPosition, ByteBuffer dst) throws IOException{
 		if(blockPosition < 0 || blockPosition > size){
 			throw new IndexOutOfBoundsException();
 		}
+		if(dst.isDirect()){
+			readFully(blockPosition, dst);
+		}else{
+			ByteBuffer bb = buffers.acquire();
+			try {
+				readFully(blockPosition, bb);
+				bb.flip();
+				dst.put(bb);
+			} finally {
+				buffers.release(bb);
+			}
+		}
+		numReadWrites.incrementAndGet();
+	}
+
+	/* Reads one block into the direct buffer, zero filling whatever lies beyond the end of the file */
+	private void readFully(int blockPosition, ByteBuffer dst) throws IOException{
+		int end = dst.position() + blockSize;
+		long offset = (long) blockPosition*blockSize;
+		while(dst.position() < end){
+			int oldLimit = dst.limit();
+			dst.limit(end);
+			int read = fc.read(dst, offset + dst.position() - (end - blockSize));
+			dst.limit(oldLimit);
+			if(read < 0){
+				while(dst.position() < end){
+					dst.put((byte) 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method for reading a block as a ByteBuffer, positioned at the start of the block.
+	 * Backends that can serve blocks without copying (such as {@link MappedFileManager}) override this.
+	 * @param blockPosition - the position of the block in the file
+	 * @return a buffer containing the block
+	 * @throws IOException if reading the block fails
+	 */
+	public ByteBuffer readBuffer(int blockPosition) throws IOException{
+		return ByteBuffer.wrap(read(blockPosition));
+	}
+
+	/**
+	 * Method for starting an asynchronous read of a block. The read is performed by the channel's thread
+	 * pool and the calling thread continues immediately.
+	 * @param blockPosition - the position of the block in the file
+	 * @return a Future that completes with a buffer containing the block, positioned at the start of the block
+	 * @throws IOException if the asynchronous channel cannot be opened
+	 */
+	public Future<ByteBuffer> readAsync(int blockPosition) throws IOException{
+		if(blockPosition < 0 || blockPosition >= size){
+			throw new IndexOutOfBoundsException();
+		}
+		if(afc == null){
+			afc = AsynchronousFileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+		}
+		BlockRead read = new BlockRead(ByteBuffer.allocate(blockSize), (long) blockPosition*blockSize);
+		read.start();
+		numReadWrites.incrementAndGet();
+		return read;
+	}
+
+	/**
+	 * An asynchronous read of one block. Partial reads are continued until the block is complete;
+	 * bytes beyond the end of the file are left as zeros.
+	 */
+	private class BlockRead implements Future<ByteBuffer>, CompletionHandler<Integer, Void> {
+		private final ByteBuffer dst;
+		private final long offset;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable failure;
+
+		BlockRead(ByteBuffer dst, long offset){
+			this.dst = dst;
+			this.offset = offset;
+		}
+
+		void start(){
+			afc.read(dst, offset + dst.position(), null, this);
+		}
+
+		public void completed(Integer read, Void attachment){
+			if(read < 0 || !dst.hasRemaining()){
+				dst.clear();
+				done.countDown();
+			}else{
+				start();
+			}
+		}
+
+		public void failed(Throwable exc, Void attachment){
+			failure = exc;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning){
+			return false;
+		}
+
+		public boolean isCancelled(){
+			return false;
+		}
+
+		public boolean isDone(){
+			return done.getCount() == 0;
+		}
+
+		public ByteBuffer get() throws InterruptedException, ExecutionException{
+			done.await();
+			return result();
+		}
+
+		public ByteBuffer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException{
+			if(!done.await(timeout, unit)) throw new TimeoutException();
+			return result();
+		}
 
-		bb = ByteBuffer.allocate(blockSize);
-		fc.read(bb, blockPosition*blockSize);
-		this.numReadWrites++;
-		return bb.array();		
+		private ByteBuffer result() throws ExecutionException{
+			if(failure != null) throw new ExecutionException(failure);
+			return dst;
+		}
 	}
 
+	/**
+	 * Allocates a block, reusing the first block of the free list if there is one and otherwise
+	 * appending an empty block to the file.
+	 * If the head of the free list does not hold a free block (the list was lost, for example because the
+	 * head was stored but the block was not), the rest of the list is abandoned rather than handing out a
+	 * block that may be in use.
+	 * @return the ID of the allocated block
+	 * @throws IOException if reading the free block or growing the file fails
+	 */
+	public int allocate() throws IOException{
+		if(freeListHead != 0){
+			int block = freeListHead;
+			byte[] data = read(block);
+			freeListHead = 0;
+			if(isFreeBlock(data, block)){
+				freeListHead = nextFreeBlock(data);
+				return block;
+			}
+		}
+		write(new byte[blockSize], size);
+		return size-1;
+	}
+
+	/**
+	 * Returns a block to the free list, overwriting its contents with the link to the next free block.
+	 * Block 0 marks the end of the list and can not be freed.
+	 * @param block - the block to free
+	 * @throws IOException if writing the block fails
+	 */
+	public void free(int block) throws IOException{
+		if(block <= 0 || block >= size){
+			throw new IndexOutOfBoundsException("Block " + block + " can not be freed, size of file is " + size);
+		}
+		byte[] data = new byte[blockSize];
+		writeFreeBlock(data, block, freeListHead);
+		write(data, block);
+		freeListHead = block;
+	}
+
+	/**
+	 * Grows the file by a range of zeroed blocks that the caller writes itself with {@link #write(byte[], int)},
+	 * such as the nodes of a tree built by several threads at once. Each write goes to its own position of
+	 * the file, so blocks of the range may be written concurrently and in any order.
+	 * @param count - the number of blocks to add
+	 * @return the first block of the range
+	 * @throws IOException if growing the file fails
+	 */
+	public int reserve(int count) throws IOException{
+		int first = size;
+		long length = (long) (size + count) * blockSize;
+		// A mapped file may already be longer than its blocks, shrinking it would cut off its mappings
+		if(file.length() < length) file.setLength(length);
+		size += count;
+		return first;
+	}
+
+	/**
+	 * Stores a free list entry in a block image.
+	 * @param data - the block image to store the entry in
+	 * @param block - the ID of the free block
+	 * @param next - the ID of the next free block, 0 if it is the last one
+	 */
+	public static void writeFreeBlock(byte[] data, int block, int next){
+		Bytes.intToBytes(block, data, 0);
+		data[4] = FREE_BLOCK;
+		Bytes.intToBytes(next, data, 5);
+		for(int i=9;i<data.length;i++){
+			data[i] = 0;
+		}
+	}
+
+	/**
+	 * Checks if a block image holds the free list entry of the given block.
+	 * @param data - the block image
+	 * @param block - the ID the block was read from
+	 * @return true if the block is free
+	 */
+	public static boolean isFreeBlock(byte[] data, int block){
+		return data[4] == FREE_BLOCK && Bytes.bytesToInt(data, 0) == block;
+	}
+
+	public static int nextFreeBlock(byte[] data){
+		return Bytes.bytesToInt(data, 5);
+	}
+
+	public int getFreeListHead(){
+		return freeListHead;
+	}
+
+	public void setFreeListHead(int freeListHead){
+		this.freeListHead = freeListHead;
+	}
+
+	/**
+	 * Forces all writes made to the file to the storage device.
+	 * @throws IOException if the underlying channel fails to force
+	 */
+	public void force() throws IOException{
+		fc.force(false);
+	}
+
+	public String getFileName(){
+		return inputFile.getPath();
+	}
 	public int getBlockSize(){
 		return blockSize;
 	}
@@ -113,11 +375,11 @@ public class FileManager {
 		return size;
 	}
 	public long getNumberOfReadWrites(){
-		return this.numReadWrites;
+		return numReadWrites.get();
 	}
 	
 	public void resetReadWriteCounter(){
-		this.numReadWrites = 0;
+		numReadWrites.set(0);
 	}
 	
 	/**
@@ -126,6 +388,7 @@ public class FileManager {
 	 */
 	public boolean deleteFile(){
 		try {
+			if(afc != null) afc.close();
 			file.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -138,6 +401,7 @@ public class FileManager {
 	 * @throws IOException
 	 */
 	public void close() throws IOException {
+		if(afc != null) afc.close();
 		file.close();
 	}
 }
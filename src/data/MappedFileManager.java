@@ -0,0 +1,190 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * FileManager backend that memory maps the index file instead of using positional channel reads and writes.
+ * The file is mapped in regions of a fixed number of blocks, so a block never spans two regions.
+ * Regions are mapped lazily the first time one of their blocks is accessed; mapping a region past the end
+ * of the file grows the file to cover the whole region. On close the mappings are forced to disk and the
+ * file is truncated back to the number of blocks actually written.
+ * Blocks are served as slices of the mapping, so reading a block neither copies it nor performs a system call.
+ * @author Emil Bergwik
+ *
+ */
+public class MappedFileManager extends FileManager {
+
+	private static final int REGION_SIZE = 1 << 24; // Approximate size of one mapped region in bytes
+	private final int blocksPerRegion;
+	private final ArrayList<MappedByteBuffer> regions;
+
+	/**
+	 * Constructor for the MappedFileManager. Opens (or creates) the file like {@link FileManager}.
+	 * Trailing blocks containing only zeros are left over from a region that was mapped but never
+	 * written before the file was truncated, so they are not counted as part of the file.
+	 * @param name - the file name to open
+	 * @param blockSize - the size of each block in the file
+	 */
+	public MappedFileManager(String name, int blockSize){
+		super(name, blockSize);
+		this.blocksPerRegion = Math.max(1, REGION_SIZE / blockSize);
+		this.regions = new ArrayList<MappedByteBuffer>();
+		try {
+			while(size > 0 && isZeroBlock(size-1)){
+				size--;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the mapped region containing the block, mapping it (and growing the file) if needed.
+	 * @param block - the block to get the region for
+	 * @return the region containing the block
+	 * @throws IOException if mapping the region fails
+	 */
+	private MappedByteBuffer region(int block) throws IOException{
+		int index = block / blocksPerRegion;
+		while(regions.size() <= index){
+			regions.add(null);
+		}
+		MappedByteBuffer region = regions.get(index);
+		if(region == null){
+			long regionBytes = (long) blocksPerRegion * blockSize;
+			region = fc.map(MapMode.READ_WRITE, index * regionBytes, regionBytes);
+			regions.set(index, region);
+		}
+		return region;
+	}
+
+	/* Returns the offset of the block within its region */
+	private int offset(int block){
+		return (block % blocksPerRegion) * blockSize;
+	}
+
+	/**
+	 * Returns a view of the block within the mapping. No data is copied; changes made to the
+	 * mapping are visible through the returned buffer.
+	 * @param blockPosition - the position of the block in the file
+	 * @return a read-only buffer containing exactly the block
+	 * @throws IOException if mapping the region fails
+	 */
+	@Override
+	public ByteBuffer readBuffer(int blockPosition) throws IOException{
+		if(blockPosition < 0 || blockPosition >= size){
+			throw new IndexOutOfBoundsException();
+		}
+		ByteBuffer view = region(blockPosition).asReadOnlyBuffer();
+		view.position(offset(blockPosition));
+		view.limit(offset(blockPosition) + blockSize);
+		numReadWrites.incrementAndGet();
+		return view.slice();
+	}
+
+	/**
+	 * The block is already accessible through the mapping, so the returned Future is completed immediately.
+	 */
+	@Override
+	public Future<ByteBuffer> readAsync(int blockPosition) throws IOException{
+		final ByteBuffer view = readBuffer(blockPosition);
+		FutureTask<ByteBuffer> read = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>(){
+			public ByteBuffer call(){
+				return view;
+			}
+		});
+		read.run();
+		return read;
+	}
+
+	@Override
+	public void read(int blockPosition, ByteBuffer dst) throws IOException{
+		dst.put(readBuffer(blockPosition));
+	}
+
+	@Override
+	public void write(byte[] bytes, int position) throws IOException{
+		if(position < 0 || position > size){
+			throw new IndexOutOfBoundsException("Position Index out of bounds when writing to block " + position + "\n"
+					+ "Size of file is " + size);
+		}
+		ByteBuffer view = region(position).duplicate();
+		view.position(offset(position));
+		int length = Math.min(bytes.length, blockSize);
+		view.put(bytes, 0, length);
+		for(int i=length;i<blockSize;i++){
+			view.put((byte) 0);
+		}
+		numReadWrites.incrementAndGet();
+		if(position == size) size++;
+	}
+
+	@Override
+	public int write(byte[] bytes) throws IOException{
+		write(bytes, size);
+		return size;
+	}
+
+	/**
+	 * Maps every region of the reserved blocks up front, so writing them concurrently does not map regions.
+	 */
+	@Override
+	public int reserve(int count) throws IOException{
+		int first = super.reserve(count);
+		for(int block = first; block < size; block += blocksPerRegion){
+			region(block);
+		}
+		if(count > 0) region(size-1);
+		return first;
+	}
+
+	/**
+	 * Forces every mapped region to the storage device.
+	 */
+	@Override
+	public void force() throws IOException{
+		for(MappedByteBuffer region : regions){
+			if(region != null) region.force();
+		}
+	}
+
+	/**
+	 * Forces the mappings to disk, truncates the file to the written blocks and closes it.
+	 * Truncating a file that is still mapped is not permitted on every platform, in which case the
+	 * file keeps its zero padding and the padding is skipped when it is opened again.
+	 */
+	@Override
+	public void close() throws IOException{
+		force();
+		regions.clear();
+		try {
+			file.setLength((long) size * blockSize);
+		} catch (IOException e) {
+			// The mapping still holds the file open, leave the padding in place
+		}
+		super.close();
+	}
+
+	@Override
+	public boolean deleteFile(){
+		regions.clear();
+		return super.deleteFile();
+	}
+
+	/* Checks if the block on disk contains only zeros */
+	private boolean isZeroBlock(int block) throws IOException{
+		ByteBuffer data = ByteBuffer.allocate(blockSize);
+		fc.read(data, (long) block * blockSize);
+		for(int i=0;i<blockSize;i++){
+			if(data.get(i) != 0) return false;
+		}
+		return true;
+	}
+}
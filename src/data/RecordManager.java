@@ -5,6 +5,8 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
@@ -29,24 +31,32 @@ public class RecordManager {
  * as a new key, pointer value into the tree. Records within the database is expected
  * to be on the format:
  * StudentID (Integer);FirstName LastName (String);MajorCode (Integer);Sex (String)
+ * The disk pointer of a record is its position in the file, counting from 1.
  * @param tree - the tree which to insert values into
  * @param fileName - the database file to load records from
  * @throws IOException if the underlying reader has an I/O error. 
  */
 	public static void loadDatabaseIntoTree(BPlusTree tree, String fileName) throws IOException{
+		int counter = 0;
 		br = new BufferedReader(new FileReader(fileName));
-		String line = br.readLine();
-		while (line != null) {
-			String[] record = line.split(";");
-			if(record[0] != null){
-				tree.insert(Integer.parseInt(record[0]), 1);				
+		try {
+			String line = br.readLine();
+			while (line != null) {
+				String[] record = line.split(";");
+				if(record[0] != null){
+					tree.insert(Integer.parseInt(record[0]), counter+1);
+				}
+				counter++;
+				line = br.readLine();
 			}
-			line = br.readLine();
+		} finally {
+			br.close();
 		}
 	}
 	
 	/**
-	 * Reads a database file line by line and inserts them into a BPlusTree
+	 * Reads a database file line by line and inserts them into a BPlusTree. The disk pointer of a record is
+	 * its position in the file, counting from 1 as a pointer of 0 means that a key is not found.
 	 * @param tree - the BPlusTree to load into the database
 	 * @param fileName - the file name to read the database from
 	 * @param amount - the amount of records to read from the file
@@ -56,21 +66,83 @@ public class RecordManager {
 	public static HashSet<Integer> loadDatabaseIntoTree(BPlusTree tree, String fileName, int amount) throws IOException{
 		if(tree == null) throw new IOException();
 		storedKeys = new HashSet<Integer>();
-		int order = tree.getOrder();
-		int blockPointer = 0;
 		int counter = 0;
 		br = new BufferedReader(new FileReader(fileName));
-		String line = br.readLine();
-		while (line != null && counter < amount) {
-			String[] record = line.split(";");
-			if(record[0] != null){
-				tree.insert(Integer.parseInt(record[0]), Integer.parseInt(record[0]));
-				storedKeys.add(Integer.parseInt(record[0]));
-				if(counter != 0 && counter % order == 0) blockPointer++;
+		try {
+			String line = br.readLine();
+			while (line != null && counter < amount) {
+				String[] record = line.split(";");
+				if(record[0] != null){
+					tree.insert(Integer.parseInt(record[0]), counter+1);
+					storedKeys.add(Integer.parseInt(record[0]));
+				}
+				counter++;
+				line = br.readLine();
+			}
+		} finally {
+			br.close();
+		}
+		return storedKeys;
+	}
+	/**
+	 * Reads a database file line by line and builds the BPlusTree from its keys with a bulk load instead of
+	 * inserting them one at a time. The keys are collected and sorted in main memory first.
+	 * @param tree - the empty BPlusTree to load
+	 * @param fileName - the file name to read the database from
+	 * @param amount - the amount of records to read from the file
+	 * @param fillFactor - the fraction of each node to fill
+	 * @return the HashSet containing the unique values inserted into the file
+	 * @throws IOException if the tree is not initialized or if any IOException occurs during reading the file.
+	 * @see BPlusTree#bulkLoad(int[], int[], int, double)
+	 */
+	public static HashSet<Integer> bulkLoadDatabaseIntoTree(BPlusTree tree, String fileName, int amount, double fillFactor) throws IOException{
+		return bulkLoadDatabaseIntoTree(tree, fileName, amount, fillFactor, 1);
+	}
+	/**
+	 * Reads a database file line by line and builds the BPlusTree from its keys with a bulk load in which
+	 * several threads build the nodes, see {@link #bulkLoadDatabaseIntoTree(BPlusTree, String, int, double)}.
+	 * @param tree - the empty BPlusTree to load
+	 * @param fileName - the file name to read the database from
+	 * @param amount - the amount of records to read from the file
+	 * @param fillFactor - the fraction of each node to fill
+	 * @param parallelism - the number of threads to build the tree with
+	 * @return the HashSet containing the unique values inserted into the file
+	 * @throws IOException if the tree is not initialized or if any IOException occurs during reading the file.
+	 * @see BPlusTree#bulkLoad(int[], int[], int, double, int)
+	 */
+	public static HashSet<Integer> bulkLoadDatabaseIntoTree(BPlusTree tree, String fileName, int amount, double fillFactor,
+			int parallelism) throws IOException{
+		if(tree == null) throw new IOException();
+		storedKeys = new HashSet<Integer>();
+		HashMap<Integer, Integer> records = new HashMap<Integer, Integer>(); // Key -> position of its last record
+		int counter = 0;
+		br = new BufferedReader(new FileReader(fileName));
+		try {
+			String line = br.readLine();
+			while (line != null && counter < amount) {
+				String[] record = line.split(";");
+				if(record[0] != null){
+					storedKeys.add(Integer.parseInt(record[0]));
+					records.put(Integer.parseInt(record[0]), counter+1);
+				}
+				counter++;
+				line = br.readLine();
 			}
-			counter++;
-			line = br.readLine();
+		} finally {
+			br.close();
+		}
+		int[] keys = new int[storedKeys.size()];
+		int i = 0;
+		for(int key : storedKeys){
+			keys[i++] = key;
+		}
+		Arrays.sort(keys);
+		// As for loadDatabaseIntoTree, the pointer of a key is the position of its record, the last one if repeated
+		int[] pointers = new int[keys.length];
+		for(i=0;i<keys.length;i++){
+			pointers[i] = records.get(keys[i]);
 		}
+		tree.bulkLoad(keys, pointers, keys.length, fillFactor, parallelism);
 		return storedKeys;
 	}
 /**
@@ -0,0 +1,276 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Class for a sequential redo log. Records are appended to an in-memory buffer and made durable by
+ * {@link #commit(long)}. Commits use group commit: the first thread that needs its record on disk
+ * becomes the leader, writes every record buffered so far and forces the log once, while threads arriving
+ * in the meantime wait and are covered by the next single write and force.
+ * Each record is stored as:
+ * Attribute:		Stored @ position:
+ * Payload length	0 - 3
+ * LSN				4 - 11
+ * Payload			12 - 12 + length
+ * Checksum			(CRC32 of LSN and payload) 4 bytes after the payload
+ * Log sequence numbers (LSN) increase by one for every record and are not reset when the log is truncated.
+ * @author Emil Bergwik
+ *
+ */
+public class WriteAheadLog {
+
+	private static final int RECORD_OVERHEAD = 16;
+
+	private final File logFile;
+	private final RandomAccessFile file;
+	private final FileChannel fc;
+	private ByteBuffer pending; // Records appended but not yet written to the log file
+	private long lastLSN = 0; // LSN of the last appended record
+	private long pendingLSN = 0; // LSN of the last record in the pending buffer
+	private long flushedLSN = 0; // Every record up to and including this LSN is durable
+	private boolean flushing = false; // True while a leader is writing and forcing the log
+	private long numForces = 0;
+	private IOException failure; // Set if a failed write could not be undone, after which nothing is written
+
+	/**
+	 * Constructor for the WriteAheadLog. Opens the log file, creating it if it does not exist.
+	 * Records already in the file are kept until {@link #truncate()} is called, so they can be replayed.
+	 * @param name - the file name of the log
+	 * @throws IOException if the log file cannot be opened
+	 */
+	public WriteAheadLog(String name) throws IOException{
+		this.logFile = new File(name);
+		this.file = new RandomAccessFile(logFile, "rw");
+		this.fc = file.getChannel();
+		this.pending = ByteBuffer.allocate(4096);
+	}
+
+	/**
+	 * Appends a record to the log buffer. The record is not durable until it has been committed.
+	 * @param payload - the contents of the record
+	 * @return the LSN of the record
+	 */
+	public synchronized long append(byte[] payload){
+		int length = RECORD_OVERHEAD + payload.length;
+		if(pending.remaining() < length){
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity()*2, pending.position() + length));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		long lsn = ++lastLSN;
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(lsn).array());
+		crc.update(payload);
+		pending.putInt(payload.length);
+		pending.putLong(lsn);
+		pending.put(payload);
+		pending.putInt((int) crc.getValue());
+		pendingLSN = lsn;
+		return lsn;
+	}
+
+	/**
+	 * Blocks until the record with the given LSN (and every record before it) is durable.
+	 * If writing or forcing the log fails, the records of the failed write stay buffered and are written
+	 * by the next commit.
+	 * @param lsn - the LSN to wait for
+	 * @throws IOException if writing or forcing the log fails
+	 */
+	public void commit(long lsn) throws IOException{
+		ByteBuffer batch;
+		long batchLSN;
+		synchronized(this){
+			checkFailure();
+			while(flushedLSN < lsn){
+				if(!flushing) break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the log to be forced.");
+				}
+			}
+			if(flushedLSN >= lsn) return;
+			checkFailure();
+			// Become the leader and take every buffered record with us
+			flushing = true;
+			pending.flip();
+			batch = ByteBuffer.allocate(pending.remaining());
+			batch.put(pending);
+			batch.flip();
+			pending.clear();
+			batchLSN = pendingLSN;
+		}
+		long start = -1;
+		boolean forced = false;
+		try {
+			start = fc.size();
+			long position = start;
+			while(batch.hasRemaining()){
+				position += fc.write(batch, position);
+			}
+			fc.force(false);
+			forced = true;
+		} finally {
+			synchronized(this){
+				if(forced){
+					flushedLSN = batchLSN;
+					numForces++;
+				}else{
+					restore(batch, start);
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Undoes a failed write of a batch: cuts the part that may have been written off the log file and puts the
+	 * records back in front of the ones appended since, so the next commit writes them again. If the file cannot
+	 * be cut, the log is failed, as records appended after a torn record could never be read back.
+	 */
+	private void restore(ByteBuffer batch, long start){
+		if(start >= 0){
+			try {
+				fc.truncate(start);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		batch.rewind();
+		pending.flip();
+		ByteBuffer restored = ByteBuffer.allocate(Math.max(pending.capacity(), batch.remaining() + pending.remaining()));
+		restored.put(batch);
+		restored.put(pending);
+		pending = restored;
+	}
+
+	/* Throws the error that failed the log, if it has failed */
+	private void checkFailure() throws IOException{
+		if(failure != null) throw new IOException("The log failed and cannot be written to.", failure);
+	}
+
+	/**
+	 * Commits every record appended so far.
+	 * @throws IOException if writing or forcing the log fails
+	 */
+	public void commitAll() throws IOException{
+		long lsn;
+		synchronized(this){
+			lsn = lastLSN;
+		}
+		commit(lsn);
+	}
+
+	/**
+	 * Reads the payloads of every complete record stored in the log file, in log order.
+	 * Reading stops at the first incomplete or corrupt record, which is the tail of a write interrupted
+	 * by a crash; that tail is cut off the file.
+	 * @return the payloads of the stored records
+	 * @throws IOException if reading the log file fails
+	 */
+	public synchronized ArrayList<byte[]> readRecords() throws IOException{
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		long position = 0;
+		long end = fc.size();
+		ByteBuffer head = ByteBuffer.allocate(12);
+		while(position + RECORD_OVERHEAD <= end){
+			head.clear();
+			fc.read(head, position);
+			head.flip();
+			int length = head.getInt();
+			long lsn = head.getLong();
+			if(length < 0 || position + RECORD_OVERHEAD + length > end) break;
+			ByteBuffer body = ByteBuffer.allocate(length + 4);
+			while(body.hasRemaining()){
+				if(fc.read(body, position + 12 + body.position()) < 0) break;
+			}
+			body.flip();
+			byte[] payload = new byte[length];
+			body.get(payload);
+			int checksum = body.getInt();
+			CRC32 crc = new CRC32();
+			crc.update(ByteBuffer.allocate(8).putLong(lsn).array());
+			crc.update(payload);
+			if((int) crc.getValue() != checksum) break;
+			records.add(payload);
+			lastLSN = Math.max(lastLSN, lsn);
+			position += RECORD_OVERHEAD + length;
+		}
+		if(position < end){
+			fc.truncate(position);
+		}
+		flushedLSN = lastLSN;
+		pendingLSN = lastLSN;
+		return records;
+	}
+
+	/**
+	 * Empties the log. Must only be called when every logged change has been stored in the index file
+	 * and no records are waiting to be committed.
+	 * @throws IOException if truncating the log file fails
+	 */
+	public synchronized void truncate() throws IOException{
+		if(pending.position() != 0 || flushing){
+			throw new IllegalStateException("The log cannot be truncated while records are uncommitted.");
+		}
+		fc.truncate(0);
+		fc.force(false);
+	}
+
+	/**
+	 * Returns the number of bytes stored in the log, including records not yet written to the file.
+	 * @return the size of the log in bytes
+	 * @throws IOException if the size of the log file cannot be read
+	 */
+	public synchronized long size() throws IOException{
+		return fc.size() + pending.position();
+	}
+
+	public synchronized long getFlushedLSN(){
+		return flushedLSN;
+	}
+
+	public synchronized long getLastLSN(){
+		return lastLSN;
+	}
+
+	/**
+	 * Returns the number of times the log has been forced. With group commit this is lower than
+	 * the number of commits when several threads commit at the same time.
+	 * @return the number of forces performed on the log file
+	 */
+	public synchronized long getNumberOfForces(){
+		return numForces;
+	}
+
+	/**
+	 * Commits all records and closes the log file.
+	 * @throws IOException if forcing or closing the log fails
+	 */
+	public void close() throws IOException{
+		commitAll();
+		file.close();
+	}
+
+	/**
+	 * Deletes the log file, after it closes the file.
+	 * @return true if the file was successfully deleted.
+	 */
+	public boolean deleteFile(){
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return logFile.delete();
+	}
+}
@@ -1,16 +1,27 @@
 package objects;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 import cli.CLI;
 
+import data.BufferPool;
 import data.Bytes;
 import data.FileManager;
+import data.WriteAheadLog;
 
 /**
  * BPlusTree class
- * This class represents the entire BPlusTree and is responsible for inserting and getting a certain pointer
- * for a given key.
+ * This class represents the entire BPlusTree and is responsible for inserting, deleting and getting a certain pointer
+ * for a given key, and for reading ranges of keys.
  * The BPlusTree header contains the following:
  * Attribute:		Stored @ position:
  * Block Size		0 - 3
@@ -18,41 +29,159 @@ import data.FileManager;
  * Pointer size		5
  * Root ID			6-9
  * Root is leaf		10
+ * Header format	11
+ * Header sequence	12-15
+ * Checksum			16-19 (CRC32 of bytes 0-15 and 20-25)
+ * Free list head	20-23
+ * Leaf format		24 (0 = fixed size entries, 1 = delta encoded)
+ * Node layout		25 (1 = the number of keys is stored in the node header, see {@link Node}, 2 = as 1 and
+ * 					every node also stores a high key and a right link, for a B-link tree)
+ * Blocks are accessed through a BufferPool, and the nodes modified by an operation are collected in a
+ * {@link WriteSet} and stored once when the operation ends. Lookups, inserts and deletes may be called from
+ * many threads at once; the way they latch the tree is described in {@link WriteSet}.
  * @author Emil Bergwik
  *
  */
 public class BPlusTree {
 	private FileManager fm;
-	private static byte[] headerBytes;
-	static Node temporaryParent;
-	private static int BLOCK_SIZE, ORDER, KEY_SIZE, POINTER_SIZE, ROOT_ID, ROOT_IS_LEAF;
+	private BufferPool bp;
+	private byte[] headerBytes;
+	private TreeConfig config; // Block size, order and leaf format of this tree
+	private volatile int ROOT_ID, ROOT_IS_LEAF;
+	// The root as of the last appended log record, which is also the root searches of a B-link tree start at
+	private volatile int LOGGED_ROOT_ID, LOGGED_ROOT_IS_LEAF;
+	public static final int LEAF_FORMAT_FIXED = 0, LEAF_FORMAT_DELTA = 1;
+	public static final int NOT_FOUND = 0; // Disk pointer returned for keys that are not in the tree
+	private static final int HEADER_FORMAT_SINGLE = 0, HEADER_FORMAT_DOUBLE = 1;
+	private static final int NODE_LAYOUT = 1, NODE_LAYOUT_LINKED = 2; // Layouts of the nodes written by this version
 	private int TREE_LEVEL;
+	private int HEADER_FORMAT, HEADER_SEQUENCE;
+	private volatile boolean HEADER_DIRTY = false; // True if the in-memory header differs from the stored one
+	private static final long CHECKPOINT_LOG_SIZE = 1 << 26; // Take a checkpoint when the log grows beyond this size
+	private WriteAheadLog log;
+	private final ThreadLocal<WriteSet> writeSets = new ThreadLocal<WriteSet>(){
+		protected WriteSet initialValue(){
+			return new WriteSet(); // Nodes written and blocks latched by the current operation of the thread
+		}
+	};
+	private final ThreadLocal<IOException> failures = new ThreadLocal<IOException>(); // Last failed call of each thread
+	private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock(); // Guards ROOT_ID and ROOT_IS_LEAF
+	private final ReentrantReadWriteLock operationLock = new ReentrantReadWriteLock(); // Shared by inserts and deletes, exclusive for checkpoints
+	private final Object headerLock = new Object(); // Guards the free list and the order of the log records
+	private long numNodeWrites = 0, numBlockWrites = 0;
+	private final ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>(); // Open snapshots, oldest first, guarded by headerLock
+	private FileManager versionStore; // Copies of blocks changed while snapshots are open, guarded by headerLock
+	private int READ_AHEAD = 8; // Number of leaves read ahead by leaf scans
+	private volatile boolean OPTIMISTIC_LOOKUPS = false; // Search without latches, validating the frame versions
+	private static final int OPTIMISTIC_ATTEMPTS = 4; // Optimistic searches made before latching the path instead
+	private static final long RESTART = Long.MIN_VALUE, NOT_CACHED = Long.MIN_VALUE + 1; // Failed optimistic searches
+	private static final int MIN_LOOKUP_TASK_PROBES = 1 << 10; // Fewest keys of a subtree searched by a task of its own in getAll
 
 	public BPlusTree(String fileName, int blockSize){
-		fm = new FileManager(fileName, blockSize);
+		this(fileName, blockSize, BufferPool.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor for the BPlusTree. All state of a tree, including its block size and order (see
+	 * {@link TreeConfig}), is held by the instance, so any number of index files with different block sizes
+	 * or leaf formats can be open in the same JVM.
+	 * @param fileName - the index file to open or create
+	 * @param blockSize - the size of each block in the index file
+	 * @param bufferPoolSize - the number of blocks cached in main memory
+	 */
+	public BPlusTree(String fileName, int blockSize, int bufferPoolSize){
+		this(new FileManager(fileName, blockSize), bufferPoolSize);
+	}
+
+	/**
+	 * Constructor for a BPlusTree stored through the given FileManager backend, such as a {@link data.MappedFileManager}.
+	 * @param fm - the opened index file
+	 * @param bufferPoolSize - the number of blocks cached in main memory
+	 */
+	public BPlusTree(FileManager fm, int bufferPoolSize){
+		this(fm, bufferPoolSize, null);
+	}
+
+	/**
+	 * Constructor for a BPlusTree whose inserts are made durable through a redo log.
+	 * Every insert or delete appends one redo record holding the new images of the blocks it modified together with
+	 * the root and the head of the free list, and returns once that record is durable. Blocks written by an
+	 * operation stay pinned until its record is appended, and the buffer pool forces the log before writing
+	 * back a block, so the index file never holds a change that is not in the log.
+	 * Any records left in the log by an earlier run are replayed before the constructor returns, after which
+	 * a checkpoint is taken and the log is emptied.
+	 * @param fm - the opened index file
+	 * @param bufferPoolSize - the number of blocks cached in main memory
+	 * @param log - the redo log of the index file, or null to run without a log
+	 */
+	public BPlusTree(FileManager fm, int bufferPoolSize, WriteAheadLog log){
+		this(fm, bufferPoolSize, log, LEAF_FORMAT_FIXED);
+	}
+
+	/**
+	 * Constructor for a BPlusTree with the given leaf format. Delta encoded leaves (see {@link LeafNode}) hold
+	 * as many entries as their encoded size allows instead of a fixed order. The leaf format is only used when
+	 * the index file is created; an existing file keeps the format stored in its header.
+	 * @param fm - the opened index file
+	 * @param bufferPoolSize - the number of blocks cached in main memory
+	 * @param log - the redo log of the index file, or null to run without a log
+	 * @param leafFormat - {@link #LEAF_FORMAT_FIXED} or {@link #LEAF_FORMAT_DELTA}
+	 */
+	public BPlusTree(FileManager fm, int bufferPoolSize, WriteAheadLog log, int leafFormat){
+		this(fm, bufferPoolSize, log, leafFormat, false);
+	}
+
+	/**
+	 * Constructor for a BPlusTree with the given leaf format, which is created as a B-link tree if the
+	 * index file is empty and linked is true. An existing file keeps the leaf format and node layout stored
+	 * in its header.
+	 * In a B-link tree (Lehman and Yao) every node stores a high key and a link to its right sibling (see
+	 * {@link Node}), and a search that reaches a node after it has been split finds its key by moving right,
+	 * so searches hold no latches at all, and lookups do not even pin the nodes they read (see
+	 * {@link #getDiskPointer(int)}). Nodes of a B-link tree are never merged, since a search may be on
+	 * its way to any node, so deletes may leave leaves underfull or empty.
+	 * @param fm - the opened index file
+	 * @param bufferPoolSize - the number of blocks cached in main memory
+	 * @param log - the redo log of the index file, or null to run without a log
+	 * @param leafFormat - {@link #LEAF_FORMAT_FIXED} or {@link #LEAF_FORMAT_DELTA}
+	 * @param linked - true to create a B-link tree, whose searches take no latches
+	 */
+	public BPlusTree(FileManager fm, int bufferPoolSize, WriteAheadLog log, int leafFormat, boolean linked){
+		int blockSize = fm.getBlockSize();
+		this.fm = fm;
 		try {
 			if(fm.getSize() == 0){
 				// The file opened was empty
 				// Write new header data first
 				// ROOT_IS_LEAF = 0: No. ROOT_IS_LEAF = 1: Yes.
-				BLOCK_SIZE = blockSize;
-				KEY_SIZE = 4;
-				POINTER_SIZE = 4;
+				config = new TreeConfig(blockSize, 4, 4, leafFormat, linked);
 				ROOT_ID = 0;
 				ROOT_IS_LEAF = 0;
 				TREE_LEVEL = 1;
-				ORDER = calculateOrder();
-				if(ORDER < 3){
+				if(config.getOrder() < 3){
 					System.out.println("The block size was calculated to less than 3, exiting.");
 					System.exit(1);
 				}
-				headerBytes = new byte[BLOCK_SIZE];
+				HEADER_FORMAT = HEADER_FORMAT_DOUBLE;
+				HEADER_SEQUENCE = 0;
+				fm.setFreeListHead(0);
+				headerBytes = new byte[blockSize];
+				// Both header copies are written up front so that blocks 0 and 1 are reserved
 				writeDataToHeader(headerBytes);
+				fm.write(headerBytes, 0);
+				fm.write(headerBytes, 1);
+				fm.force();
 			}else{
 				// Read header block and set info
-				headerBytes = fm.read(0);
+				headerBytes = readHeaderFromFile();
 				readDataFromHeader(headerBytes);
-				if(BLOCK_SIZE != blockSize){
+				fm.setFreeListHead(Bytes.bytesToInt(headerBytes, 20));
+				int layout = Bytes.byteToInt(headerBytes[25]);
+				if(layout != NODE_LAYOUT && layout != NODE_LAYOUT_LINKED){
+					System.out.println("The index file uses an older node layout and has to be rebuilt, exiting.");
+					System.exit(1);
+				}
+				if(config.getBlockSize() != blockSize){
 					System.out.println("The block size contained in header block did not match input block size, exiting.");
 					System.exit(1);
 				}
@@ -60,117 +189,1537 @@ public class BPlusTree {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		LOGGED_ROOT_ID = ROOT_ID;
+		LOGGED_ROOT_IS_LEAF = ROOT_IS_LEAF;
+		bp = new BufferPool(fm, bufferPoolSize);
+		if(log != null){
+			this.log = log;
+			bp.setWriteAheadLog(log);
+			try {
+				recover();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Replays the records stored in the redo log by writing the logged block images and restoring the
+	 * root, then takes a checkpoint so the log can be emptied.
+	 * @throws IOException if reading the log or writing the blocks fails
+	 */
+	private void recover() throws IOException{
+		ArrayList<byte[]> records = log.readRecords();
+		if(records.isEmpty()) return;
+		byte[] block = new byte[config.getBlockSize()];
+		for(byte[] record : records){
+			ByteBuffer in = ByteBuffer.wrap(record);
+			ROOT_ID = in.getInt();
+			ROOT_IS_LEAF = in.get();
+			fm.setFreeListHead(in.getInt());
+			int blockCount = in.getInt();
+			for(int i=0;i<blockCount;i++){
+				int blockID = in.getInt();
+				in.get(block);
+				while(bp.getSize() < blockID){
+					bp.write(new byte[config.getBlockSize()]);
+				}
+				bp.write(block, blockID);
+			}
+		}
+		LOGGED_ROOT_ID = ROOT_ID;
+		LOGGED_ROOT_IS_LEAF = ROOT_IS_LEAF;
+		HEADER_DIRTY = true;
+		checkpoint();
+	}
+
+	/**
+	 * Reads the current header from the index file. Files created with header format 1 keep two copies of the
+	 * header in blocks 0 and 1, written alternately with increasing sequence numbers, so a crash in the middle
+	 * of a header write leaves the previous header intact. Both copies are read and the valid one with the
+	 * highest sequence number is returned. Files with header format 0 keep a single header in block 0.
+	 * @return the bytes of the current header block
+	 * @throws IOException if reading the header blocks fails
+	 */
+	private byte[] readHeaderFromFile() throws IOException{
+		byte[] first = fm.read(0);
+		HEADER_FORMAT = Bytes.byteToInt(first[11]);
+		if(HEADER_FORMAT == HEADER_FORMAT_SINGLE){
+			HEADER_SEQUENCE = 0;
+			return first;
+		}
+		byte[] second = fm.getSize() > 1 ? fm.read(1) : null;
+		boolean firstValid = isValidHeader(first);
+		boolean secondValid = second != null && isValidHeader(second);
+		if(!firstValid && !secondValid){
+			System.out.println("Neither copy of the header block is valid, exiting.");
+			System.exit(1);
+		}
+		byte[] current = first;
+		if(!firstValid || (secondValid && Bytes.bytesToInt(second, 12) > Bytes.bytesToInt(first, 12))){
+			current = second;
+		}
+		HEADER_SEQUENCE = Bytes.bytesToInt(current, 12);
+		return current;
+	}
+
+	/* Checks that the stored checksum of a header copy matches its contents */
+	private static boolean isValidHeader(byte[] header){
+		return Bytes.bytesToInt(header, 16) == headerChecksum(header);
+	}
+
+	/* Calculates the checksum of the header fields, skipping the checksum itself */
+	private static int headerChecksum(byte[] header){
+		CRC32 crc = new CRC32();
+		crc.update(header, 0, 16);
+		crc.update(header, 20, 6);
+		return (int) crc.getValue();
 	}
 
 
+	/**
+	 * Inserts the key with its disk pointer, or replaces the disk pointer if the key is in the tree already.
+	 * Keys may be any int, including 0 and negative keys, but disk pointer 0 is reserved for {@link #NOT_FOUND}.
+	 * May be called by several threads at once.
+	 * @param key - the key to insert
+	 * @param value - the disk pointer of the key
+	 * @throws IllegalArgumentException if the disk pointer is {@link #NOT_FOUND}
+	 */
 	public void insert(int key, int value){
+		if(value == NOT_FOUND){
+			throw new IllegalArgumentException("Disk pointer " + NOT_FOUND + " of key " + key + " is reserved for keys that are not in the tree");
+		}
+		try {
+			long lsn;
+			operationLock.readLock().lock();
+			try {
+				lsn = insertIntoTree(key, value, null);
+			} finally {
+				operationLock.readLock().unlock();
+			}
+			endCall(lsn);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Inserts a batch of keys with their disk pointers, replacing the disk pointer of keys that are in the tree
+	 * already. The batch is sorted first, then the tree is descended once per leaf the keys go to and all keys of
+	 * the batch that belong to the leaf and fit in it are merged into it in one pass, so the leaf is latched,
+	 * written and logged once instead of once per key. A leaf that is full is split for the next key, after which
+	 * the remaining keys are merged into the halves. The log is forced once, at the end of the batch.
+	 * If a key occurs more than once in the batch, its last disk pointer is kept.
+	 * May be called by several threads at once; each leaf is updated as one operation, so other threads may see
+	 * part of the batch before it is done.
+	 * @param keys - the keys to insert, in any order
+	 * @param values - the disk pointers of the keys
+	 * @throws IllegalArgumentException if the arrays have different lengths or a disk pointer is {@link #NOT_FOUND}
+	 * @see BatchInserter
+	 */
+	public void insertAll(int[] keys, int[] values){
+		if(keys.length != values.length){
+			throw new IllegalArgumentException(keys.length + " keys but " + values.length + " values");
+		}
+		insertAll(keys, values, keys.length);
+	}
+
+	/**
+	 * Inserts the first pairs of the arrays as a batch, like {@link #insertAll(int[], int[])}.
+	 * @param keys - the keys to insert, in any order
+	 * @param values - the disk pointers of the keys
+	 * @param count - the number of pairs to insert from the start of the arrays
+	 * @throws IllegalArgumentException if an array has fewer than count elements or a disk pointer is {@link #NOT_FOUND}
+	 */
+	public void insertAll(int[] keys, int[] values, int count){
+		if(count < 0 || count > keys.length || count > values.length){
+			throw new IllegalArgumentException("Cannot insert " + count + " pairs from arrays of " + keys.length + 
+					" keys and " + values.length + " values");
+		}
+		checkPointers(keys, values, count);
+		Batch batch = new Batch(keys, values, count);
+		try {
+			long lsn = 0;
+			while(batch.next < batch.keys.length){
+				operationLock.readLock().lock();
+				try {
+					lsn = Math.max(lsn, insertIntoTree(batch.keys[batch.next], batch.values[batch.next], batch));
+				} finally {
+					operationLock.readLock().unlock();
+				}
+			}
+			endCall(lsn);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Returns an inserter that collects pairs and inserts them with {@link #insertAll(int[], int[], int)}
+	 * whenever the given number of pairs has been collected.
+	 * @param batchSize - the number of pairs inserted together
+	 * @return the inserter
+	 * @throws IllegalArgumentException if the batch size is not positive
+	 */
+	public BatchInserter batchInserter(int batchSize){
+		return new BatchInserter(this, batchSize);
+	}
+
+	/* Checks that none of the first count disk pointers is NOT_FOUND, which could not be told from a missing key */
+	private static void checkPointers(int[] keys, int[] pointers, int count){
+		for(int i=0;i<count;i++){
+			if(pointers[i] == NOT_FOUND){
+				throw new IllegalArgumentException("Disk pointer " + NOT_FOUND + " of key " + keys[i] + " at position " + i 
+						+ " is reserved for keys that are not in the tree");
+			}
+		}
+	}
+
+	/**
+	 * Inserts the key as one operation and appends its redo record to the log, if any.
+	 * The leaf is first latched alone; if it may split, the insert is made again with the path latched.
+	 * @param batch - the batch the key is the next entry of, or null for a single key. The following entries
+	 * of the batch that belong to the same leaf are inserted by the same operation.
+	 * @return the LSN of the record, or 0 if no record was appended
+	 */
+	private long insertIntoTree(int key, int value, Batch batch) throws IOException{
+		if(config.isLinked()) return insertIntoLinkedTree(key, value, batch);
+		WriteSet writeSet = writeSets.get();
+		boolean keepAncestors = false;
+		ArrayList<Integer> unused = null; // Blocks allocated by a failed attempt
+		while(true){
+			try {
+				if(unused != null){
+					for(int blockID : unused){
+						freeBlock(blockID);
+					}
+				}
+				LeafNode leaf = keepAncestors ? null : latchLeaf(key, value, true, writeSet);
+				if(leaf == null){
+					leaf = latchPath(key, value, true, keepAncestors, writeSet);
+				}
+				if(leaf == null){
+					// The tree is empty, the new leaf becomes the root
+					leaf = new LeafNode(allocateBlock(), config);
+					this.setRoot(leaf.getID(), 1);
+				}
+				insertInto(leaf, key, value, batch);
+				return endOperation(writeSet);
+			} catch (PathNotLatchedException e) {
+				// Splits reached a node above the latched ones, retry with every node of the path latched
+				unused = writeSet.getAllocated();
+				keepAncestors = true;
+			} finally {
+				endFailedOperation(writeSet);
+			}
+		}
+	}
+
+	/**
+	 * Inserts the key into a B-link tree as one operation and appends its redo record to the log, if any.
+	 * Only the leaf is latched on the way down; splits latch the parents they are carried up to.
+	 * @param batch - the batch the key is the next entry of, or null for a single key
+	 * @return the LSN of the record, or 0 if no record was appended
+	 */
+	private long insertIntoLinkedTree(int key, int value, Batch batch) throws IOException{
+		WriteSet writeSet = writeSets.get();
+		try {
+			LeafNode leaf = latchLinkedLeaf(key, writeSet);
+			while(leaf == null){
+				// The tree is empty, the new leaf becomes the root unless another insert has made one first
+				rootLatch.writeLock().lock();
+				if(ROOT_ID == 0){
+					LeafNode root = new LeafNode(allocateBlock(), config);
+					this.setRoot(root.getID(), 1);
+					insertInto(root, key, value, batch);
+					return endOperation(writeSet);
+				}
+				releaseRootLatch();
+				leaf = latchLinkedLeaf(key, writeSet);
+			}
+			insertInto(leaf, key, value, batch);
+			return endOperation(writeSet);
+		} finally {
+			endFailedOperation(writeSet);
+		}
+	}
+
+	/**
+	 * Inserts the key into the latched leaf, together with the following entries of the batch that belong to the
+	 * leaf and fit in it. If the first entry does not fit, the leaf is split for it alone. The batch is only moved
+	 * past the inserted entries once the insert has succeeded, so a retried operation inserts them again.
+	 */
+	private void insertInto(LeafNode leaf, int key, int value, Batch batch) throws IOException{
+		if(batch == null){
+			leaf.insert(key, value, this);
+			return;
+		}
+		int inserted = leaf.insertRun(batch.keys, batch.values, batch.next, this);
+		if(inserted == batch.next){
+			leaf.insert(key, value, this);
+			inserted++;
+		}
+		batch.next = inserted;
+	}
+
+	/**
+	 * Builds the tree bottom-up from sorted <key, pointer> pairs, which is much faster than inserting them
+	 * one at a time: the leaves are packed from left to right up to the fill factor and the internal levels
+	 * are built on top of them, every block being written once and in ascending order. The loaded blocks are
+	 * not logged; a checkpoint is taken when loading ends, so a crash during the load leaves an empty tree.
+	 * @param keys - the keys, in strictly ascending order
+	 * @param pointers - the disk pointers of the keys
+	 * @param count - the number of pairs to load from the start of the arrays
+	 * @param fillFactor - the fraction of each node to fill, such as 1.0 for a read only index or less to
+	 * leave room for later inserts
+	 * @throws IllegalStateException if the tree is not empty
+	 * @throws IllegalArgumentException if the keys are not strictly ascending or the fill factor is not
+	 * between 0 and 1
+	 * @see BulkLoader
+	 */
+	public void bulkLoad(int[] keys, int[] pointers, int count, double fillFactor){
+		bulkLoad(keys, pointers, count, fillFactor, 1);
+	}
+
+	/**
+	 * Builds the tree bottom-up from sorted <key, pointer> pairs like {@link #bulkLoad(int[], int[], int, double)},
+	 * with the nodes built and written by several threads of a ForkJoinPool. The nodes are written to a range of
+	 * blocks reserved at the end of the file, in the same layout as a load by one thread.
+	 * @param keys - the keys, in strictly ascending order
+	 * @param pointers - the disk pointers of the keys
+	 * @param count - the number of pairs to load from the start of the arrays
+	 * @param fillFactor - the fraction of each node to fill
+	 * @param parallelism - the number of threads to build the tree with, 1 to build it in the calling thread
+	 * @throws IllegalStateException if the tree is not empty
+	 * @throws IllegalArgumentException if the keys are not strictly ascending, a disk pointer is {@link #NOT_FOUND},
+	 * the fill factor is not between 0 and 1 or the parallelism is less than 1
+	 */
+	public void bulkLoad(int[] keys, int[] pointers, int count, double fillFactor, int parallelism){
+		if(fillFactor <= 0 || fillFactor > 1){
+			throw new IllegalArgumentException("The fill factor must be between 0 and 1, was " + fillFactor);
+		}
+		if(parallelism < 1){
+			throw new IllegalArgumentException("The parallelism must be at least 1, was " + parallelism);
+		}
+		for(int i=1;i<count;i++){
+			if(keys[i-1] >= keys[i]){
+				throw new IllegalArgumentException("The keys must be strictly ascending, key " + keys[i] 
+						+ " at position " + i + " follows " + keys[i-1]);
+			}
+		}
+		checkPointers(keys, pointers, count);
+		WriteSet writeSet = writeSets.get();
+		// No other insert or delete may run while the tree is built, lookups only see the tree once it is done
+		operationLock.writeLock().lock();
 		try {
-			headerBytes = fm.read(0);
-			readDataFromHeader(headerBytes);
 			if(ROOT_ID != 0){
-				// There is a root, find it and start inserting from there
-				if(ROOT_IS_LEAF == 1){
-					// Root was leaf, just insert the key value.
-					LeafNode root = new LeafNode(fm.read(ROOT_ID));
-					root.insert(key, value, this);					
-				}else{
-					// Root is internal, find the correct leaf and write to it
-					LeafNode node = get(key, ROOT_ID);
-					node.insert(key, value, this);
+				if(ROOT_IS_LEAF == 0 || readLeaf(ROOT_ID).getNumberOfKeys() != 0){
+					throw new IllegalStateException("Bulk loading requires an empty tree.");
+				}
+				// Release the empty root leaf left by deletes, unless a search of a B-link tree may still read it
+				rootLatch.writeLock().lock();
+				if(!config.isLinked()) freeBlock(ROOT_ID);
+				ROOT_ID = 0;
+				HEADER_DIRTY = true;
+				endOperation(writeSet);
+			}
+			if(count == 0) return;
+			BulkLoader loader = new BulkLoader(bp, config, fillFactor);
+			int rootID;
+			if(parallelism > 1){
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+				try {
+					rootID = loader.load(keys, pointers, count, pool);
+				} finally {
+					pool.shutdown();
 				}
 			}else{
-				LeafNode root = new LeafNode(1);
-				root.insert(key, value, this);
-				this.setRoot(root.getID(), 1);
+				rootID = loader.load(keys, pointers, count);
 			}
+			rootLatch.writeLock().lock();
+			ROOT_ID = rootID;
+			ROOT_IS_LEAF = loader.getHeight() == 1 ? 1 : 0;
+			LOGGED_ROOT_ID = ROOT_ID;
+			LOGGED_ROOT_IS_LEAF = ROOT_IS_LEAF;
+			releaseRootLatch();
+			TREE_LEVEL = loader.getHeight();
+			HEADER_DIRTY = true;
+			checkpoint();
 		} catch (IOException e) {
 			e.printStackTrace();
-		}		
+		} finally {
+			endFailedOperation(writeSet);
+			operationLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes the key from the tree. Nodes that fall below the minimum fill borrow an entry from a sibling
+	 * or are merged with it, and the blocks of merged nodes are put on the free list. When the root is an
+	 * internal node left with a single child, that child becomes the root.
+	 * @param key - the key to delete
+	 * @return true if the key was in the tree
+	 */
+	public boolean delete(int key){
+		try {
+			long lsn;
+			operationLock.readLock().lock();
+			try {
+				lsn = deleteFromTree(key);
+			} finally {
+				operationLock.readLock().unlock();
+			}
+			if(lsn < 0) return false;
+			endCall(lsn);
+			return true;
+		} catch (IOException e) {
+			failed(e);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the key as one operation and appends its redo record to the log, if any.
+	 * The leaf is first latched alone; if it may become underfull, the delete is made with the path latched.
+	 * In a B-link tree only the leaf is latched.
+	 * @return the LSN of the record, 0 if no record was appended, or -1 if the key was not in the tree
+	 */
+	private long deleteFromTree(int key) throws IOException{
+		WriteSet writeSet = writeSets.get();
+		try {
+			LeafNode leaf;
+			if(config.isLinked()){
+				// Leaves of a B-link tree are never merged, so latching the leaf is always enough
+				leaf = latchLinkedLeaf(key, writeSet);
+			}else{
+				leaf = latchLeaf(key, 0, false, writeSet);
+				if(leaf == null){
+					leaf = latchPath(key, 0, false, false, writeSet);
+				}
+			}
+			if(leaf == null || !leaf.delete(key, this)) return -1;
+			return endOperation(writeSet);
+		} finally {
+			endFailedOperation(writeSet);
+		}
+	}
+
+	/**
+	 * Waits for the log record of an insert or delete to be durable, outside the locks of the tree so the
+	 * commits of concurrent operations share one force, and takes a checkpoint if one is due.
+	 * Without a log, a changed root is stored right away by taking a checkpoint.
+	 * @param lsn - the LSN of the record of the operation
+	 * @throws IOException if forcing the log or the checkpoint fails
+	 */
+	private void endCall(long lsn) throws IOException{
+		if(log != null){
+			log.commit(lsn);
+			if(log.size() > CHECKPOINT_LOG_SIZE){
+				checkpoint();
+			}
+		}else if(HEADER_DIRTY){
+			// The root changed during this operation
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Completes an operation that modified the tree. The blocks freed by the operation are put on the free
+	 * list, the write set is stored in the buffer pool and, with a log, one record containing the images of
+	 * all blocks written by the operation is appended. Then the latches of the operation are released.
+	 * The record is appended while the blocks are still latched, so records changing the same block are
+	 * logged in the order the changes were made.
+	 * @param writeSet - the write set of the operation
+	 * @return the LSN of the appended record, or 0 if no record was appended
+	 * @throws IOException if storing the blocks fails
+	 */
+	private long endOperation(WriteSet writeSet) throws IOException{
+		long lsn = 0;
+		FileManager store = null;
+		ArrayList<Snapshot.Version> preserved = null;
+		synchronized(headerLock){
+			if(!snapshots.isEmpty()){
+				store = versionStore;
+				preserved = preserveBlocks(writeSet);
+			}
+			writeSet.linkFreed(fm);
+			writeSet.flush(bp, config.isLinked());
+			if(rootLatch.isWriteLockedByCurrentThread()){
+				// Only an operation holding the root latch changes the root
+				LOGGED_ROOT_ID = ROOT_ID;
+				LOGGED_ROOT_IS_LEAF = ROOT_IS_LEAF;
+			}
+			if(log != null && !writeSet.isEmpty()){
+				int blockCount = writeSet.getBlockIDs().size();
+				ByteBuffer record = ByteBuffer.allocate(13 + blockCount * (4 + config.getBlockSize()));
+				record.putInt(LOGGED_ROOT_ID);
+				record.put((byte) LOGGED_ROOT_IS_LEAF);
+				record.putInt(fm.getFreeListHead());
+				record.putInt(blockCount);
+				for(int blockID : writeSet.getBlockIDs()){
+					record.putInt(blockID);
+					record.put(bp.read(blockID));
+				}
+				lsn = log.append(record.array());
+			}
+			numNodeWrites += writeSet.getNumberOfNodeWrites();
+			numBlockWrites += writeSet.getNumberOfBlockWrites();
+		}
+		writeSet.release(bp, lsn);
+		releaseRootLatch();
+		if(preserved != null) storeVersions(store, preserved);
+		return lsn;
+	}
+
+	/**
+	 * Takes a snapshot of the tree, a consistent view of the tree as it is now that later operations do not
+	 * change. The snapshot is taken between operations, as the blocks of an operation are stored at once.
+	 * @return the snapshot, which should be closed once it is no longer read
+	 * @see Snapshot
+	 */
+	public Snapshot snapshot(){
+		synchronized(headerLock){
+			if(versionStore == null){
+				String name = fm.getFileName() + ".versions";
+				new File(name).delete(); // Left by a process that ended with snapshots open
+				versionStore = new FileManager(name, config.getBlockSize());
+				try {
+					// Block 0 marks the end of the free list, so it never holds a copy
+					versionStore.write(new byte[config.getBlockSize()]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			Snapshot snapshot = new Snapshot(this, versionStore, LOGGED_ROOT_ID, bp.getSize());
+			snapshots.add(snapshot);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Closes a snapshot. The copies of blocks that no other open snapshot reads are freed, and the version
+	 * store is deleted when the last snapshot is closed.
+	 * @param snapshot - the snapshot to close
+	 */
+	void releaseSnapshot(Snapshot snapshot){
+		synchronized(headerLock){
+			if(!snapshots.remove(snapshot)) return;
+			synchronized(versionStore){
+				try {
+					for(Snapshot.Version version : snapshot.versions.values()){
+						// A copy that has not been written yet is dropped by the operation that writes it
+						if(--version.references == 0 && version.block != 0 && !snapshots.isEmpty()){
+							versionStore.free(version.block);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if(snapshots.isEmpty()){
+					versionStore.deleteFile();
+					versionStore = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the blocks an operation is about to store, for the open snapshots that may read them and have no
+	 * copy of them yet. If the newest snapshot has a copy of a block, every older one has too, as each copy is
+	 * given to all snapshots without one; so a block is copied at most once per snapshot taken, however often
+	 * it is changed. Blocks added to the tree after the newest snapshot and blocks that are free (and are being
+	 * allocated) are not part of any snapshot that has no copy of them.
+	 * The copies are only made in memory, where snapshots read them until {@link #storeVersions(FileManager, ArrayList)}
+	 * has written them to the version store, so the version store is not written with the header lock held.
+	 * Must be called with the header lock held, before the blocks are stored.
+	 * @param writeSet - the write set of the operation
+	 * @return the copies made, or null if none were
+	 * @throws IOException if pinning a block fails
+	 */
+	private ArrayList<Snapshot.Version> preserveBlocks(WriteSet writeSet) throws IOException{
+		Snapshot newest = snapshots.get(snapshots.size()-1);
+		ArrayList<Snapshot.Version> preserved = null;
+		for(int blockID : writeSet.getBlockIDs()){
+			if(blockID >= newest.getSize() || newest.versions.containsKey(blockID)) continue;
+			// The operation has latched the block, so the frame holds the stored contents and is cached
+			byte[] block = bp.pin(blockID);
+			try {
+				if(FileManager.isFreeBlock(block, blockID)) continue;
+				Snapshot.Version version = new Snapshot.Version(block.clone());
+				for(Snapshot snapshot : snapshots){
+					if(blockID < snapshot.getSize() && snapshot.versions.putIfAbsent(blockID, version) == null){
+						version.references++;
+					}
+				}
+				if(preserved == null) preserved = new ArrayList<Snapshot.Version>();
+				preserved.add(version);
+			} finally {
+				bp.unpin(blockID, false);
+			}
+		}
+		return preserved;
+	}
+
+	/**
+	 * Writes the copies made by {@link #preserveBlocks(WriteSet)} to the version store, after the operation has
+	 * released its latches and the header lock. Operations writing copies wait for each other, but not for the
+	 * operations of the tree. Copies whose snapshots have all been closed in the meantime are dropped.
+	 * @param store - the version store the copies were made for
+	 * @param preserved - the copies
+	 */
+	private void storeVersions(FileManager store, ArrayList<Snapshot.Version> preserved){
+		synchronized(store){
+			try {
+				for(Snapshot.Version version : preserved){
+					if(version.references > 0){
+						version.block = store.allocate();
+						store.write(version.image, version.block);
+					}
+					version.image = null;
+				}
+			} catch (IOException e) {
+				// The copies that were not written stay in memory
+				e.printStackTrace();
+			}
+		}
 	}
 
+	/**
+	 * Copies the contents of a block, latching the block in shared mode while it is copied unless the tree is a
+	 * B-link tree.
+	 * @param blockID - the block to copy
+	 * @return the copy
+	 * @throws IOException if reading the block fails
+	 */
+	byte[] copyBlock(int blockID) throws IOException{
+		byte[] copy = pinForRead(blockID).clone();
+		unpinForRead(blockID);
+		return copy;
+	}
+
+	/* Releases the pins and latches of an operation without storing anything, used when it ended early or failed */
+	private void endFailedOperation(WriteSet writeSet){
+		writeSet.release(bp, 0);
+		releaseRootLatch();
+	}
+
+	private void releaseRootLatch(){
+		if(rootLatch.isWriteLockedByCurrentThread()){
+			rootLatch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Descends to the leaf that should contain the key and latches it exclusively, latching the internal
+	 * nodes on the way in shared mode and only until their child is latched.
+	 * @param key - the key to insert or delete
+	 * @param pointer - the disk pointer to insert
+	 * @param insert - true for an insert, false for a delete
+	 * @param writeSet - the write set of the operation
+	 * @return the leaf, or null if the tree is empty or the leaf is not safe for the operation, in which case
+	 * nothing is latched and the operation has to use {@link #latchPath(int, int, boolean, boolean, WriteSet)}
+	 * @throws IOException if reading a block fails
+	 */
+	private LeafNode latchLeaf(int key, int pointer, boolean insert, WriteSet writeSet) throws IOException{
+		rootLatch.readLock().lock();
+		int blockID = ROOT_ID;
+		boolean isRoot = true;
+		byte[] block;
+		try {
+			if(blockID == 0) return null;
+			block = ROOT_IS_LEAF == 1 ? writeSet.latch(bp, blockID, true) : bp.pinShared(blockID);
+		} finally {
+			rootLatch.readLock().unlock();
+		}
+		long rangeEnd = Long.MAX_VALUE;
+		while(!Bytes.byteToBoolean(block[4])){
+			InternalNode node = InternalNode.wrap(block, config);
+			int index = node.upperBound(key);
+			if(index < node.getNumberOfKeys()) rangeEnd = node.getKey(index);
+			int childID = node.getPointer(index);
+			byte[] child = bp.pinShared(childID);
+			if(Bytes.byteToBoolean(child[4])){
+				// The parent is still latched, so the leaf cannot be split or merged before it is latched again
+				bp.unpinShared(childID);
+				child = writeSet.latch(bp, childID, true);
+			}
+			bp.unpinShared(blockID);
+			blockID = childID;
+			block = child;
+			isRoot = false;
+		}
+		LeafNode leaf = new LeafNode(block, config);
+		leaf.rangeEnd = rangeEnd;
+		if(insert ? leaf.isSafeForInsert(key, pointer) : isRoot || leaf.isSafeForDelete(key)){
+			return leaf;
+		}
+		writeSet.unlatchAll(bp);
+		return null;
+	}
+
+	/**
+	 * Descends to the leaf that should contain the key, latching the root and every node on the way
+	 * exclusively. Once a node is safe for the operation, the latches of its ancestors are released.
+	 * The parents of the latched nodes are set, so splits and merges can be carried up to them.
+	 * @param key - the key to insert or delete
+	 * @param pointer - the disk pointer to insert
+	 * @param insert - true for an insert, false for a delete
+	 * @param keepAncestors - true to keep every latch even above safe nodes
+	 * @param writeSet - the write set of the operation
+	 * @return the leaf, or null if the tree is empty (the root latch is then held)
+	 * @throws IOException if reading a block fails
+	 */
+	private LeafNode latchPath(int key, int pointer, boolean insert, boolean keepAncestors, WriteSet writeSet) throws IOException{
+		rootLatch.writeLock().lock();
+		int blockID = ROOT_ID;
+		Node parent = null;
+		long rangeEnd = Long.MAX_VALUE;
+		while(blockID != 0){
+			byte[] block = writeSet.latch(bp, blockID, true);
+			Node node;
+			if(Bytes.byteToBoolean(block[4])){
+				node = new LeafNode(block, config);
+			}else{
+				node = new InternalNode(block, config);
+			}
+			node.setParent(parent);
+			if(!keepAncestors && isSafe(node, parent == null, insert, key, pointer)){
+				writeSet.unlatchAbove(bp, blockID);
+				releaseRootLatch();
+			}
+			if(node.isLeaf()){
+				((LeafNode) node).rangeEnd = rangeEnd;
+				return (LeafNode) node;
+			}
+			parent = node;
+			int index = node.upperBound(key);
+			if(index < node.getNumberOfKeys()) rangeEnd = node.getKey(index);
+			blockID = node.getPointer(index);
+		}
+		return null;
+	}
+
+	/* Checks if the operation cannot change the parent of the node */
+	private boolean isSafe(Node node, boolean isRoot, boolean insert, int key, int pointer){
+		if(node.isLeaf()){
+			LeafNode leaf = (LeafNode) node;
+			return insert ? leaf.isSafeForInsert(key, pointer) : isRoot || leaf.isSafeForDelete(key);
+		}
+		int count = node.getNumberOfKeys();
+		if(insert){
+			// A delta encoded leaf may be split twice by one insert
+			return count + (config.isLeafDeltaEncoded() ? 2 : 1) <= config.getOrder();
+		}
+		// A root needs a key left to stay the root, other nodes their minimum fill
+		return isRoot ? count > 1 : count > config.getOrder()/2;
+	}
+
+	/**
+	 * Descends a B-link tree to the leaf that should contain the key without latching any node, then latches
+	 * the leaf exclusively, moving right if it has been split in between. Each internal node passed on the way
+	 * down is copied and set as the parent of the next one, so a split can find the node above it again.
+	 * @param key - the key to insert or delete
+	 * @param writeSet - the write set of the operation
+	 * @return the leaf, or null if the tree is empty
+	 * @throws IOException if reading a block fails
+	 */
+	private LeafNode latchLinkedLeaf(int key, WriteSet writeSet) throws IOException{
+		int blockID = LOGGED_ROOT_ID;
+		if(blockID == 0) return null;
+		Node parent = null;
+		byte[] block = bp.pin(blockID);
+		while(!Bytes.byteToBoolean(block[4])){
+			int nextID = Node.linkFor(block, key);
+			if(nextID == 0){
+				InternalNode node = new InternalNode(block, config);
+				node.setParent(parent);
+				parent = node;
+				nextID = node.get(key);
+			}
+			byte[] next = bp.pin(nextID);
+			bp.unpin(blockID, false);
+			blockID = nextID;
+			block = next;
+		}
+		bp.unpin(blockID, false);
+		LeafNode leaf = (LeafNode) latchLinked(blockID, key, writeSet);
+		leaf.setParent(parent);
+		leaf.rangeEnd = leaf.getRightLink() != 0 ? leaf.getHighKey() : Long.MAX_VALUE;
+		return leaf;
+	}
+
+	/**
+	 * Latches the node of a B-link tree that the key belongs to exclusively, starting at the given node and
+	 * moving right while the key is at or above the high key. The latch of a node moved right from is
+	 * released again, unless the operation has modified the node.
+	 * @param blockID - the node to start at
+	 * @param key - the key
+	 * @param writeSet - the write set of the operation
+	 * @return a copy of the node, or the node itself if the operation has modified it already
+	 * @throws IOException if reading a block fails
+	 */
+	private Node latchLinked(int blockID, int key, WriteSet writeSet) throws IOException{
+		while(true){
+			Node node = writeSet.get(blockID);
+			boolean modified = node != null;
+			if(!modified){
+				byte[] block = writeSet.latch(bp, blockID, true);
+				if(Bytes.byteToBoolean(block[4])){
+					node = new LeafNode(block, config);
+				}else{
+					node = new InternalNode(block, config);
+				}
+			}
+			int rightID = node.linkFor(key);
+			if(rightID == 0) return node;
+			if(!modified) writeSet.unlatch(bp, blockID);
+			blockID = rightID;
+		}
+	}
+
+	/**
+	 * Latches the parent of a node of a B-link tree that has been split, so the separator of the split can be
+	 * inserted into it. The parent is found from the node above the split node on the way down, moving right
+	 * if that node has been split since. If the split node was the highest node on the way down, it is either
+	 * still the root, or the tree has grown since and the level above it is found by a new descent.
+	 * @param node - the node that has been split, which is still latched
+	 * @param separator - the smallest key of the new right node
+	 * @return the parent, latched exclusively, or null if the node is the root, in which case the root latch is held
+	 * @throws IOException if reading a block fails
+	 */
+	InternalNode latchParent(Node node, int separator) throws IOException{
+		Node above = node.parent;
+		if(above == null){
+			boolean held = rootLatch.isWriteLockedByCurrentThread();
+			if(!held) rootLatch.writeLock().lock();
+			if(ROOT_ID == node.getID()) return null;
+			// Other splits may be waiting for the root latch while holding the nodes above this one
+			if(!held) rootLatch.writeLock().unlock();
+			above = descendToLevel(separator, levelOf(node) + 1);
+		}
+		InternalNode parent = (InternalNode) latchLinked(above.getID(), separator, writeSets.get());
+		parent.setParent(above.parent);
+		return parent;
+	}
+
+	/**
+	 * Descends a B-link tree towards the key without latching any node, down to the given level.
+	 * @param key - the key to descend towards
+	 * @param level - the level to stop at, counted from the leaves, which are at level 1
+	 * @return a copy of the node at the level, with copies of the nodes above it set as its parents
+	 * @throws IOException if reading a block fails
+	 */
+	private Node descendToLevel(int key, int level) throws IOException{
+		ArrayList<Node> path = new ArrayList<Node>();
+		Node parent = null;
+		int blockID = LOGGED_ROOT_ID;
+		while(true){
+			byte[] block = bp.pin(blockID);
+			Node node;
+			if(Bytes.byteToBoolean(block[4])){
+				node = new LeafNode(block, config);
+			}else{
+				node = new InternalNode(block, config);
+			}
+			bp.unpin(blockID, false);
+			int rightID = node.linkFor(key);
+			if(rightID != 0){
+				blockID = rightID;
+				continue;
+			}
+			node.setParent(parent);
+			path.add(node);
+			if(node.isLeaf()) return path.get(path.size() - level);
+			parent = node;
+			blockID = ((InternalNode) node).get(key);
+		}
+	}
+
+	/* Counts the levels from the node down to the leaves, which are at level 1, by following the first child pointers */
+	private int levelOf(Node node) throws IOException{
+		int level = 1;
+		int blockID = node.isLeaf() ? 0 : node.getPointer(0);
+		while(blockID != 0){
+			byte[] block = bp.pin(blockID);
+			int childID = Bytes.byteToBoolean(block[4]) ? 0 : InternalNode.wrap(block, config).getPointer(0);
+			bp.unpin(blockID, false);
+			level++;
+			blockID = childID;
+		}
+		return level;
+	}
+
+	/**
+	 * Checks that the current operation has latched the node it is about to modify, or created it.
+	 * An insert splitting more nodes than it expected finds the parent of the highest one unlatched.
+	 * @param node - the node to modify
+	 * @throws PathNotLatchedException if the node is not latched, the operation is then retried
+	 */
+	void requireLatched(Node node){
+		if(!writeSets.get().mayModify(node.getID())){
+			throw new PathNotLatchedException();
+		}
+	}
+
+	/**
+	 * The pairs of a batch being inserted, sorted by key with pairs of equal keys kept in the order of the batch,
+	 * and the position of the next pair to insert.
+	 */
+	private static class Batch {
+		final int[] keys, values;
+		int next;
+
+		Batch(int[] keys, int[] values, int count){
+			// The position in the batch is sorted along with the key, which keeps the sort stable
+			long[] entries = new long[count];
+			for(int i=0;i<count;i++){
+				entries[i] = (long) keys[i] << 32 | i;
+			}
+			Arrays.sort(entries);
+			this.keys = new int[count];
+			this.values = new int[count];
+			for(int i=0;i<count;i++){
+				this.keys[i] = (int) (entries[i] >> 32);
+				this.values[i] = values[(int) entries[i]];
+			}
+		}
+	}
+
+	/* Thrown when an operation has to modify a node it has not latched */
+	static class PathNotLatchedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Gets the disk pointer stored for the key. The tree is searched directly on the pinned frames of the
+	 * buffer pool, so no block is copied and no node is created on the way down. In a B-link tree, or with
+	 * optimistic lookups, the frames are read without pins and validated instead (see
+	 * {@link #setOptimisticLookups(boolean)}); the nodes are only pinned if a block is not cached or the
+	 * frames keep changing.
+	 * @param key - the key to search for
+	 * @return the disk pointer of the key, or {@link #NOT_FOUND} if the key is not in the tree
+	 */
 	public int getDiskPointer(int key){
-		TREE_LEVEL = 0;
-		return this.get(key, this.getRoot()).get(key);
+		if(OPTIMISTIC_LOOKUPS || config.isLinked()){
+			for(int attempt=0;attempt<OPTIMISTIC_ATTEMPTS;attempt++){
+				long result = findOptimistic(key);
+				if(result == NOT_CACHED) break;
+				if(result != RESTART) return (int) result;
+			}
+		}
+		int level = 0;
+		int blockID;
+		byte[] block;
+		try {
+			if(config.isLinked()){
+				blockID = LOGGED_ROOT_ID;
+				if(blockID == 0) return NOT_FOUND;
+				block = bp.pin(blockID);
+			}else{
+				rootLatch.readLock().lock();
+				try {
+					blockID = ROOT_ID;
+					if(blockID == 0) return NOT_FOUND;
+					block = bp.pinShared(blockID);
+				} finally {
+					rootLatch.readLock().unlock();
+				}
+			}
+			while(true){
+				int rightID = config.isLinked() ? Node.linkFor(block, key) : 0;
+				if(rightID != 0){
+					// The node has been split since its parent was read
+					byte[] right = pinForRead(rightID);
+					unpinForRead(blockID);
+					blockID = rightID;
+					block = right;
+					continue;
+				}
+				level++; // Used for calculation of tree height
+				if(Bytes.byteToBoolean(block[4])){
+					int result = LeafNode.find(block, key, config);
+					unpinForRead(blockID);
+					TREE_LEVEL = level;
+					return result;
+				}
+				int childID = InternalNode.wrap(block, config).get(key);
+				byte[] child = pinForRead(childID);
+				unpinForRead(blockID);
+				blockID = childID;
+				block = child;
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+		return NOT_FOUND;
+	}
+	/**
+	 * Gets the disk pointers of many keys at once. The keys are sorted and the tree is descended once for all of
+	 * them: each internal node passes every key below it on to its children in one go, so the nodes on the paths
+	 * shared by several keys and every leaf are read once instead of once per key. Nodes are latched the same
+	 * way as by {@link #getDiskPointer(int)}, a child before the latch of its parent is released.
+	 * @param keys - the keys to search for, in any order
+	 * @return the disk pointer of each key, at the position of the key, or {@link #NOT_FOUND} for keys that are
+	 * not in the tree
+	 */
+	public int[] getAll(int[] keys){
+		return getAll(keys, null);
+	}
+
+	/**
+	 * Gets the disk pointers of many keys at once like {@link #getAll(int[])}, searching the subtrees that
+	 * enough of the keys go to in parallel in a ForkJoinPool.
+	 * @param keys - the keys to search for, in any order
+	 * @param pool - the pool to search subtrees in, or null to search them in this thread
+	 * @return the disk pointer of each key, at the position of the key, or {@link #NOT_FOUND} for keys that are
+	 * not in the tree
+	 */
+	public int[] getAll(int[] keys, ForkJoinPool pool){
+		int[] pointers = new int[keys.length];
+		if(keys.length == 0) return pointers;
+		// The position of a key is sorted along with it, to store its pointer in the right place
+		long[] probes = new long[keys.length];
+		for(int i=0;i<keys.length;i++){
+			probes[i] = (long) keys[i] << 32 | i;
+		}
+		Arrays.sort(probes);
+		LookupTask task = new LookupTask(probes, pointers, 0, probes.length, 0, 1, pool != null);
+		try {
+			if(pool == null){
+				task.search();
+			}else{
+				try {
+					pool.invoke(task);
+				} catch (RuntimeException e) {
+					// Passes on the IOException of a task that failed to read a block
+					for(Throwable cause = e; cause != null; cause = cause.getCause()){
+						if(cause instanceof IOException) throw (IOException) cause;
+					}
+					throw e;
+				}
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+		return pointers;
 	}
+
+	/**
+	 * Searches a subtree for a run of sorted keys of {@link BPlusTree#getAll(int[], ForkJoinPool)}, pinning
+	 * the root of the subtree for reading in the thread that runs the search, as a latch can only be released
+	 * by the thread that holds it. The parent of the subtree stays latched by the thread that forked the task.
+	 */
+	private class LookupTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final long[] probes; // Sorted keys, each with its position in the keys searched for
+		private final int[] pointers;
+		private final int from, to, blockID, level;
+		private final boolean parallel;
+
+		/* A task with block ID 0 starts at the root of the tree */
+		LookupTask(long[] probes, int[] pointers, int from, int to, int blockID, int level, boolean parallel){
+			this.probes = probes;
+			this.pointers = pointers;
+			this.from = from;
+			this.to = to;
+			this.blockID = blockID;
+			this.level = level;
+			this.parallel = parallel;
+		}
+
+		@Override
+		protected void compute(){
+			try {
+				search();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/*
+		 * Searches the node for the keys, moving right in a B-link tree for the keys at or above its high key.
+		 * The keys of a leaf are looked up in place; the keys of an internal node are split by child and each
+		 * child is searched once, by a task of its own if it gets enough of the keys.
+		 */
+		void search() throws IOException{
+			int blockID = this.blockID;
+			int from = this.from;
+			byte[] block;
+			if(blockID != 0){
+				block = pinForRead(blockID);
+			}else if(config.isLinked()){
+				blockID = LOGGED_ROOT_ID;
+				if(blockID == 0) return;
+				block = bp.pin(blockID);
+			}else{
+				rootLatch.readLock().lock();
+				try {
+					blockID = ROOT_ID;
+					if(blockID == 0) return;
+					block = bp.pinShared(blockID);
+				} finally {
+					rootLatch.readLock().unlock();
+				}
+			}
+			try {
+				while(true){
+					int end = from;
+					while(end < to && (!config.isLinked() || Node.linkFor(block, keyOf(probes[end])) == 0)){
+						end++;
+					}
+					if(Bytes.byteToBoolean(block[4])){
+						for(int i=from;i<end;i++){
+							pointers[(int) probes[i]] = LeafNode.find(block, keyOf(probes[i]), config);
+						}
+						if(end > from && TREE_LEVEL != level) TREE_LEVEL = level;
+					}else if(end > from){
+						searchChildren(InternalNode.wrap(block, config), from, end);
+					}
+					if(end == to) return;
+					// The node has been split since its parent was read
+					int rightID = Node.linkFor(block, keyOf(probes[end]));
+					byte[] right = pinForRead(rightID);
+					unpinForRead(blockID);
+					blockID = rightID;
+					block = right;
+					from = end;
+				}
+			} finally {
+				unpinForRead(blockID);
+			}
+		}
+
+		/* Searches the children of a latched internal node for a run of keys, waiting for the forked searches */
+		private void searchChildren(InternalNode node, int from, int to) throws IOException{
+			ArrayList<LookupTask> forked = new ArrayList<LookupTask>();
+			try {
+				int i = from;
+				while(i < to){
+					int index = node.upperBound(keyOf(probes[i]));
+					int end = to;
+					if(index < node.getNumberOfKeys()){
+						int bound = node.getKey(index);
+						end = i + 1;
+						while(end < to && keyOf(probes[end]) < bound){
+							end++;
+						}
+					}
+					LookupTask child = new LookupTask(probes, pointers, i, end, node.getPointer(index), level + 1, parallel);
+					if(parallel && end - i >= MIN_LOOKUP_TASK_PROBES && end - i < this.to - this.from){
+						child.fork();
+						forked.add(child);
+					}else{
+						child.search();
+					}
+					i = end;
+				}
+			} finally {
+				// The node stays latched until the searches below it are done
+				for(LookupTask child : forked){
+					child.quietlyJoin();
+				}
+			}
+			for(LookupTask child : forked){
+				child.join();
+			}
+		}
+	}
+
+	/* Returns the key of a probe of getAll */
+	private static int keyOf(long probe){
+		return (int) (probe >> 32);
+	}
+
+	/**
+	 * Searches for the key with optimistic lock coupling. Each frame on the way down is read without a pin
+	 * or latch; the version of the child is taken before the version of the parent is validated, so the
+	 * child pointer was valid when the child was reached. A frame being changed while it is read may yield
+	 * any contents, including positions out of bounds, so an exception also restarts the search.
+	 * In a B-link tree the nodes are replaced rather than changed, so a node latched by a writer is still read,
+	 * and the search moves right past a node that has been split since its parent was read.
+	 * @param key - the key to search for
+	 * @return the disk pointer of the key, {@link #NOT_FOUND}, {@link #RESTART} if a frame changed during the
+	 * search or {@link #NOT_CACHED} if a block on the way is not in the buffer pool
+	 */
+	private long findOptimistic(int key){
+		int blockID = LOGGED_ROOT_ID;
+		if(blockID == 0) return NOT_FOUND;
+		boolean linked = config.isLinked();
+		int frame = bp.lookup(blockID);
+		if(frame < 0) return NOT_CACHED;
+		long version = linked ? bp.readImageVersion(frame, blockID) : bp.readVersion(frame, blockID);
+		// The root may have been replaced after it was read
+		if(version < 0 || blockID != LOGGED_ROOT_ID) return RESTART;
+		int level = 0;
+		try {
+			while(true){
+				byte[] block = bp.image(frame);
+				int childID = linked ? Node.linkFor(block, key) : 0;
+				if(childID == 0){
+					level++;
+					if(Bytes.byteToBoolean(block[4])){
+						int result = LeafNode.find(block, key, config);
+						if(!bp.validate(frame, version)) return RESTART;
+						// Only written when it changes, so lookups do not write to memory shared between threads
+						if(TREE_LEVEL != level) TREE_LEVEL = level;
+						return result;
+					}
+					childID = InternalNode.wrap(block, config).get(key);
+				}
+				int childFrame = bp.lookup(childID);
+				if(childFrame < 0) return bp.validate(frame, version) ? NOT_CACHED : RESTART;
+				long childVersion = linked ? bp.readImageVersion(childFrame, childID) : bp.readVersion(childFrame, childID);
+				if(childVersion < 0 || !bp.validate(frame, version)) return RESTART;
+				frame = childFrame;
+				version = childVersion;
+			}
+		} catch (RuntimeException e) {
+			return RESTART;
+		}
+	}
+
 	/**
 	 * Gets the LeafNode containing (or should contain) the key.
-	 * Note: This method should be called with the root block as starting block.
+	 * Note: This method should be called with the root block as starting block, see {@link #findLeaf(int)}.
 	 * @param key - the key to search for
 	 * @param blockID - the block ID to search in 
 	 * @return the LeafNode that contains the key (or should contain the key)
 	 */
 	public LeafNode get(int key, int blockID){
-		Node node = null;
 		if(blockID == 0) return null;
 		try {
-			byte[] block = fm.read(blockID);
-			boolean isLeaf = Bytes.byteToBoolean(block[4]);
-			if(isLeaf){
-				node = new LeafNode(block);
-			}else{
-				node = new InternalNode(block);
-			}
-			node.setParent(temporaryParent);
-			temporaryParent = node;
-			TREE_LEVEL++; // Used for calculation of tree height
-			if(node.isLeaf()){
-				temporaryParent = null;
-				return (LeafNode) node;
-			}else{
+			return get(key, blockID, pinForRead(blockID));
+		} catch (IOException e) {
+			failed(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets a copy of the LeafNode containing (or that should contain) the key, descending from the root.
+	 * The parents of the leaf are set to copies of the nodes on the way.
+	 * @param key - the key to search for
+	 * @return the leaf, or null if the tree is empty
+	 */
+	LeafNode findLeaf(int key){
+		if(config.isLinked()) return get(key, LOGGED_ROOT_ID);
+		int blockID;
+		byte[] block;
+		rootLatch.readLock().lock();
+		try {
+			blockID = ROOT_ID;
+			if(blockID == 0) return null;
+			block = bp.pinShared(blockID);
+		} catch (IOException e) {
+			failed(e);
+			return null;
+		} finally {
+			rootLatch.readLock().unlock();
+		}
+		return get(key, blockID, block);
+	}
+
+	/*
+	 * Copies the nodes from a block pinned for reading down to the leaf, pinning each child before releasing its
+	 * parent. In a B-link tree the search moves right past nodes that have been split since their parent was read.
+	 */
+	private LeafNode get(int key, int blockID, byte[] block){
+		Node parent = null; // The node passed on the way down, set as parent of the next node
+		int level = 0;
+		try {
+			while(true){
+				int rightID = config.isLinked() ? Node.linkFor(block, key) : 0;
+				if(rightID != 0){
+					byte[] right = pinForRead(rightID);
+					unpinForRead(blockID);
+					blockID = rightID;
+					block = right;
+					continue;
+				}
+				Node node;
+				boolean isLeaf = Bytes.byteToBoolean(block[4]);
+				if(isLeaf){
+					node = copyLeaf(blockID, block);
+				}else{
+					node = new InternalNode(block, config);
+				}
+				node.setParent(parent);
+				level++; // Used for calculation of tree height
+				if(isLeaf){
+					TREE_LEVEL = level;
+					return (LeafNode) node;
+				}
 				node.log("Searching for key in " + node.getID());
-				return get(key, ((InternalNode)node).get(key));
+				parent = node;
+				int childID = ((InternalNode) node).get(key);
+				byte[] child = pinForRead(childID);
+				unpinForRead(blockID);
+				blockID = childID;
+				block = child;
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			failed(e);
+			return null;
+		} finally {
+			unpinForRead(blockID);
 		}
-		return null;
 	}
 
 	/**
-	 * Sets the root of the BPlusTree
+	 * Pins a block to read it, latching it in shared mode unless the tree is a B-link tree. The frames of a
+	 * B-link tree are replaced instead of modified in place, so they can be read without a latch.
+	 * @param blockID - the block to read
+	 * @return the frame containing the block
+	 * @throws IOException if reading the block fails
+	 */
+	private byte[] pinForRead(int blockID) throws IOException{
+		return config.isLinked() ? bp.pin(blockID) : bp.pinShared(blockID);
+	}
+
+	/* Releases a block pinned with pinForRead */
+	private void unpinForRead(int blockID){
+		if(config.isLinked()){
+			bp.unpin(blockID, false);
+		}else{
+			bp.unpinShared(blockID);
+		}
+	}
+
+	/**
+	 * Returns a LeafScanner that walks the leaves from left to right, starting at the leaf that contains
+	 * (or should contain) the key.
+	 * @param key - the key to start the scan at
+	 * @return a scanner over the leaf chain
+	 */
+	public LeafScanner scanLeaves(int key){
+		return new LeafScanner(this, findLeaf(key), READ_AHEAD);
+	}
+
+	/**
+	 * Returns a cursor over the <key, disk pointer> pairs with keys from the first key up to and including
+	 * the last key, in ascending key order. The tree is descended once and the leaves of the range are then
+	 * read from left to right, with read-ahead limited to the leaves the range may reach.
+	 * @param from - the first key of the range
+	 * @param to - the last key of the range
+	 * @return a cursor over the range, which has no entries if the first key is greater than the last key
+	 */
+	public RangeCursor scan(int from, int to){
+		LeafNode first = from > to ? null : findLeaf(from);
+		return new RangeCursor(new LeafScanner(this, first, READ_AHEAD, to), from, to);
+	}
+
+	/**
+	 * Returns the disk pointers of a range of keys as an Iterable, for use in for-each loops. Each call to
+	 * {@link Iterable#iterator()} starts a new scan of the range.
+	 * @param from - the first key of the range
+	 * @param to - the last key of the range
+	 * @return the disk pointers of the keys in the range, in ascending key order
+	 * @see #scan(int, int)
+	 */
+	public Iterable<Integer> range(final int from, final int to){
+		return new Iterable<Integer>(){
+			public Iterator<Integer> iterator(){
+				return scan(from, to);
+			}
+		};
+	}
+
+	/**
+	 * Reads a copy of the LeafNode stored in a block, latching the block in shared mode while it is copied
+	 * unless the tree is a B-link tree.
+	 * @param blockID - the block containing the leaf
+	 * @return the leaf
+	 * @throws IOException if reading the block fails
+	 */
+	LeafNode readLeaf(int blockID) throws IOException{
+		LeafNode leaf = copyLeaf(blockID, pinForRead(blockID));
+		unpinForRead(blockID);
+		return leaf;
+	}
+
+	/**
+	 * Reads a copy of the leaf that the right leaf pointer of a copied leaf leads to, for a scan moving right.
+	 * Unless the tree is a B-link tree, a delete may have merged the right leaf away or moved entries between
+	 * the two leaves since the leaf was copied, so the right leaf is only returned if the leaf is unchanged
+	 * while the right leaf is latched. Then the right leaf is the leaf after it at that moment.
+	 * @param leaf - a leaf copied by {@link #readLeaf(int)} or a descent, with a right leaf
+	 * @return the right leaf, or null if the leaf has changed and the scan has to find its place again
+	 * @throws IOException if reading the right leaf fails
+	 */
+	LeafNode readRightLeaf(LeafNode leaf) throws IOException{
+		int rightID = leaf.getRightLeaf();
+		byte[] block = pinForRead(rightID);
+		try {
+			if(!config.isLinked() && (leaf.frame < 0 || !bp.validate(leaf.frame, leaf.version))) return null;
+			return copyLeaf(rightID, block);
+		} finally {
+			unpinForRead(rightID);
+		}
+	}
+
+	/* Copies a leaf from a block pinned for reading, recording the version of its frame unless the tree is a B-link tree */
+	private LeafNode copyLeaf(int blockID, byte[] block){
+		LeafNode leaf = new LeafNode(block, config);
+		if(!config.isLinked()){
+			leaf.frame = bp.lookup(blockID);
+			leaf.version = bp.readVersion(leaf.frame, blockID);
+		}
+		return leaf;
+	}
+
+	/**
+	 * Reads the LeafNode stored in a block for the current operation to modify, such as a sibling that is
+	 * borrowed from. The block stays latched exclusively until the operation ends.
+	 * @param blockID - the block containing the leaf
+	 * @return the leaf
+	 * @throws IOException if reading the block fails
+	 */
+	LeafNode readLeafForUpdate(int blockID) throws IOException{
+		return new LeafNode(writeSets.get().latch(bp, blockID, true), config);
+	}
+
+	/**
+	 * Reads the InternalNode stored in a block for the current operation to modify. The block stays
+	 * latched exclusively until the operation ends.
+	 * @param blockID - the block containing the node
+	 * @return the node
+	 * @throws IOException if reading the block fails
+	 */
+	InternalNode readInternalForUpdate(int blockID) throws IOException{
+		return new InternalNode(writeSets.get().latch(bp, blockID, true), config);
+	}
+
+	/**
+	 * Sets the number of leaves that leaf scans read ahead asynchronously.
+	 * @param readAhead - the number of leaves, 0 to disable read-ahead
+	 */
+	public void setReadAhead(int readAhead){
+		this.READ_AHEAD = readAhead;
+	}
+
+	public int getReadAhead(){
+		return READ_AHEAD;
+	}
+
+	/**
+	 * Sets whether lookups use optimistic lock coupling instead of latching the nodes on the way down. This
+	 * suits read-mostly use, where readers then never wait for each other; a lookup that keeps meeting
+	 * changed frames, or a block that is not cached, latches the path as before. Optimistic readers write
+	 * nothing that other threads read, so they do not slow each other down. Lookups in B-link trees are always
+	 * optimistic, so the setting does not affect them.
+	 * @param optimistic - true to search optimistically
+	 */
+	public void setOptimisticLookups(boolean optimistic){
+		this.OPTIMISTIC_LOOKUPS = optimistic;
+	}
+
+	public boolean isOptimisticLookups(){
+		return OPTIMISTIC_LOOKUPS;
+	}
+
+	/**
+	 * Sets the root of the BPlusTree in the in-memory header.
+	 * The header is written to the index file when the operation that changed the root completes.
 	 * @param rootID - the block ID of the root
 	 * @param isLeaf - if the root is a leaf or not
 	 */
 	public void setRoot(int rootID, int isLeaf){
-		try { 
-			headerBytes = fm.read(0);
-			ROOT_ID = rootID;
-			ROOT_IS_LEAF = isLeaf;
-			TREE_LEVEL++;
-			Bytes.intToBytes(ROOT_ID, headerBytes, 6);
-			headerBytes[10] = Bytes.intToByte(ROOT_IS_LEAF);
-			writeDataToHeader(headerBytes);
-		} catch (IOException e) {
-			e.printStackTrace();
+		if(!rootLatch.isWriteLockedByCurrentThread()){
+			// The operation released the root latch when it found the root safe
+			throw new PathNotLatchedException();
 		}
+		ROOT_ID = rootID;
+		ROOT_IS_LEAF = isLeaf;
+		TREE_LEVEL++;
+		HEADER_DIRTY = true;
+	}
+	/**
+	 * Replaces an internal root that has no keys left by its only child, which lowers the tree by one
+	 * level, and releases the block of the old root.
+	 * @param root - the current root
+	 * @throws IOException if reading the child fails
+	 */
+	void collapseRoot(InternalNode root) throws IOException{
+		int childID = root.getPointer(0);
+		byte[] child = bp.pin(childID);
+		boolean childIsLeaf = Bytes.byteToBoolean(child[4]);
+		bp.unpin(childID, false);
+		root.log("Root " + root.getID() + " has a single child, making " + childID + " the new root.");
+		ROOT_ID = childID;
+		ROOT_IS_LEAF = childIsLeaf ? 1 : 0;
+		TREE_LEVEL--;
+		HEADER_DIRTY = true;
+		freeBlock(root.getID());
 	}
 	/**
-	 * Reads the header block from the index file and returns the currently stored root block ID.
+	 * Returns the root block ID held in the in-memory header.
 	 * @return the block containing the root.
 	 */
 	public int getRoot(){
+		return ROOT_ID;
+	}
+	/**
+	 * Writes every modified block to the index file, forces it to disk and then stores the header. Modified
+	 * blocks are otherwise written back lazily by the buffer pool, and the header, which is held in main
+	 * memory, only when the root changes.
+	 * The blocks are forced before the header is written, so the stored header never refers to a block
+	 * that has not reached the disk. Once the header is stored the redo log is emptied.
+	 * @throws IOException if writing or forcing the index file fails
+	 */
+	public void checkpoint() throws IOException{
+		operationLock.writeLock().lock();
 		try {
-			headerBytes = fm.read(0);
-			readDataFromHeader(headerBytes);
-		} catch (IOException e) {
-			e.printStackTrace();
+			if(log != null) log.commitAll();
+			bp.flush();
+			fm.force();
+			writeDataToHeader(headerBytes);
+			if(HEADER_FORMAT == HEADER_FORMAT_DOUBLE){
+				fm.write(headerBytes, HEADER_SEQUENCE % 2);
+			}else{
+				fm.write(headerBytes, 0);
+			}
+			fm.force();
+			if(log != null) log.truncate();
+			HEADER_DIRTY = false;
+		} finally {
+			operationLock.writeLock().unlock();
 		}
-		return ROOT_ID;
 	}
-	public static int getRootIsLeaf(){
+	public int getRootIsLeaf(){
 		return ROOT_IS_LEAF;
 	}
-	public static int getOrder(){
-		return ORDER;
+	public int getOrder(){
+		return config.getOrder();
+	}
+	/**
+	 * Returns true if the leaves of the tree are stored delta encoded.
+	 * @return true for {@link #LEAF_FORMAT_DELTA}
+	 */
+	public boolean isLeafDeltaEncoded(){
+		return config.isLeafDeltaEncoded();
+	}
+	/**
+	 * Returns true if the tree is a B-link tree, whose searches take no latches.
+	 * @return true if every node stores a high key and a link to its right sibling
+	 */
+	public boolean isLinked(){
+		return config.isLinked();
 	}
-	public static int getKeySize(){
-		return KEY_SIZE;
+	public int getKeySize(){
+		return config.getKeySize();
 	}	
-	public static int getPointerSize(){
-		return POINTER_SIZE;
+	public int getPointerSize(){
+		return config.getPointerSize();
+	}
+	public int getBlockSize(){
+		return config.getBlockSize();
 	}
-	public static int getBlockSize(){
-		return BLOCK_SIZE;
+	/**
+	 * Returns the configuration of the tree, which every node of the tree is created with.
+	 * @return the block size, order and leaf format of the tree
+	 */
+	TreeConfig getConfig(){
+		return config;
 	}
 	public int getTreeLevel(){
 		return TREE_LEVEL;
@@ -181,104 +1730,211 @@ public class BPlusTree {
 	public FileManager getFileManager(){
 		return fm;
 	}
+	public BufferPool getBufferPool(){
+		return bp;
+	}
+	public WriteAheadLog getWriteAheadLog(){
+		return log;
+	}
+
+	/**
+	 * Returns the error of the last call by this thread that failed because reading or writing a block failed,
+	 * and forgets it. Such calls print the error and return as if nothing was found or done, so a caller that
+	 * has to tell them apart, such as a server answering the call, checks for an error after each call.
+	 * @return the error, or null if no call by this thread has failed since the last check
+	 */
+	public IOException takeFailure(){
+		IOException failure = failures.get();
+		failures.remove();
+		return failure;
+	}
+
+	/* Prints the error of a failed call and keeps it for the calling thread, see takeFailure() */
+	void failed(IOException e){
+		e.printStackTrace();
+		failures.set(e);
+	}
+	/**
+	 * Adds a node to the write set of the current operation. The node is stored in its block when the
+	 * operation ends, however many times it is written before that.
+	 * @param node - the node to write
+	 */
+	void writeNode(Node node){
+		writeSets.get().add(node);
+	}
+	/**
+	 * Reserves a block for a new node. A block freed earlier in the same operation is reused first, then
+	 * the first block of the free list, otherwise the next unused block of the index file is reserved.
+	 * The head of the list is only stored at checkpoints when the tree has no log, so after a crash it may
+	 * name a block that has been reused since. Such a list is abandoned instead of handing the block out twice.
+	 * @return the ID of the reserved block
+	 */
+	int allocateBlock(){
+		WriteSet writeSet = writeSets.get();
+		Integer reused = writeSet.reuseFreed();
+		if(reused != null){
+			writeSet.allocate(reused);
+			return reused;
+		}
+		int blockID;
+		synchronized(headerLock){
+			blockID = fm.getFreeListHead();
+			if(blockID != 0){
+				try {
+					byte[] data = bp.pin(blockID);
+					boolean isFree = FileManager.isFreeBlock(data, blockID);
+					if(isFree) fm.setFreeListHead(FileManager.nextFreeBlock(data));
+					bp.unpin(blockID, false);
+					if(isFree){
+						writeSet.allocate(blockID);
+						return blockID;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				System.out.println("Block " + blockID + " at the head of the free list is not free, abandoning the free list.");
+				fm.setFreeListHead(0);
+			}
+			try {
+				blockID = bp.allocate();
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not reserve a block for a new node.", e);
+			}
+		}
+		writeSet.allocate(blockID);
+		return blockID;
+	}
+	/**
+	 * Releases the block of a node that is no longer part of the tree. The block is put first on the
+	 * free list when the current operation ends, and is reused by later allocations before the file is grown.
+	 * The head of the list is stored in the header and in every log record.
+	 * @param blockID - the block to release
+	 */
+	void freeBlock(int blockID){
+		writeSets.get().free(blockID);
+	}
+	/**
+	 * Returns the number of node writes requested by tree operations.
+	 * @return the number of node writes
+	 */
+	public long getNumberOfNodeWrites(){
+		synchronized(headerLock){
+			return numNodeWrites;
+		}
+	}
+	/**
+	 * Returns the number of blocks stored after coalescing the node writes of each operation.
+	 * @return the number of block writes
+	 */
+	public long getNumberOfBlockWrites(){
+		synchronized(headerLock){
+			return numBlockWrites;
+		}
+	}
+	/**
+	 * Writes all modified blocks held in the buffer pool to the index file and closes it.
+	 * @throws IOException if writing back a block or closing the file fails
+	 */
+	public void close() throws IOException{
+		synchronized(headerLock){
+			// Open snapshots cannot be read once the tree is closed
+			snapshots.clear();
+			if(versionStore != null){
+				synchronized(versionStore){
+					versionStore.deleteFile();
+				}
+			}
+			versionStore = null;
+		}
+		checkpoint();
+		bp.close();
+		if(log != null) log.close();
+	}
 	/**
 	 * Sets the in-memory variables of the header from the byte array.
 	 * @param headerBytes - the byte array to get the header information from
 	 */
-	private static void readDataFromHeader(byte[] headerBytes){
-		BLOCK_SIZE = Bytes.bytesToInt(headerBytes, 0);
-		KEY_SIZE = Bytes.byteToInt(headerBytes[4]);
-		POINTER_SIZE = Bytes.byteToInt(headerBytes[5]);
+	private void readDataFromHeader(byte[] headerBytes){
+		config = new TreeConfig(Bytes.bytesToInt(headerBytes, 0), Bytes.byteToInt(headerBytes[4]),
+				Bytes.byteToInt(headerBytes[5]), Bytes.byteToInt(headerBytes[24]), 
+				Bytes.byteToInt(headerBytes[25]) == NODE_LAYOUT_LINKED);
 		ROOT_ID = Bytes.bytesToInt(headerBytes, 6);
 		ROOT_IS_LEAF = Bytes.byteToInt(headerBytes[10]);
-		ORDER = calculateOrder();
 	}
 	/**
-	 * Writes the data byte array to the header of the index file.
-	 * @param headerBytes - the header byte to get the index information from
+	 * Stores the in-memory header in the byte array, advancing the header sequence number.
+	 * @param headerBytes - the header byte array to store the index information in
 	 */
 	private void writeDataToHeader(byte[] headerBytes){
-		Bytes.intToBytes(BLOCK_SIZE, headerBytes, 0);
-		headerBytes[4] = Bytes.intToByte(KEY_SIZE);
-		headerBytes[5] = Bytes.intToByte(POINTER_SIZE);
+		Bytes.intToBytes(config.getBlockSize(), headerBytes, 0);
+		headerBytes[4] = Bytes.intToByte(config.getKeySize());
+		headerBytes[5] = Bytes.intToByte(config.getPointerSize());
 		Bytes.intToBytes(ROOT_ID, headerBytes, 6);
 		headerBytes[10] = Bytes.intToByte(ROOT_IS_LEAF);
-		try {
-			fm.write(headerBytes, 0);
-		} catch (IOException e) {
-			e.printStackTrace();
+		Bytes.intToBytes(fm.getFreeListHead(), headerBytes, 20);
+		headerBytes[24] = Bytes.intToByte(config.getLeafFormat());
+		headerBytes[25] = Bytes.intToByte(config.isLinked() ? NODE_LAYOUT_LINKED : NODE_LAYOUT);
+		if(HEADER_FORMAT == HEADER_FORMAT_DOUBLE){
+			headerBytes[11] = Bytes.intToByte(HEADER_FORMAT);
+			Bytes.intToBytes(++HEADER_SEQUENCE, headerBytes, 12);
+			Bytes.intToBytes(headerChecksum(headerBytes), headerBytes, 16);
 		}
 	}
 	/* Method for printing the information stored in the header */
 	private void printHeader(){
-		System.out.println("--- HEADER INFO ---");
-		System.out.println("Block size: " + Bytes.bytesToInt(headerBytes,0));
-		System.out.println("Key size: " + Bytes.byteToInt(headerBytes[4]));
-		System.out.println("Pointer size: " + Bytes.byteToInt(headerBytes[5]));
-		System.out.println("Root ID: " + Bytes.bytesToInt(headerBytes, 6));
-		System.out.println("Root is Leaf: " + Bytes.byteToBoolean(headerBytes[10]));
-		System.out.println("Tree Order: (not stored in header): " + ORDER);
-		System.out.println("--- STOP HEADER INFO ---");
+		System.out.print(readAndPrintHeaderToConsole());
 		System.out.flush();
 	}
 	/**
-	 * Reads the header block of the index file and prints the stored data to console.
-	 * @return - the string representation of the header block in the index file.
+	 * Returns the in-memory header, which is the authoritative copy of the header block.
+	 * @return - the string representation of the header of the index file.
 	 */
 	public String readAndPrintHeaderToConsole(){
-		try {
-			headerBytes = fm.read(0);
-			String result = "--- HEADER INFO ---\n";
-			result += "Block size: " + Bytes.bytesToInt(headerBytes,0) + "\n";
-			result += "Key size: " + Bytes.byteToInt(headerBytes[4]) + "\n";
-			result += "Pointer size: " + Bytes.byteToInt(headerBytes[5]) + "\n";
-			result += "Root ID: " + Bytes.bytesToInt(headerBytes, 6) + "\n";
-			result += "Root is Leaf: " + Bytes.byteToBoolean(headerBytes[10]) + "\n";
-			result += "Tree Order: (not stored in header): " + ORDER + "\n";
-			result += "--- STOP HEADER INFO ---" + "\n";
-			return result;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return null;
+		String result = "--- HEADER INFO ---\n";
+		result += "Block size: " + config.getBlockSize() + "\n";
+		result += "Key size: " + config.getKeySize() + "\n";
+		result += "Pointer size: " + config.getPointerSize() + "\n";
+		result += "Root ID: " + ROOT_ID + "\n";
+		result += "Root is Leaf: " + (ROOT_IS_LEAF == 1) + "\n";
+		result += "Header format: " + HEADER_FORMAT + "\n";
+		result += "Header sequence: " + HEADER_SEQUENCE + "\n";
+		result += "Free list head: " + fm.getFreeListHead() + "\n";
+		result += "Leaf format: " + (config.isLeafDeltaEncoded() ? "delta encoded" : "fixed") + "\n";
+		result += "B-link tree: " + config.isLinked() + "\n";
+		result += "Tree Order: (not stored in header): " + config.getOrder() + "\n";
+		result += "--- STOP HEADER INFO ---" + "\n";
+		return result;
 	}
 
 	/**
-	 * Calculate the order of the tree 
-	 * The current implementation assumes that each block stores node ID (4 bytes), IsLeafByte (1 byte) and
-	 * parent block ID (4 bytes) = 9 bytes of header information
-	 * @return the order of the tree
-	 */
-	private static int calculateOrder(){
-		return (BLOCK_SIZE - 9 - POINTER_SIZE)/(KEY_SIZE + POINTER_SIZE);
-	}
-	/**
-	 * Dumps the data stored in the index file to the console.
+	 * Dumps the data stored in the index file to the console. The dump stops at a block that cannot be read,
+	 * and the failure is returned by {@link #takeFailure()}.
 	 */
 	public void dumpIndex(){
-		int blockNumber = 0;
 		CLI.log("Dumping index file to console.. \n");
-		while(blockNumber < fm.getSize()){
-			try {
-				byte[] data = fm.read(blockNumber);
-				if(blockNumber == 0){
-					readDataFromHeader(data);
-					printHeader();
+		printHeader();
+		// Skip the header block(s)
+		int blockNumber = HEADER_FORMAT == HEADER_FORMAT_DOUBLE ? 2 : 1;
+		try {
+			while(blockNumber < bp.getSize()){
+				for(int ahead = 1; ahead <= READ_AHEAD; ahead++){
+					bp.prefetch(blockNumber + ahead);
+				}
+				byte[] data = bp.read(blockNumber);
+				boolean isLeaf = Bytes.byteToBoolean(data[4]);
+				if(FileManager.isFreeBlock(data, blockNumber)){
+					System.out.println("Free block " + blockNumber + ", next free block: " + FileManager.nextFreeBlock(data));
+				}else if(isLeaf){
+					LeafNode leaf = new LeafNode(data, config);
+					leaf.printKeyDiskPointers();
 				}else{
-					boolean isLeaf = Bytes.byteToBoolean(data[4]);
-					if(isLeaf){
-						LeafNode leaf = new LeafNode(data);
-						leaf.printKeyDiskPointers();
-					}else{
-						InternalNode internal = new InternalNode(data);
-						internal.printKeyDiskPointers();
-					}
+					InternalNode internal = new InternalNode(data, config);
+					internal.printKeyDiskPointers();
 				}
 				blockNumber++;
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}			
+			}
+		} catch (IOException e) {
+			failed(e);
 		}
 	}
-}
\ No newline at end of file
+}
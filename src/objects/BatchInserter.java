@@ -0,0 +1,63 @@
+package objects;
+
+/**
+ * Collects <key, disk pointer> pairs and inserts them into the tree in batches with
+ * {@link BPlusTree#insertAll(int[], int[], int)}, so a stream of inserts of unknown length gets the
+ * savings of batched inserts: each leaf is descended to, latched, written and logged once per batch
+ * rather than once per key, and the log is forced once per batch.
+ * Pairs are only in the tree once their batch has been inserted, which happens when the batch is full
+ * or {@link #flush()} is called. An inserter is meant to be used by one thread.
+ * @author Emil Bergwik
+ * @see BPlusTree#batchInserter(int)
+ */
+public class BatchInserter {
+
+	private final BPlusTree tree;
+	private final int[] keys, values;
+	private int count; // Number of pairs collected since the last batch was inserted
+
+	/**
+	 * Constructor for a BatchInserter inserting batches of the given size into the tree.
+	 * @param tree - the tree to insert into
+	 * @param batchSize - the number of pairs inserted together
+	 */
+	BatchInserter(BPlusTree tree, int batchSize){
+		if(batchSize < 1) throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+		this.tree = tree;
+		this.keys = new int[batchSize];
+		this.values = new int[batchSize];
+	}
+
+	/**
+	 * Adds a pair to the current batch, inserting the batch if it is full.
+	 * @param key - the key to insert
+	 * @param value - the disk pointer of the key
+	 * @throws IllegalArgumentException if the disk pointer is {@link BPlusTree#NOT_FOUND}
+	 */
+	public void add(int key, int value){
+		if(value == BPlusTree.NOT_FOUND){
+			throw new IllegalArgumentException("Disk pointer " + BPlusTree.NOT_FOUND + " of key " + key + " is reserved for keys that are not in the tree");
+		}
+		keys[count] = key;
+		values[count] = value;
+		count++;
+		if(count == keys.length) flush();
+	}
+
+	/**
+	 * Inserts the pairs collected so far.
+	 */
+	public void flush(){
+		if(count == 0) return;
+		tree.insertAll(keys, values, count);
+		count = 0;
+	}
+
+	/**
+	 * Returns the number of pairs collected that have not been inserted yet.
+	 * @return the number of pending pairs
+	 */
+	public int pending(){
+		return count;
+	}
+}
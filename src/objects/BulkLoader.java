@@ -0,0 +1,361 @@
+package objects;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import data.BufferPool;
+
+/**
+ * Class for building a BPlusTree bottom-up from sorted <key, pointer> pairs.
+ * The leaves are packed from left to right up to the fill factor, then every internal level is built from
+ * the smallest keys and block IDs of the level below it, until a level has a single node, which is the root.
+ * The nodes are appended to the index file in the order they are built, so every block is written once and
+ * the blocks are written in ascending order. Since the leaves are consecutive blocks, the right leaf
+ * pointer of a leaf is simply the next block. In a B-link tree every internal node links to the next block
+ * of its level in the same way, and each node gets the smallest key of the next node as its high key.
+ * The entries are spread evenly over the nodes of each level, so the last node of a level is not left
+ * nearly empty, and every internal node gets at least two children.
+ * A large tree can be built by the tasks of a ForkJoinPool instead, see {@link #load(int[], int[], int, ForkJoinPool)}.
+ * @author Emil Bergwik
+ * @see BPlusTree#bulkLoad(int[], int[], int, double)
+ */
+class BulkLoader {
+
+	private final BufferPool bp;
+	private final TreeConfig config;
+	private final double fillFactor;
+	private int height; // Number of levels built
+	private static final int TASKS_PER_THREAD = 8; // Tasks a parallel load is divided into per thread, to balance the load
+	private static final int MIN_TASK_ENTRIES = 1 << 14; // Fewest pairs planned by one task
+	private static final int MIN_TASK_NODES = 16; // Fewest nodes written by one task
+
+	/**
+	 * Constructor for a BulkLoader appending the nodes to the file of the buffer pool.
+	 * @param bp - the buffer pool of the tree
+	 * @param config - the configuration of the tree
+	 * @param fillFactor - the fraction of each node to fill, between 0 and 1
+	 */
+	BulkLoader(BufferPool bp, TreeConfig config, double fillFactor){
+		this.bp = bp;
+		this.config = config;
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Builds the tree from the pairs.
+	 * @param keys - the keys, in strictly ascending order
+	 * @param pointers - the disk pointers of the keys
+	 * @param count - the number of pairs to load
+	 * @return the block ID of the root
+	 * @throws IOException if writing a node fails
+	 */
+	int load(int[] keys, int[] pointers, int count) throws IOException{
+		int[] sizes = config.isLeafDeltaEncoded() ? planDeltaLeaves(keys, pointers, 0, count) : evenSizes(count, leafEntries());
+		// The smallest key and block ID of every node of the level being built on
+		int[] levelKeys = new int[sizes.length];
+		int[] levelIDs = new int[sizes.length];
+		int from = 0;
+		for(int i=0;i<sizes.length;i++){
+			LeafNode leaf = new LeafNode(bp.getSize(), config);
+			leaf.load(keys, pointers, from, sizes[i]);
+			if(i < sizes.length-1){
+				leaf.setRightLeaf(leaf.getID()+1);
+				if(config.isLinked()) leaf.setHighKey(keys[from+sizes[i]]);
+			}
+			levelKeys[i] = keys[from];
+			levelIDs[i] = write(leaf);
+			from += sizes[i];
+		}
+		height = 1;
+		int nodes = sizes.length;
+		while(nodes > 1){
+			sizes = evenSizes(nodes, internalChildren());
+			from = 0;
+			for(int i=0;i<sizes.length;i++){
+				InternalNode node = new InternalNode(bp.getSize(), config);
+				node.load(levelKeys, levelIDs, from, sizes[i]);
+				if(config.isLinked() && i < sizes.length-1){
+					node.setRightLink(node.getID()+1);
+					node.setHighKey(levelKeys[from+sizes[i]]);
+				}
+				levelKeys[i] = levelKeys[from];
+				levelIDs[i] = write(node);
+				from += sizes[i];
+			}
+			nodes = sizes.length;
+			height++;
+		}
+		return levelIDs[0];
+	}
+
+	/**
+	 * Builds the tree from the pairs with the tasks of a ForkJoinPool. The number of entries of every node
+	 * is planned first, which fixes the block, the entries and the smallest key of every node, and the right
+	 * link and high key of a node are the block and smallest key of the next node of its level. The tasks
+	 * can then build and write any run of nodes, of any level, without waiting for each other. The tree has
+	 * the same layout as one built by {@link #load(int[], int[], int)}: the blocks are reserved at the end of
+	 * the file and written directly to it, level by level from the leaves up.
+	 * Delta encoded leaves are planned by the tasks as well, each over its own part of the pairs, so a leaf
+	 * may end at the end of a part where the sequential plan would have packed it further.
+	 * @param keys - the keys, in strictly ascending order
+	 * @param pointers - the disk pointers of the keys
+	 * @param count - the number of pairs to load
+	 * @param pool - the pool to run the tasks in
+	 * @return the block ID of the root
+	 * @throws IOException if writing a node fails
+	 */
+	int load(int[] keys, int[] pointers, int count, ForkJoinPool pool) throws IOException{
+		int partition = Math.max(MIN_TASK_ENTRIES, count / (pool.getParallelism() * TASKS_PER_THREAD));
+		int[] sizes = config.isLeafDeltaEncoded() ? invoke(pool, new DeltaPlanner(keys, pointers, 0, count, partition))
+				: evenSizes(count, leafEntries());
+		// Plan the internal levels on top of the leaves
+		int levels = 1;
+		for(int nodes = sizes.length; nodes > 1; nodes = evenSizes(nodes, internalChildren()).length){
+			levels++;
+		}
+		final int[][] levelSizes = new int[levels][];
+		levelSizes[0] = sizes;
+		for(int level=1;level<levels;level++){
+			levelSizes[level] = evenSizes(levelSizes[level-1].length, internalChildren());
+		}
+		// The first entry (or child), smallest key and block of every node
+		final int[][] starts = new int[levels][];
+		final int[][] smallestKeys = new int[levels][];
+		final int[][] blockIDs = new int[levels][];
+		final int[] firstNodes = new int[levels+1]; // Position of the first node of each level among all nodes
+		for(int level=0;level<levels;level++){
+			firstNodes[level+1] = firstNodes[level] + levelSizes[level].length;
+		}
+		int firstBlock = bp.reserve(firstNodes[levels]);
+		for(int level=0;level<levels;level++){
+			int nodes = levelSizes[level].length;
+			starts[level] = new int[nodes];
+			smallestKeys[level] = new int[nodes];
+			blockIDs[level] = new int[nodes];
+			int from = 0;
+			for(int i=0;i<nodes;i++){
+				starts[level][i] = from;
+				smallestKeys[level][i] = level == 0 ? keys[from] : smallestKeys[level-1][from];
+				blockIDs[level][i] = firstBlock + firstNodes[level] + i;
+				from += levelSizes[level][i];
+			}
+		}
+		invoke(pool, new NodeWriter(keys, pointers, levelSizes, starts, smallestKeys, blockIDs, firstNodes, 0,
+				firstNodes[levels], Math.max(MIN_TASK_NODES, firstNodes[levels] / (pool.getParallelism() * TASKS_PER_THREAD))));
+		height = levels;
+		return blockIDs[levels-1][0];
+	}
+
+	/* Runs a task in the pool, passing on the IOException of a task that failed to write a node */
+	private static <T> T invoke(ForkJoinPool pool, ForkJoinTask<T> task) throws IOException{
+		try {
+			return pool.invoke(task);
+		} catch (RuntimeException e) {
+			for(Throwable cause = e; cause != null; cause = cause.getCause()){
+				if(cause instanceof IOException) throw (IOException) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of levels of the tree built by the last call to {@link #load(int[], int[], int)}.
+	 * @return the height of the tree
+	 */
+	int getHeight(){
+		return height;
+	}
+
+	/* Appends the node to the file through the buffer pool */
+	private int write(Node node) throws IOException{
+		int blockID = node.getID();
+		node.toBytes(bp.pinForOverwrite(blockID));
+		bp.unpin(blockID, true);
+		return blockID;
+	}
+
+	/**
+	 * Task planning the delta encoded leaves of a part of the pairs, splitting the part in two halves planned
+	 * by two tasks as long as it is larger than the given number of pairs.
+	 */
+	private class DeltaPlanner extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final int[] keys, pointers;
+		private final int from, to, partition;
+
+		DeltaPlanner(int[] keys, int[] pointers, int from, int to, int partition){
+			this.keys = keys;
+			this.pointers = pointers;
+			this.from = from;
+			this.to = to;
+			this.partition = partition;
+		}
+
+		protected int[] compute(){
+			if(to - from <= partition){
+				return planDeltaLeaves(keys, pointers, from, to);
+			}
+			int middle = (from + to) >>> 1;
+			DeltaPlanner right = new DeltaPlanner(keys, pointers, middle, to, partition);
+			right.fork();
+			int[] leftSizes = new DeltaPlanner(keys, pointers, from, middle, partition).compute();
+			int[] rightSizes = right.join();
+			int[] sizes = new int[leftSizes.length + rightSizes.length];
+			System.arraycopy(leftSizes, 0, sizes, 0, leftSizes.length);
+			System.arraycopy(rightSizes, 0, sizes, leftSizes.length, rightSizes.length);
+			return sizes;
+		}
+	}
+
+	/**
+	 * Task building and writing a run of nodes, numbered over all levels from the first leaf, splitting the
+	 * run in two halves written by two tasks as long as it is longer than the given number of nodes.
+	 */
+	private class NodeWriter extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int[] keys, pointers;
+		private final int[][] levelSizes, starts, smallestKeys, blockIDs;
+		private final int[] firstNodes;
+		private final int from, to, run;
+
+		NodeWriter(int[] keys, int[] pointers, int[][] levelSizes, int[][] starts, int[][] smallestKeys,
+				int[][] blockIDs, int[] firstNodes, int from, int to, int run){
+			this.keys = keys;
+			this.pointers = pointers;
+			this.levelSizes = levelSizes;
+			this.starts = starts;
+			this.smallestKeys = smallestKeys;
+			this.blockIDs = blockIDs;
+			this.firstNodes = firstNodes;
+			this.from = from;
+			this.to = to;
+			this.run = run;
+		}
+
+		protected void compute(){
+			if(to - from > run){
+				int middle = (from + to) >>> 1;
+				invokeAll(new NodeWriter(keys, pointers, levelSizes, starts, smallestKeys, blockIDs, firstNodes, from, middle, run),
+						new NodeWriter(keys, pointers, levelSizes, starts, smallestKeys, blockIDs, firstNodes, middle, to, run));
+				return;
+			}
+			byte[] image = new byte[config.getBlockSize()];
+			int level = 0;
+			try {
+				for(int node=from;node<to;node++){
+					while(node >= firstNodes[level+1]){
+						level++;
+					}
+					int i = node - firstNodes[level];
+					int blockID = blockIDs[level][i];
+					boolean last = i == levelSizes[level].length-1;
+					Node built;
+					if(level == 0){
+						LeafNode leaf = new LeafNode(blockID, config);
+						leaf.load(keys, pointers, starts[0][i], levelSizes[0][i]);
+						if(!last) leaf.setRightLeaf(blockID+1);
+						built = leaf;
+					}else{
+						InternalNode internal = new InternalNode(blockID, config);
+						internal.load(smallestKeys[level-1], blockIDs[level-1], starts[level][i], levelSizes[level][i]);
+						if(!last && config.isLinked()) internal.setRightLink(blockID+1);
+						built = internal;
+					}
+					if(!last && config.isLinked()) built.setHighKey(smallestKeys[level][i+1]);
+					built.toBytes(image);
+					bp.getFileManager().write(image, blockID);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/* Number of entries of a fixed size leaf at the fill factor */
+	private int leafEntries(){
+		return Math.max(1, Math.min(config.getOrder(), (int) (fillFactor * config.getOrder())));
+	}
+
+	/* Number of children of an internal node at the fill factor */
+	private int internalChildren(){
+		return Math.max(2, Math.min(config.getOrder()+1, (int) (fillFactor * (config.getOrder()+1))));
+	}
+
+	/**
+	 * Divides a number of entries into as few nodes as hold at most the given number of entries each, with
+	 * the sizes of the nodes differing by at most one. If there are at least two entries every node gets two,
+	 * so that an internal node never has a single child.
+	 * @param count - the number of entries
+	 * @param perNode - the number of entries of a full node
+	 * @return the number of entries of each node
+	 */
+	private static int[] evenSizes(int count, int perNode){
+		int nodes = Math.max(1, (count + perNode - 1) / perNode);
+		if(count >= 2) nodes = Math.min(nodes, count / 2);
+		int[] sizes = new int[nodes];
+		for(int i=0;i<nodes;i++){
+			sizes[i] = count / nodes + (i < count % nodes ? 1 : 0);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Packs delta encoded leaves from left to right while their encoded size stays within the fill factor
+	 * of a block. If the last leaf ends up less than half full, the entries of the last two leaves are
+	 * divided evenly between them when both halves fit in a block.
+	 * @param from - the position of the first pair to plan
+	 * @param to - the position after the last pair to plan
+	 * @return the number of entries of each leaf
+	 */
+	private int[] planDeltaLeaves(int[] keys, int[] pointers, int from, int to){
+		int nodeSize = config.getNodeSize();
+		int limit = (int) (fillFactor * nodeSize);
+		int[] sizes = new int[Math.max(1, to - from)];
+		int leaves = 0;
+		int start = from;
+		while(start < to){
+			int end = start + 1;
+			long smallestPointer = pointers[start], largestPointer = pointers[start];
+			while(end < to){
+				long smallest = Math.min(smallestPointer, pointers[end]);
+				long largest = Math.max(largestPointer, pointers[end]);
+				if(LeafNode.encodedSize(end - start + 1, (long) keys[end] - keys[start], largest - smallest) > limit) break;
+				smallestPointer = smallest;
+				largestPointer = largest;
+				end++;
+			}
+			sizes[leaves++] = end - start;
+			start = end;
+		}
+		if(leaves >= 2){
+			int lastStart = to - sizes[leaves-1];
+			int header = LeafNode.DELTA_HEADER_SIZE;
+			if((encodedSize(keys, pointers, lastStart, sizes[leaves-1]) - header)*2 < nodeSize - header){
+				int pairStart = lastStart - sizes[leaves-2];
+				int left = (to - pairStart + 1) / 2;
+				if(encodedSize(keys, pointers, pairStart, left) <= nodeSize
+						&& encodedSize(keys, pointers, pairStart + left, to - pairStart - left) <= nodeSize){
+					sizes[leaves-2] = left;
+					sizes[leaves-1] = to - pairStart - left;
+				}
+			}
+		}
+		int[] result = new int[Math.max(1, leaves)];
+		System.arraycopy(sizes, 0, result, 0, result.length);
+		return result;
+	}
+
+	/* Calculates the encoded size of a delta encoded leaf holding a run of the entries */
+	private static int encodedSize(int[] keys, int[] pointers, int from, int count){
+		long smallestPointer = Long.MAX_VALUE, largestPointer = Long.MIN_VALUE;
+		for(int i=from;i<from+count;i++){
+			smallestPointer = Math.min(smallestPointer, pointers[i]);
+			largestPointer = Math.max(largestPointer, pointers[i]);
+		}
+		if(count == 0) return LeafNode.DELTA_HEADER_SIZE;
+		return LeafNode.encodedSize(count, (long) keys[from+count-1] - keys[from], largestPointer - smallestPointer);
+	}
+}
@@ -1,9 +1,6 @@
 package objects;
 
 import java.io.IOException;
-import java.util.Arrays;
-
-import data.Bytes;
 
 /**
  * An InternalNode can only contain keys and child pointers, never disk pointers.
@@ -13,146 +10,259 @@ import data.Bytes;
  */
 public class InternalNode extends Node {
 
-	/** 
+	/**
 	 * Constructor for InternalNode created in main-memory after either splitting an InternalNode or splitting
 	 * a LeafNode that was previously root.
 	 * @param ID - the ID of the new node (should be the current size of the {@code RandomAccessFile}
+	 * @param config - the configuration of the tree
 	 */
-	public InternalNode(int ID){
-		super(ID, false);
-		this.keys = new byte[BPlusTree.getKeySize()*BPlusTree.getOrder()+BPlusTree.getKeySize()];
-		this.pointers = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)+BPlusTree.getPointerSize()];
+	InternalNode(int ID, TreeConfig config){
+		super(ID, false, config);
 	}
 	/**
 	 * Constructor for InternalNode that has been read from {@code RandomAccessFile}.
 	 * @param data - the byte array containing the node information, read from the RAF.
+	 * @param config - the configuration of the tree
+	 */
+	InternalNode(byte[] data, TreeConfig config){
+		super(config);
+		readPage(data);
+	}
+
+	/**
+	 * Returns an InternalNode that uses the block itself as its page, for descending the tree without copying
+	 * the block. The node is only valid as long as the block is, and must not be modified.
+	 * @param data - the block containing the node
+	 * @param config - the configuration of the tree
+	 * @return a read only view of the node
 	 */
-	public InternalNode(byte[] data){
-		super();
-		this.header = Arrays.copyOfRange(data, 0, 9);
-		this.keys = new byte[BPlusTree.getKeySize()*(BPlusTree.getOrder())+BPlusTree.getKeySize()];
-		this.pointers = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)+BPlusTree.getPointerSize()];
-		byte[] temporaryKeys = Arrays.copyOfRange(data, 9, 9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()));
-		System.arraycopy(temporaryKeys, 0, this.keys, 0, temporaryKeys.length);
-		byte[] temporaryPointers = Arrays.copyOfRange(data, 
-				9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()), 
-				9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()) + 
-				BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1));
-		System.arraycopy(temporaryPointers, 0, this.pointers, 0, temporaryPointers.length);
+	static InternalNode wrap(byte[] data, TreeConfig config){
+		InternalNode view = new InternalNode(config);
+		view.viewPage(data);
+		return view;
+	}
+
+	/* Constructor for a node whose page is set up by the caller */
+	private InternalNode(TreeConfig config){
+		super(config);
 	}
 
 	/**
 	 * Method for insertig a <key, childpointer> pair into an internal node
 	 * If the array overflows (i.e its amount of keys is larger than the order of the tree),
 	 * split the internal node and let the first ceil((n+2)/2) pointers stay in old node,
-	 * and let the remaining floor((n+2)/2) pointers move to new node.
+	 * and let the remaining floor((n+2)/2) pointers move to new node, moved with one copy of each run
+	 * of keys and pointers so that both nodes are written once.
 	 * Let the ceil(n/2) keys stay in old node and move floor(n/2) keys to new one.
 	 * The middle key is pushed recursively up in the parent along with a pointer to the new node.
-	 * In this implementation, the childNode that has been pushed up is always the new right node resulting from 
+	 * In this implementation, the childNode that has been pushed up is always the new right node resulting from
 	 * a split.
 	 * @param key - the key to insert
 	 * @param childNode - the pointer to the newly created child node
 	 * @param tree - a reference to the BPlusTree
-	 * @throws IOException 
+	 * @return the node that holds the inserted pointer, which is the new right node if the pointer was moved to it
+	 * @throws IOException
 	 */
 	public InternalNode insert(int key, int pointer, BPlusTree tree) throws IOException{
+		tree.requireLatched(this);
 		this.log("Inserting " + key + "," + pointer + " into InternalNode " + this.getID());
-		InternalNode leftNode = this;
-		InternalNode rightNode = null;
-		InternalNode newInternal = null;
-		byte[] keys = leftNode.getKeys();
-		byte[] pointers = leftNode.getPointers();
-		boolean inserted = false;
-		byte[] temporaryKeys = new byte[keys.length];
-		byte[] temporaryPointers = new byte[pointers.length];
-		// Whether or not the Node is full, insert the key (possibly in the extra key, pointer position)
-		if(Bytes.bytesToInt(keys, 0) == 0){
-			// The keys are empty, just put the key pointer value
-			this.log("Key set are empty. Inserting at the beginning.");
-			Bytes.intToBytes(key, keys, 0);
-			Bytes.intToBytes(pointer, pointers, 4);
+		int count = getNumberOfKeys();
+		int position = lowerBound(key);
+		InternalNode holder = this;
+		if(position < count && getKey(position) == key){
+			// Found a key matching the inserted key, just update pointer
+			this.log("Found matching key, updating pointer");
+			setPointer(position+1, pointer);
+		}else if(count < this.capacity){
+			insertAt(position, key, pointer);
 		}else{
-			for( int i = 0; i < keys.length-4 ; i+=4){
-				if(key < Bytes.bytesToInt(keys, i)){
-					// Found position for key within key range, shift keys and pointers one step to the right
-					this.log("Key smaller than current value.");
-					System.arraycopy(keys, i, temporaryKeys, 0, temporaryKeys.length-i);
-					System.arraycopy(pointers, i+4, temporaryPointers, 0, temporaryPointers.length-(i+4));
-					// Then insert the new key, pointer pair
-					Bytes.intToBytes(key, keys, i);
-					Bytes.intToBytes(pointer, pointers, i+4);
-					// Finally copy the shifted key, pointer pairs back
-					System.arraycopy(temporaryKeys, 0, keys, i+4, temporaryKeys.length-(i+4));
-					System.arraycopy(temporaryPointers, 0, pointers, i+8, temporaryPointers.length-(i+8));
-					inserted = true;
-					break;
-				}else if(key == Bytes.bytesToInt(keys, i) && !inserted){
-					// Found a key matching the inserted key, just update pointer
-					this.log("Found matching key, updating pointer");
-					Bytes.intToBytes(pointer, pointers, i+4);
-					this.setPointers(pointers);
-					inserted = true;
-					break;
-				}
+			// Full, so we have to split.
+			this.log("This InternalNode is full. Splitting.");
+			InternalNode rightNode = new InternalNode(tree.allocateBlock(), config);
+			this.log("Created new InternalNode with ID " + rightNode.getID());
+			int leftCount = (count + 1) / 2; // ceil(n/2) keys stay, counting the new one
+			int middleKey;
+			// Move the keys and pointers after the middle key to the right node, keeping a slot for the new entry
+			if(position < leftCount){
+				// The new key goes to the left node, the last key staying in it is pushed up
+				middleKey = getKey(leftCount-1);
+				copyKeysTo(rightNode, leftCount, count-leftCount, 0);
+				copyPointersTo(rightNode, leftCount, count-leftCount+1, 0);
+				rightNode.setNumberOfKeys(count-leftCount);
+				setNumberOfKeys(leftCount-1);
+				insertAt(position, key, pointer);
+			}else if(position == leftCount){
+				// The new key is the middle key, its pointer becomes the smallest pointer of the right node
+				middleKey = key;
+				rightNode.setSmallestPointer(pointer);
+				copyKeysTo(rightNode, leftCount, count-leftCount, 0);
+				copyPointersTo(rightNode, leftCount+1, count-leftCount, 1);
+				rightNode.setNumberOfKeys(count-leftCount);
+				setNumberOfKeys(leftCount);
+			}else{
+				// The new key goes to the right node
+				middleKey = getKey(leftCount);
+				copyKeysTo(rightNode, leftCount+1, count-leftCount-1, 0);
+				copyPointersTo(rightNode, leftCount+1, count-leftCount, 0);
+				rightNode.setNumberOfKeys(count-leftCount-1);
+				setNumberOfKeys(leftCount);
+				rightNode.insertAt(position-leftCount-1, key, pointer);
 			}
-			// The key is larger than any existing key in InternalNode, append it to the end
-			if(!inserted){
-				this.log("Key is larger than any other key, appending.");
-				Bytes.appendInt(keys, key);
-				Bytes.appendInt(pointers, pointer);
+			if(config.isLinked()){
+				// The right node takes over the link and high key, the middle key becomes the high key of this node
+				rightNode.setRightLink(this.getRightLink());
+				rightNode.setHighKey(this.getHighKey());
+				this.setRightLink(rightNode.getID());
+				this.setHighKey(middleKey);
 			}
-			this.keys = new byte[BPlusTree.getKeySize()*(BPlusTree.getOrder())+BPlusTree.getKeySize()];
-			if(Bytes.getLastIndex(keys) > BPlusTree.getKeySize() * BPlusTree.getOrder()){
-				// Full, so we have to split.
-				this.log("This InternalNode is full. Splitting.");
-				rightNode = new InternalNode(tree.getFileManager().getSize());
-				this.log("Created new InternalNode with ID " + rightNode.getID());
-				byte[] keysForRightNode = new byte[BPlusTree.getKeySize()*BPlusTree.getOrder()];
-				byte[] pointersForRightNode = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)];
-				// Find the position to split keys and pointers
-				int keyByteIndexToSplitAt = (int) (BPlusTree.getKeySize()*
-						Math.ceil(((double)(BPlusTree.getOrder()))/2.0));
-				int pointerByteIndexToSplitAt = (int) (BPlusTree.getPointerSize()*
-						Math.ceil(((double)(BPlusTree.getOrder()+2))/2.0));
-				// Copy all keys and pointers from above positions and forward to arrays for right node
-				System.arraycopy(keys, keyByteIndexToSplitAt, keysForRightNode, 0, keys.length-keyByteIndexToSplitAt);
-				System.arraycopy(pointers, pointerByteIndexToSplitAt, pointersForRightNode, 0, pointers.length-pointerByteIndexToSplitAt);
-				// Move keys and pointers to right node
-				rightNode.setSmallestPointer(Bytes.bytesToInt(pointersForRightNode,0));
-				for(int i = 4; i < Bytes.getLastIndex(keysForRightNode); i+=4){
-					int movingKey = Bytes.bytesToInt(keysForRightNode, i);
-					int movingPointer = Bytes.bytesToInt(pointersForRightNode, i);
-					this.log("Moving <" + movingKey + "," + movingPointer + "> from " 
-							+ leftNode.getID() + " to " + rightNode.getID() + ".");
-					rightNode.insert(movingKey, movingPointer, tree);
-				}
-				Bytes.clearBytesFromPosition(keys, keyByteIndexToSplitAt); // Removes the keys that was moved from left node
-				Bytes.clearBytesFromPosition(pointers, pointerByteIndexToSplitAt); // Removes the pointers that was moved from left node
-				tree.getFileManager().write(rightNode.toBytes(), rightNode.getID());
-				if(leftNode.isRoot()){
-					// Create a new root
-					int id = tree.getFileManager().getSize();
-					this.log("Split InternalNode " + this.getID() + " was previously root, creating new root InternalNode w/ ID " + id);
-					newInternal = new InternalNode(id);
-					tree.setRoot(newInternal.getID(), 0);
-					newInternal.setSmallestPointer(leftNode.getID());
-					newInternal.insert(Bytes.bytesToInt(keysForRightNode,0), rightNode.getID(), tree);
-					tree.getFileManager().write(newInternal.toBytes());
-				}else{
-					// Push the new right node ID to parent
-					newInternal = (InternalNode) leftNode.parent;
-					this.log("Pushing right node ID " + rightNode.getID() + " to parent ID" + parent.getID());
-					newInternal.insert(Bytes.bytesToInt(keysForRightNode,0), rightNode.getID(), tree);
-					tree.getFileManager().write(newInternal.toBytes(), newInternal.getID());
-				}
+			if(position >= leftCount) holder = rightNode;
+			this.log("Moved " + rightNode.getNumberOfKeys() + " keys from " + this.getID() + " to " + rightNode.getID() + ".");
+			rightNode.printKeyDiskPointers();
+			tree.writeNode(rightNode);
+			// In a B-link tree the parent is found again, it may have been split since the tree was descended
+			InternalNode newInternal = config.isLinked() ? tree.latchParent(this, middleKey) : (InternalNode) this.parent;
+			if(newInternal == null){
+				// Create a new root
+				int id = tree.allocateBlock();
+				this.log("Split InternalNode " + this.getID() + " was previously root, creating new root InternalNode w/ ID " + id);
+				newInternal = new InternalNode(id, config);
+				tree.setRoot(newInternal.getID(), 0);
+				newInternal.setSmallestPointer(this.getID());
+				this.setParent(newInternal);
+				rightNode.setParent(newInternal.insert(middleKey, rightNode.getID(), tree));
+			}else{
+				// Push the new right node ID to parent
+				this.log("Pushing right node ID " + rightNode.getID() + " to parent ID" + newInternal.getID());
+				rightNode.setParent(newInternal.insert(middleKey, rightNode.getID(), tree));
 			}
-			if(rightNode != null) tree.getFileManager().write(rightNode.toBytes(), rightNode.getID());
-			leftNode.setKeys(keys);
-			leftNode.setPointers(pointers);
-			leftNode.printKeyDiskPointers();
-			tree.getFileManager().write(leftNode.toBytes(), leftNode.getID());
 		}
-		return this;
+		this.printKeyDiskPointers();
+		tree.writeNode(this);
+		return holder;
+	}
+	/**
+	 * Sets the children of a new internal node, used when bulk loading. Each child is given with the smallest
+	 * key of its subtree, which becomes the key before its pointer (the key of the first child is not stored).
+	 * The node is not written.
+	 * @param keys - the smallest keys of the subtrees of the children
+	 * @param children - the block IDs of the children
+	 * @param from - the position of the first child of the node in the arrays
+	 * @param count - the number of children of the node
+	 */
+	void load(int[] keys, int[] children, int from, int count){
+		setPointer(0, children[from]);
+		for(int i=1;i<count;i++){
+			setKey(i-1, keys[from+i]);
+			setPointer(i, children[from+i]);
+		}
+		setNumberOfKeys(count-1);
+	}
+
+	/**
+	 * Method for removing the key at a position of the internal node along with the child pointer after it,
+	 * which is done when that child has been merged into the child before it.
+	 * If the node falls below the minimum fill of floor(n/2) keys it borrows a child from a sibling with the
+	 * same parent, rotating the separating key of the parent, or is merged with the sibling, in which case
+	 * the separating key is pulled down into the merged node and removed from the parent.
+	 * A root left without keys is replaced by its only child.
+	 * @param position - the position of the key to remove
+	 * @param key - the key being deleted from the tree, used to find this node among the children of its parent
+	 * @param tree - a reference to the BPlusTree
+	 * @throws IOException
+	 */
+	void remove(int position, int key, BPlusTree tree) throws IOException{
+		this.log("Removing key " + getKey(position) + " and child " + getPointer(position+1) + " from InternalNode " + this.getID());
+		int count = getNumberOfKeys();
+		moveKeys(position+1, count-position-1, -1);
+		movePointers(position+2, count-position-1, -1);
+		count--;
+		setNumberOfKeys(count);
+		if(this.isRoot()){
+			if(count == 0){
+				tree.collapseRoot(this);
+			}else{
+				tree.writeNode(this);
+			}
+			return;
+		}
+		int minimumKeys = config.getOrder()/2;
+		if(count >= minimumKeys){
+			tree.writeNode(this);
+			return;
+		}
+		InternalNode parent = (InternalNode) this.parent;
+		int index = parent.upperBound(key); // Position of this node among the children of the parent
+		if(index < parent.getNumberOfKeys()){
+			InternalNode right = tree.readInternalForUpdate(parent.getPointer(index+1));
+			right.setParent(parent);
+			int rightCount = right.getNumberOfKeys();
+			if(rightCount > minimumKeys){
+				// The separator moves down to this node and the first key of the right node replaces it
+				this.log("Borrowing child " + right.getPointer(0) + " from right InternalNode " + right.getID());
+				insertAt(count, parent.getKey(index), right.getPointer(0));
+				parent.setKey(index, right.getKey(0));
+				right.moveKeys(1, rightCount-1, -1);
+				right.movePointers(1, rightCount, -1);
+				right.setNumberOfKeys(rightCount-1);
+				tree.writeNode(right);
+				tree.writeNode(this);
+				tree.writeNode(parent);
+			}else{
+				this.log("Merging right InternalNode " + right.getID() + " into InternalNode " + this.getID());
+				merge(parent.getKey(index), right);
+				tree.writeNode(this);
+				tree.freeBlock(right.getID());
+				parent.remove(index, key, tree);
+			}
+		}else{
+			InternalNode left = tree.readInternalForUpdate(parent.getPointer(index-1));
+			left.setParent(parent);
+			int leftCount = left.getNumberOfKeys();
+			if(leftCount > minimumKeys){
+				// The separator moves down to this node and the last key of the left node replaces it
+				this.log("Borrowing child " + left.getPointer(leftCount) + " from left InternalNode " + left.getID());
+				moveKeys(0, count, 1);
+				movePointers(0, count+1, 1);
+				setKey(0, parent.getKey(index-1));
+				setPointer(0, left.getPointer(leftCount));
+				setNumberOfKeys(count+1);
+				parent.setKey(index-1, left.getKey(leftCount-1));
+				left.setNumberOfKeys(leftCount-1);
+				tree.writeNode(left);
+				tree.writeNode(this);
+				tree.writeNode(parent);
+			}else{
+				this.log("Merging InternalNode " + this.getID() + " into left InternalNode " + left.getID());
+				left.merge(parent.getKey(index-1), this);
+				tree.writeNode(left);
+				tree.freeBlock(this.getID());
+				parent.remove(index-1, key, tree);
+			}
+		}
+		this.printKeyDiskPointers();
+	}
+
+	/* Appends the separating key of the parent followed by the keys and pointers of the right sibling */
+	private void merge(int separator, InternalNode right){
+		int count = getNumberOfKeys();
+		int rightCount = right.getNumberOfKeys();
+		setKey(count, separator);
+		right.copyKeysTo(this, 0, rightCount, count+1);
+		right.copyPointersTo(this, 0, rightCount+1, count+1);
+		setNumberOfKeys(count+1+rightCount);
+	}
+
+	/**
+	 * Inserts a key at a position and its child pointer after it, shifting the keys and pointers after them
+	 * one slot to the right. The node is not written.
+	 */
+	private void insertAt(int position, int key, int pointer){
+		int count = getNumberOfKeys();
+		moveKeys(position, count-position, 1);
+		movePointers(position+1, count-position, 1);
+		setKey(position, key);
+		setPointer(position+1, pointer);
+		setNumberOfKeys(count+1);
 	}
 /**
  * Sets the smallest pointer reachable via this InternalNode.
@@ -160,49 +270,38 @@ public class InternalNode extends Node {
  */
 	public void setSmallestPointer(int smallestPointer){
 		this.log("Setting smallest pointer: " + smallestPointer + " in InternalNode " + this.getID());
-		byte[] pointers = this.getPointers();
-		byte[] temporaryPointers = new byte[pointers.length];
-		System.arraycopy(pointers, 0, temporaryPointers, 0, temporaryPointers.length);
-		Bytes.intToBytes(smallestPointer, pointers, 0);
-		System.arraycopy(temporaryPointers, 0, pointers, 4, temporaryPointers.length-4);
-		this.setPointers(pointers);
+		setPointer(0, smallestPointer);
 	}
 
 	/** Method for getting the child node (or subtree) that might contain the key.
+	 *  The child is found by a binary search for the first key greater than the key; the pointer
+	 *  before that key leads to the subtree containing the key.
 	 *  @return The child node that contains the key.
 	 */
 	public int get(int key){
-		byte[] keys = this.getKeys();
-		byte[] pointers = this.getPointers();
-		if(key < Bytes.bytesToInt(keys, 0)){
-			this.log(key + " is smaller than smallest key " + Bytes.bytesToInt(keys, 0));
-			return Bytes.bytesToInt(pointers, 0);
-		}else if(key >= Bytes.bytesToInt(keys, Bytes.getLastIndex(keys)-4)){
-			this.log(key + " is greater than greatest key " + Bytes.bytesToInt(keys, Bytes.getLastIndex(keys)-4));
-			return Bytes.bytesToInt(pointers, Bytes.getLastIndex(pointers)-4);
-		}else{
-			for(int i = 0; i <= keys.length-4; i+=4){
-				if(key >= Bytes.bytesToInt(keys, i) && key < Bytes.bytesToInt(keys, i+4)){
-					return Bytes.bytesToInt(pointers, i+4);
-				}
-			}
-		}
-		return 0;
+		return getPointer(upperBound(key));
+	}
+
+	/**
+	 * Returns the number of child pointers stored in the node.
+	 * @return the number of keys plus one
+	 */
+	public int getNumberOfChildren(){
+		return getNumberOfKeys() + 1;
 	}
 
 	public void printKeyDiskPointers(){
+		if(!isLogging()) return;
 		this.log("----- InternalNode " + this.getID() + " -----");
-		byte[] keys = this.getKeys();
-		byte[] pointers = this.getPointers();
-		String result = "Keys:\n[ ";
-		for(int i = 0; i < keys.length-4; i+=4){
-			result += Bytes.bytesToInt(keys, i) + " ";
+		StringBuilder result = new StringBuilder("Keys:\n[ ");
+		for(int i = 0; i < getNumberOfKeys(); i++){
+			result.append(getKey(i)).append(' ');
 		}
-		result += "]\nPointers:\n[ ";
-		for(int i = 0; i < pointers.length-4; i+=4){
-			result += Bytes.bytesToInt(pointers, i) + " ";
+		result.append("]\nPointers:\n[ ");
+		for(int i = 0; i < getNumberOfChildren(); i++){
+			result.append(getPointer(i)).append(' ');
 		}
-		result += "]";
-		this.log(result);
+		result.append(']');
+		this.log(result.toString());
 	}
 }
@@ -1,6 +1,7 @@
 package objects;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import data.Bytes;
@@ -8,186 +9,661 @@ import data.Bytes;
 /**
  * Class representing a LeafNode.
  * The LeafNode differs somewhat from the InternalNode in the insertion and get methods.
- * The LeafNode class uses the last four bytes of the header to store an eventual right leaf pointer
+ * The LeafNode class uses bytes 5 to 8 of the header to store an eventual right leaf pointer
+ * In a tree with delta encoded leaves the keys and pointers are stored in a compact form instead:
+ * Attribute:			Stored @ byte:
+ * Header				0 to 8 (as for every Node)
+ * Entry count			9 to 12
+ * Key base				13 to 16 (the smallest key)
+ * Key bit width		17
+ * Pointer base			18 to 21 (the smallest pointer)
+ * Pointer bit width	22
+ * Key deltas			23 and forward, one (key - key base) per entry, each key bit width bits long
+ * Pointer deltas		directly after the key deltas, one (pointer - pointer base) per entry
+ * The bit widths are the smallest that fit the largest delta of the node, so dense keys (such as
+ * consecutive IDs) take a few bits each. Such a leaf has no fixed order; it is split when its encoded size
+ * no longer fits in a block. In main memory a delta encoded leaf is decoded into a page with the usual
+ * layout, which grows when the leaf holds more entries than the order of the tree.
+ * In a B-link tree the high key is kept in the last bytes of the block in both formats, see {@link Node}.
  * @author Emil Bergwik
  * @see Node
  */
 public class LeafNode extends Node {
-	/** 
+	static final int DELTA_HEADER_SIZE = 23; // Bytes used before the key deltas of a delta encoded leaf
+	// Range of the stored pointers, kept so the encoded size is known without a scan. It may be wider than
+	// the actual range after a pointer is overwritten, which only overestimates the size.
+	private long smallestPointer = Long.MAX_VALUE, largestPointer = Long.MIN_VALUE;
+	// Smallest key belonging to the leaves to the right, as known from the descent (set in main memory)
+	long rangeEnd = Long.MAX_VALUE;
+	// Frame the leaf was copied from and its version at the time, -1 if not recorded (set in main memory)
+	int frame = -1;
+	long version = -1;
+	/**
 	 * Constructor for LeafNode created in main-memory after splitting a LeafNode that was full.
 	 * @param ID - the ID of the new node (should be the current size of the {@code RandomAccessFile}
+	 * @param config - the configuration of the tree
 	 */
-	public LeafNode(int ID) {
-		super(ID, true);
-		this.keys = new byte[BPlusTree.getKeySize()*(BPlusTree.getOrder())+BPlusTree.getKeySize()];
-		this.pointers = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)+BPlusTree.getPointerSize()];
+	LeafNode(int ID, TreeConfig config) {
+		super(ID, true, config);
 	}
 	/**
 	 * Constructor for LeafNode that has been read from {@code RandomAccessFile}.
 	 * @param data - the byte array containing the node information, read from the RAF.
+	 * @param config - the configuration of the tree
+	 */
+	LeafNode(byte[] data, TreeConfig config){
+		super(config);
+		if(config.isLeafDeltaEncoded()){
+			decode(data);
+		}else{
+			readPage(data);
+		}
+	}
+
+	/**
+	 * Searches a leaf block for the key in place, without creating a LeafNode or copying the block.
+	 * @param data - the block containing the leaf
+	 * @param key - the key to search for
+	 * @param config - the configuration of the tree
+	 * @return the disk pointer of the key, or {@link BPlusTree#NOT_FOUND} if the leaf does not contain the key
 	 */
-	public LeafNode(byte[] data){
-		super();
-		this.header = Arrays.copyOfRange(data, 0, 9);
-		this.keys = new byte[BPlusTree.getKeySize()*(BPlusTree.getOrder())+BPlusTree.getKeySize()];
-		this.pointers = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)+BPlusTree.getPointerSize()];
-		byte[] temporaryKeys = Arrays.copyOfRange(data, 9, 9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()));
-		System.arraycopy(temporaryKeys, 0, this.keys, 0, temporaryKeys.length);
-		byte[] temporaryPointers = Arrays.copyOfRange(data, 
-				9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()), 
-				9 + BPlusTree.getKeySize()*(BPlusTree.getOrder()) + 
-				BPlusTree.getPointerSize()*BPlusTree.getOrder());
-		System.arraycopy(temporaryPointers, 0, this.pointers, 0, temporaryPointers.length);
+	static int find(byte[] data, int key, TreeConfig config){
+		if(config.isLeafDeltaEncoded()){
+			return findEncoded(data, key);
+		}
+		LeafNode view = new LeafNode(config);
+		view.viewPage(data);
+		return view.get(key);
+	}
+
+	/* Constructor for a leaf whose page is set up by the caller */
+	private LeafNode(TreeConfig config){
+		super(config);
 	}
 
 	/**
 	 * Method for inserting a <key, blockpointer> pair into the leaf node
-	 * If the <key,pointer> byte array cannot hold the newly inserted <key, block pointer>,
-	 * split the leaf and let the first ceil((n+1)/2) <key, pointers> stay
-	 * and let the remaining floor((n+1)/2) <key, pointers> go to the new node.
-	 * After that, push the right node to the parent of the old node, 
-	 * set the left node's right pointer to the new node, and the new nodes 
+	 * If the leaf cannot hold the newly inserted <key, block pointer>,
+	 * split the leaf so that the first ceil((n+1)/2) <key, pointers> (counting the new one) stay
+	 * and the remaining floor((n+1)/2) <key, pointers> go to the new node, moved with one copy of each run
+	 * of keys and pointers. Both leaves are written once.
+	 * After that, push the right node to the parent of the old node,
+	 * set the left node's right pointer to the new node, and the new nodes
 	 * right pointer to the old nodes previous pointer.
 	 * @param key - the key to insert
 	 * @param pointer - the block pointer for this key
 	 * @param tree - a reference to the BPlusTree
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	public void insert(int key, int pointer, BPlusTree tree) throws IOException{
 		this.log("Inserting " + key + "," + pointer + " into LeafNode " + this.getID());
-		LeafNode leftNode = this;
-		LeafNode rightNode = null;
-		InternalNode newInternal = null;
-		byte[] keys = leftNode.getKeys();
-		byte[] pointers = leftNode.getPointers();
-		boolean inserted = false;
-		byte[] temporaryKeys = new byte[keys.length];
-		byte[] temporaryPointers = new byte[pointers.length];
-		if(Bytes.bytesToInt(keys, 0) == 0){
-			// The keys are empty, just put the key pointer value
-			this.log("This block has no keys, inserting at the beginning.");
-			Bytes.intToBytes(key, keys, 0);
-			Bytes.intToBytes(pointer, pointers, 0);
-			inserted = true;
+		int count = getNumberOfKeys();
+		int position = lowerBound(key);
+		if(position < count && getKey(position) == key){
+			if(fits(key, pointer)){
+				// Found a key matching the inserted key, just update pointer
+				this.log("Found matching key, updating pointer");
+				setPointer(position, pointer);
+				includePointer(pointer);
+				tree.writeNode(this);
+				return;
+			}
+			// The new pointer does not fit in the delta encoded leaf, insert the entry again as a new one
+			removeAt(position);
+			count--;
+		}
+		if(fits(key, pointer)){
+			insertAt(position, key, pointer);
+			this.printKeyDiskPointers();
+			tree.writeNode(this);
+			return;
+		}
+		// The LeafNode is full, so we have to split it before inserting.
+		this.log("This LeafNode is full. Splitting.");
+		LeafNode rightNode = new LeafNode(tree.allocateBlock(), config);
+		this.log("Created new LeafNode with ID " + rightNode.getID());
+		int leftCount = (count + 2) / 2; // ceil((n+1)/2) entries stay, counting the new one
+		boolean insertLeft = position < leftCount;
+		if(insertLeft) leftCount--;
+		// Move the upper half of the keys and pointers to the right node
+		int movingEntries = count - leftCount;
+		this.log("Moving " + movingEntries + " <key, pointer> pairs from " + this.getID() + " to " + rightNode.getID() + ".");
+		rightNode.ensureCapacity(movingEntries);
+		copyKeysTo(rightNode, leftCount, movingEntries, 0);
+		copyPointersTo(rightNode, leftCount, movingEntries, 0);
+		rightNode.setNumberOfKeys(movingEntries);
+		rightNode.resetPointerRange();
+		setNumberOfKeys(leftCount);
+		resetPointerRange();
+		LeafNode target = insertLeft ? this : rightNode;
+		int targetPosition = insertLeft ? position : position - leftCount;
+		// A delta encoded half may still be too small for the entry, it is then inserted (and split) once the split is done
+		boolean inserted = target.fits(key, pointer);
+		if(inserted){
+			target.insertAt(targetPosition, key, pointer);
+		}
+		int separator = target == rightNode && targetPosition == 0 ? key : rightNode.getKey(0);
+		if(this.getRightLeaf() != 0){
+			rightNode.setRightLeaf(this.getRightLeaf());
+			if(config.isLinked()) rightNode.setHighKey(this.getHighKey());
+		}
+		this.setRightLeaf(rightNode.getID());
+		if(config.isLinked()) this.setHighKey(separator);
+		// In a B-link tree the parent is found again, it may have been split since the tree was descended
+		InternalNode newInternal = config.isLinked() ? tree.latchParent(this, separator) : (InternalNode) this.parent;
+		if(newInternal == null){
+			// Create a new root
+			int id = tree.allocateBlock();
+			this.log("Split LeftNode " + this.getID() + " was previously root, creating new root InternalNode w/ ID " + id);
+			newInternal = new InternalNode(id, config);
+			tree.setRoot(newInternal.getID(), 0);
+			newInternal.setSmallestPointer(this.getID());
+			this.setParent(newInternal);
+			rightNode.setParent(newInternal.insert(separator, rightNode.getID(), tree));
 		}else{
-			for( int i = 0; i < keys.length-4 ; i+=4){
-				if(key < Bytes.bytesToInt(keys, i)){
-					// Found position for key within key range, shift keys and pointers one step to the right
-					this.log("Key smaller than current value.");
-					System.arraycopy(keys, i, temporaryKeys, 0, temporaryKeys.length-i);
-					System.arraycopy(pointers, i, temporaryPointers, 0, temporaryPointers.length-i);
-					// Then insert the new key, pointer pair
-					Bytes.intToBytes(key, keys, i);
-					Bytes.intToBytes(pointer, pointers, i);
-					// Finally copy the shifted key, pointer pairs back
-					System.arraycopy(temporaryKeys, 0, keys, i+4, temporaryKeys.length-(i+4));
-					System.arraycopy(temporaryPointers, 0, pointers, i+4, temporaryPointers.length-(i+4));
-					this.printKeyDiskPointers();
-					inserted = true;
-					break;
-				}else if(key == Bytes.bytesToInt(keys, i)){
-					// Found a key matching the inserted key, just update pointer
-					this.log("Found matching key, updating pointer");
-					Bytes.intToBytes(pointer, pointers, i);
-					inserted = true;
-					break;
-				}
+			// Push the new right node ID to parent
+			this.log("Pushing up right node ID " + rightNode.getID() + " to parent ID " + newInternal.getID());
+			rightNode.setParent(newInternal.insert(separator, rightNode.getID(), tree));
+		}
+		tree.writeNode(rightNode);
+		this.printKeyDiskPointers();
+		tree.writeNode(this);
+		if(!inserted){
+			target.insert(key, pointer, tree);
+		}
+	}
+
+	/**
+	 * Inserts a run of entries sorted by key in one pass, up to the first key belonging to a leaf to the right
+	 * as known from the descent. As many entries as fit without splitting the leaf are merged with the entries
+	 * of the leaf from the back, so every entry of the leaf is moved at most once, and the leaf is written once.
+	 * An entry with the key of an entry of the leaf replaces its pointer; of several entries of the run with
+	 * the same key, the last one is kept.
+	 * @param keys - the keys of the run, in ascending order
+	 * @param pointers - the disk pointers of the keys
+	 * @param from - the position of the first entry to insert, which must belong to this leaf
+	 * @param tree - a reference to the BPlusTree
+	 * @return the position after the last entry inserted, which is {@code from} if the first entry does not fit
+	 */
+	int insertRun(int[] keys, int[] pointers, int from, BPlusTree tree){
+		int count = getNumberOfKeys();
+		// Find how many entries fit, and how many of them add a key to the leaf
+		long smallestKey = count > 0 ? getKey(0) : Long.MAX_VALUE;
+		long largestKey = count > 0 ? getKey(count-1) : Long.MIN_VALUE;
+		long smallestPointer = this.smallestPointer, largestPointer = this.largestPointer;
+		int added = 0;
+		int end = from;
+		while(end < keys.length && keys[end] < rangeEnd){
+			int key = keys[end];
+			boolean adds = (end == from || keys[end-1] != key) && !contains(key);
+			if(config.isLeafDeltaEncoded()){
+				long smallest = Math.min(smallestPointer, pointers[end]), largest = Math.max(largestPointer, pointers[end]);
+				long size = encodedSize(count + added + (adds ? 1 : 0), Math.max(largestKey, key) - Math.min(smallestKey, key), 
+						largest - smallest);
+				if(size > config.getNodeSize()) break;
+				smallestPointer = smallest;
+				largestPointer = largest;
+			}else if(adds && count + added == this.capacity){
+				break;
 			}
-			// The key is larger than any existing key, append it to the end
-			if(!inserted){
-				this.log("Key is larger than any other key, appending.");
-				Bytes.appendInt(keys, key);
-				Bytes.appendInt(pointers, pointer);
+			smallestKey = Math.min(smallestKey, key);
+			largestKey = Math.max(largestKey, key);
+			if(adds) added++;
+			end++;
+		}
+		if(end == from) return from;
+		this.log("Inserting " + (end - from) + " entries into LeafNode " + this.getID());
+		ensureCapacity(count + added);
+		// Merge from the back, the last entry of the run with a key is the one kept
+		int position = count + added - 1;
+		int existing = count - 1;
+		for(int next = end - 1; next >= from; next--){
+			int key = keys[next];
+			int pointer = pointers[next];
+			while(next > from && keys[next-1] == key){
+				next--;
+			}
+			// The entries of the leaf above the key are moved up with one copy
+			int low = 0, high = existing + 1;
+			while(low < high){
+				int middle = (low + high) >>> 1;
+				if(getKey(middle) > key){
+					high = middle;
+				}else{
+					low = middle + 1;
+				}
 			}
+			int moving = existing + 1 - low;
+			moveKeys(low, moving, position - existing);
+			movePointers(low, moving, position - existing);
+			position -= moving;
+			existing = low - 1;
+			if(existing >= 0 && getKey(existing) == key) existing--;
+			setKey(position, key);
+			setPointer(position--, pointer);
+			includePointer(pointer);
 		}
-		if(Bytes.getLastIndex(keys) > BPlusTree.getKeySize() * BPlusTree.getOrder()){
-			// The LeafNode became full after inserting, so we have to split it.
-			this.log("This LeafNode is full. Splitting.");
-			rightNode = new LeafNode(tree.getFileManager().getSize());
-			this.log("Created new LeafNode with ID " + rightNode.getID());
-			byte[] keysForRightNode = new byte[BPlusTree.getKeySize()*BPlusTree.getOrder()];
-			byte[] pointersForRightNode = new byte[BPlusTree.getPointerSize()*(BPlusTree.getOrder()+1)];
-			// Find the position to split keys and pointers
-			int byteIndexToSplitAt = (int) (BPlusTree.getKeySize()*Math.ceil((double)(BPlusTree.getOrder()+1)/2.0));
-			// Copy all keys and pointers from above positions and forward to arrays for right node
-			System.arraycopy(keys, byteIndexToSplitAt, keysForRightNode, 0, keys.length-byteIndexToSplitAt);
-			System.arraycopy(pointers, byteIndexToSplitAt, pointersForRightNode, 0, pointers.length-byteIndexToSplitAt);
-			// Move keys and pointers to right node
-			for(int i = 0; i < Bytes.getLastIndex(keysForRightNode); i+=4){
-				int movingKey = Bytes.bytesToInt(keysForRightNode, i);
-				int movingPointer = Bytes.bytesToInt(pointersForRightNode, i);
-				this.log("Moving <" + movingKey + "," + movingPointer + "> from " 
-						+ leftNode.getID() + " to " + rightNode.getID() + ".");
-				rightNode.insert(movingKey, movingPointer, tree);
+		setNumberOfKeys(count + added);
+		this.printKeyDiskPointers();
+		tree.writeNode(this);
+		return end;
+	}
+
+	/* Checks if the leaf holds the key */
+	private boolean contains(int key){
+		int position = lowerBound(key);
+		return position < getNumberOfKeys() && getKey(position) == key;
+	}
+
+	/**
+	 * Sets the entries of a new leaf to a run of sorted keys and their pointers, used when bulk loading.
+	 * The leaf is not written.
+	 * @param keys - the sorted keys
+	 * @param pointers - the disk pointers of the keys
+	 * @param from - the position of the first entry of the leaf in the arrays
+	 * @param count - the number of entries of the leaf
+	 */
+	void load(int[] keys, int[] pointers, int from, int count){
+		ensureCapacity(count);
+		for(int i=0;i<count;i++){
+			setKey(i, keys[from+i]);
+			setPointer(i, pointers[from+i]);
+		}
+		setNumberOfKeys(count);
+		resetPointerRange();
+	}
+
+	/**
+	 * Method for deleting a key from the leaf node.
+	 * If the leaf falls below the minimum fill it borrows an entry from a sibling with the same parent,
+	 * or is merged with it. The sibling to the right is used when there is one, which is the leaf its right
+	 * leaf pointer leads to; otherwise the leaf borrows from or is merged into the sibling to its left.
+	 * A merge removes the separating key from the parent, which may in turn rebalance the parent.
+	 * A leaf that is the root may hold any number of entries, and so may any leaf of a B-link tree, which
+	 * never merges nodes since a search may be on its way to any of them without holding a latch.
+	 * @param key - the key to delete
+	 * @param tree - a reference to the BPlusTree
+	 * @return true if the leaf contained the key
+	 * @throws IOException
+	 */
+	public boolean delete(int key, BPlusTree tree) throws IOException{
+		int position = lowerBound(key);
+		if(position == getNumberOfKeys() || getKey(position) != key){
+			return false;
+		}
+		this.log("Deleting " + key + " from LeafNode " + this.getID());
+		removeAt(position);
+		if(!config.isLinked() && !this.isRoot() && isUnderfull()){
+			rebalance(key, tree);
+		}else{
+			tree.writeNode(this);
+		}
+		this.printKeyDiskPointers();
+		return true;
+	}
+
+	/* Borrows an entry from a sibling or merges with it, the key is used to find the leaf among the children of its parent */
+	private void rebalance(int key, BPlusTree tree) throws IOException{
+		InternalNode parent = (InternalNode) this.parent;
+		int index = parent.upperBound(key); // Position of this leaf among the children of the parent
+		if(index < parent.getNumberOfKeys()){
+			LeafNode right = tree.readLeafForUpdate(parent.getPointer(index+1));
+			right.setParent(parent);
+			if(right.canLend() && fits(right.getKey(0), right.getPointer(0))){
+				this.log("Borrowing <" + right.getKey(0) + "," + right.getPointer(0) + "> from right LeafNode " + right.getID());
+				insertAt(getNumberOfKeys(), right.getKey(0), right.getPointer(0));
+				right.removeAt(0);
+				parent.setKey(index, right.getKey(0));
+				tree.writeNode(right);
+				tree.writeNode(this);
+				tree.writeNode(parent);
+			}else if(canMergeWith(right)){
+				this.log("Merging right LeafNode " + right.getID() + " into LeafNode " + this.getID());
+				merge(right);
+				tree.writeNode(this);
+				tree.freeBlock(right.getID());
+				parent.remove(index, key, tree);
+			}else{
+				tree.writeNode(this);
 			}
-			Bytes.clearBytesFromPosition(keys, byteIndexToSplitAt); // Removes the keys that was moved from left node
-			Bytes.clearBytesFromPosition(pointers, byteIndexToSplitAt); // Removes the pointers that was moved from left node
-			if(leftNode.getRightLeaf() != 0){
-				rightNode.setRightLeaf(leftNode.getRightLeaf());
+		}else{
+			LeafNode left = tree.readLeafForUpdate(parent.getPointer(index-1));
+			left.setParent(parent);
+			int last = left.getNumberOfKeys()-1;
+			if(left.canLend() && fits(left.getKey(last), left.getPointer(last))){
+				this.log("Borrowing <" + left.getKey(last) + "," + left.getPointer(last) + "> from left LeafNode " + left.getID());
+				insertAt(0, left.getKey(last), left.getPointer(last));
+				left.removeAt(last);
+				parent.setKey(index-1, this.getKey(0));
+				tree.writeNode(left);
+				tree.writeNode(this);
+				tree.writeNode(parent);
+			}else if(left.canMergeWith(this)){
+				this.log("Merging LeafNode " + this.getID() + " into left LeafNode " + left.getID());
+				left.merge(this);
+				tree.writeNode(left);
+				tree.freeBlock(this.getID());
+				parent.remove(index-1, key, tree);
+			}else{
+				tree.writeNode(this);
 			}
-			leftNode.setRightLeaf(rightNode.getID());
-			if(leftNode.isRoot()){
-				// Create a new root
-				int id = tree.getFileManager().getSize();
-				this.log("Split LeftNode " + this.getID() + " was previously root, creating new root InternalNode w/ ID " + id);
-				newInternal = new InternalNode(id);
-				tree.setRoot(newInternal.getID(), 0);
-				newInternal.setSmallestPointer(leftNode.getID());
-				newInternal.insert(Bytes.bytesToInt(rightNode.getKeys(), 0), rightNode.getID(), tree);
-				tree.getFileManager().write(newInternal.toBytes());
+		}
+	}
+
+	/* Removes the entry at a position, shifting the keys and pointers after it one slot to the left. The node is not written. */
+	private void removeAt(int position){
+		int count = getNumberOfKeys();
+		moveKeys(position+1, count-position-1, -1);
+		movePointers(position+1, count-position-1, -1);
+		setNumberOfKeys(count-1);
+	}
+
+	/* Appends the entries of the right sibling and takes over its right leaf pointer */
+	private void merge(LeafNode right){
+		int count = getNumberOfKeys();
+		int moving = right.getNumberOfKeys();
+		ensureCapacity(count + moving);
+		right.copyKeysTo(this, 0, moving, count);
+		right.copyPointersTo(this, 0, moving, count);
+		setNumberOfKeys(count + moving);
+		resetPointerRange();
+		setRightLeaf(right.getRightLeaf());
+	}
+
+	/**
+	 * Checks if the entry can be inserted without splitting the leaf, so the insert does not change the
+	 * parent of the leaf.
+	 * @param key - the key to insert
+	 * @param pointer - the disk pointer to insert
+	 * @return true if the leaf is safe for the insert
+	 */
+	boolean isSafeForInsert(int key, int pointer){
+		return fits(key, pointer);
+	}
+
+	/**
+	 * Checks if the leaf still holds the minimum fill once the key is deleted, so the delete does not
+	 * change a sibling or the parent of the leaf. A leaf that does not contain the key is safe.
+	 * @param key - the key to delete
+	 * @return true if the leaf is safe for the delete
+	 */
+	boolean isSafeForDelete(int key){
+		int count = getNumberOfKeys();
+		int position = lowerBound(key);
+		if(position == count || getKey(position) != key) return true;
+		if(!config.isLeafDeltaEncoded()){
+			return count-1 >= (config.getOrder()+1)/2;
+		}
+		if(count == 1) return false;
+		// The encoded size without the entry, whose key or pointer may be the smallest or largest one
+		long smallestKey = getKey(position == 0 ? 1 : 0);
+		long largestKey = getKey(position == count-1 ? count-2 : count-1);
+		long smallestPointer = Long.MAX_VALUE, largestPointer = Long.MIN_VALUE;
+		for(int i=0;i<count;i++){
+			if(i == position) continue;
+			smallestPointer = Math.min(smallestPointer, getPointer(i));
+			largestPointer = Math.max(largestPointer, getPointer(i));
+		}
+		int size = encodedSize(count-1, largestKey - smallestKey, largestPointer - smallestPointer);
+		return (size - DELTA_HEADER_SIZE)*2 >= config.getNodeSize() - DELTA_HEADER_SIZE;
+	}
+
+	/**
+	 * Checks if the leaf holds less than the minimum fill, which is half of the order (rounded up) for
+	 * fixed size entries and half of the space after the header of a block for delta encoded leaves.
+	 * @return true if the leaf should borrow an entry or be merged
+	 */
+	private boolean isUnderfull(){
+		if(config.isLeafDeltaEncoded()){
+			return (encodedSize() - DELTA_HEADER_SIZE)*2 < config.getNodeSize() - DELTA_HEADER_SIZE;
+		}
+		return getNumberOfKeys() < (config.getOrder()+1)/2;
+	}
+
+	/* Checks if the leaf can give away an entry and still hold the minimum fill */
+	private boolean canLend(){
+		if(config.isLeafDeltaEncoded()){
+			return getNumberOfKeys() > 1 && (encodedSize() - DELTA_HEADER_SIZE)*2 > config.getNodeSize() - DELTA_HEADER_SIZE;
+		}
+		return getNumberOfKeys() > (config.getOrder()+1)/2;
+	}
+
+	/* Checks if the entries of this leaf and its right sibling fit in one leaf */
+	private boolean canMergeWith(LeafNode right){
+		int count = getNumberOfKeys() + right.getNumberOfKeys();
+		if(!config.isLeafDeltaEncoded()){
+			return count <= config.getOrder();
+		}
+		if(getNumberOfKeys() == 0 || right.getNumberOfKeys() == 0) return true;
+		long keyRange = (long) right.getKey(right.getNumberOfKeys()-1) - getKey(0);
+		long pointerRange = Math.max(largestPointer, right.largestPointer) - Math.min(smallestPointer, right.smallestPointer);
+		return encodedSize(count, keyRange, pointerRange) <= config.getNodeSize();
+	}
+
+	/**
+	 * Inserts an entry at a position, shifting the keys and pointers after it one slot to the right.
+	 * A delta encoded leaf gets a larger page first if all of its slots are in use. The node is not written.
+	 */
+	private void insertAt(int position, int key, int pointer){
+		int count = getNumberOfKeys();
+		ensureCapacity(count+1);
+		moveKeys(position, count-position, 1);
+		movePointers(position, count-position, 1);
+		setKey(position, key);
+		setPointer(position, pointer);
+		setNumberOfKeys(count+1);
+		includePointer(pointer);
+	}
+
+	/* Widens the pointer range to include the pointer */
+	private void includePointer(int pointer){
+		smallestPointer = Math.min(smallestPointer, pointer);
+		largestPointer = Math.max(largestPointer, pointer);
+	}
+
+	/* Sets the pointer range to the range of the stored pointers */
+	private void resetPointerRange(){
+		smallestPointer = Long.MAX_VALUE;
+		largestPointer = Long.MIN_VALUE;
+		for(int i=0;i<getNumberOfKeys();i++){
+			includePointer(getPointer(i));
+		}
+	}
+
+	/*
+	 * Doubles the number of slots of the page until it has at least the given number of slots,
+	 * which only happens for delta encoded leaves as their order is not fixed
+	 */
+	private void ensureCapacity(int slots){
+		if(slots <= this.capacity) return;
+		int count = getNumberOfKeys();
+		int larger = this.capacity;
+		while(larger < slots) larger *= 2;
+		ByteBuffer largerPage = ByteBuffer.allocate(pageSize(larger));
+		System.arraycopy(this.page.array(), 0, largerPage.array(), 0, HEADER_SIZE + count*4);
+		System.arraycopy(this.page.array(), pointersOffset(), largerPage.array(), HEADER_SIZE + larger*4, count*4);
+		int highKey = getHighKey();
+		this.page = largerPage;
+		setHighKey(highKey);
+		this.capacity = larger;
+	}
+
+	/* Returns the size of a page with the given number of key slots, whose last pointer slot is free for the high key */
+	private static int pageSize(int capacity){
+		return HEADER_SIZE + capacity*4 + (capacity+1)*4;
+	}
+
+	/**
+	 * Checks if the leaf can take one more entry without being split.
+	 * @return true if the entry fits in the block of the leaf
+	 */
+	private boolean fits(int key, int pointer){
+		if(config.isLeafDeltaEncoded()){
+			return encodedSize(true, key, pointer) <= config.getNodeSize();
+		}
+		return getNumberOfKeys() < this.capacity;
+	}
+
+	/**
+	 * Calculates the number of bytes needed to store this leaf delta encoded.
+	 * @return the encoded size of the leaf
+	 */
+	int encodedSize(){
+		return encodedSize(false, 0, 0);
+	}
+
+	/* Calculates the encoded size of the leaf, optionally with one more entry, from the key and pointer ranges */
+	private int encodedSize(boolean withEntry, int key, int pointer){
+		int count = getNumberOfKeys();
+		long smallestKey = Long.MAX_VALUE, largestKey = Long.MIN_VALUE;
+		long smallestPointer = this.smallestPointer, largestPointer = this.largestPointer;
+		if(count > 0){
+			smallestKey = getKey(0);
+			largestKey = getKey(count-1);
+		}
+		if(withEntry){
+			count++;
+			smallestKey = Math.min(smallestKey, key);
+			largestKey = Math.max(largestKey, key);
+			smallestPointer = Math.min(smallestPointer, pointer);
+			largestPointer = Math.max(largestPointer, pointer);
+		}
+		if(count == 0) return DELTA_HEADER_SIZE;
+		return encodedSize(count, largestKey - smallestKey, largestPointer - smallestPointer);
+	}
+
+	/* Calculates the encoded size of a leaf with the given number of entries and ranges of keys and pointers */
+	static int encodedSize(int count, long keyRange, long pointerRange){
+		long bits = (long) count * (Bytes.bitWidth(keyRange) + Bytes.bitWidth(pointerRange));
+		return DELTA_HEADER_SIZE + (int) ((bits + 7) / 8);
+	}
+
+	/**
+	 * Stores the leaf in the block image, delta encoded if the tree uses delta encoded leaves.
+	 */
+	@Override
+	public void toBytes(byte[] block){
+		if(!config.isLeafDeltaEncoded()){
+			super.toBytes(block);
+			return;
+		}
+		System.arraycopy(this.page.array(), 0, block, 0, 9);
+		Arrays.fill(block, 9, block.length, (byte) 0);
+		if(config.isLinked()) Bytes.intToBytes(getHighKey(), block, block.length - HIGH_KEY_SIZE);
+		int count = getNumberOfKeys();
+		Bytes.intToBytes(count, block, 9);
+		if(count == 0) return;
+		int keyBase = getKey(0);
+		int keyBits = Bytes.bitWidth((long) getKey(count-1) - keyBase);
+		int pointerBase = getPointer(0);
+		long largestPointer = pointerBase;
+		for(int i=1;i<count;i++){
+			pointerBase = Math.min(pointerBase, getPointer(i));
+			largestPointer = Math.max(largestPointer, getPointer(i));
+		}
+		int pointerBits = Bytes.bitWidth(largestPointer - pointerBase);
+		Bytes.intToBytes(keyBase, block, 13);
+		block[17] = (byte) keyBits;
+		Bytes.intToBytes(pointerBase, block, 18);
+		block[22] = (byte) pointerBits;
+		long position = DELTA_HEADER_SIZE * 8L;
+		for(int i=0;i<count;i++){
+			Bytes.writeBits(block, position, keyBits, (long) getKey(i) - keyBase);
+			position += keyBits;
+		}
+		for(int i=0;i<count;i++){
+			Bytes.writeBits(block, position, pointerBits, (long) getPointer(i) - pointerBase);
+			position += pointerBits;
+		}
+	}
+
+	/* Sets up the page from a delta encoded block */
+	private void decode(byte[] data){
+		int count = Bytes.bytesToInt(data, 9);
+		this.capacity = Math.max(config.getOrder(), count);
+		this.page = ByteBuffer.allocate(Math.max(config.getBlockSize(), pageSize(this.capacity)));
+		System.arraycopy(data, 0, this.page.array(), 0, 9);
+		setNumberOfKeys(count);
+		if(config.isLinked()) setHighKey(Bytes.bytesToInt(data, config.getBlockSize() - HIGH_KEY_SIZE));
+		int keyBase = Bytes.bytesToInt(data, 13);
+		int keyBits = Bytes.byteToInt(data[17]);
+		int pointerBase = Bytes.bytesToInt(data, 18);
+		int pointerBits = Bytes.byteToInt(data[22]);
+		long position = DELTA_HEADER_SIZE * 8L;
+		for(int i=0;i<count;i++){
+			setKey(i, (int) (keyBase + Bytes.readBits(data, position, keyBits)));
+			position += keyBits;
+		}
+		for(int i=0;i<count;i++){
+			setPointer(i, (int) (pointerBase + Bytes.readBits(data, position, pointerBits)));
+			position += pointerBits;
+		}
+		resetPointerRange();
+	}
+
+	/* Binary search over the key deltas of a delta encoded block, reading only the deltas it compares */
+	private static int findEncoded(byte[] data, int key){
+		int count = Bytes.bytesToInt(data, 9);
+		long target = (long) key - Bytes.bytesToInt(data, 13);
+		int keyBits = Bytes.byteToInt(data[17]);
+		long keysStart = DELTA_HEADER_SIZE * 8L;
+		int low = 0, high = count;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(Bytes.readBits(data, keysStart + (long) middle*keyBits, keyBits) < target){
+				low = middle + 1;
 			}else{
-				// Push the new right node ID to parent
-				newInternal = (InternalNode) leftNode.parent;
-				this.log("Pushing up right node ID " + rightNode.getID() + " to parent ID " + newInternal.getID());
-				newInternal.insert(Bytes.bytesToInt(rightNode.getKeys(), 0), rightNode.getID(), tree);
-				tree.getFileManager().write(newInternal.toBytes(), newInternal.getID());
-			}			
+				high = middle;
+			}
+		}
+		if(low == count || Bytes.readBits(data, keysStart + (long) low*keyBits, keyBits) != target){
+			return BPlusTree.NOT_FOUND;
 		}
-		if(rightNode != null) tree.getFileManager().write(rightNode.toBytes(), rightNode.getID());
-		leftNode.setKeys(keys);
-		leftNode.setPointers(pointers);
-		leftNode.printKeyDiskPointers();
-		tree.getFileManager().write(leftNode.toBytes(), leftNode.getID());
+		int pointerBase = Bytes.bytesToInt(data, 18);
+		int pointerBits = Bytes.byteToInt(data[22]);
+		long pointersStart = keysStart + (long) count*keyBits;
+		return (int) (pointerBase + Bytes.readBits(data, pointersStart + (long) low*pointerBits, pointerBits));
 	}
 
+	/**
+	 * Gets the disk pointer stored for the key, using a binary search over the keys.
+	 * @param key - the key to search for
+	 * @return the disk pointer of the key, or {@link BPlusTree#NOT_FOUND} if the leaf does not contain the key
+	 */
 	public int get(int key){
-		byte[] keys = this.getKeys();
-		byte[] pointers = this.getPointers();
-		for(int i = 0; i < keys.length; i+=4){
-			if(Bytes.bytesToInt(keys, i) == key){
-				return Bytes.bytesToInt(pointers, i);
-			}
+		int position = lowerBound(key);
+		if(position < getNumberOfKeys() && getKey(position) == key){
+			return getPointer(position);
 		}
-		return 0;
+		return BPlusTree.NOT_FOUND;
 	}
 
 	public void printKeyDiskPointers(){
+		if(!isLogging()) return;
 		this.log("----- LeafNode " + this.getID() + " -----");
-		byte[] keys = this.getKeys();
-		byte[] pointers = this.getPointers();
-		String result = "Keys:\n[ ";
-		for(int i = 0; i < keys.length-4; i+=4){
-			 result += Bytes.bytesToInt(keys, i) + " ";
+		StringBuilder result = new StringBuilder("Keys:\n[ ");
+		for(int i = 0; i < getNumberOfKeys(); i++){
+			result.append(getKey(i)).append(' ');
 		}
-		result += "]\nPointers:\n[ ";
-		for(int i = 0; i < pointers.length-8; i+=4){
-			result += Bytes.bytesToInt(pointers, i) + " ";
+		result.append("]\nPointers:\n[ ");
+		for(int i = 0; i < getNumberOfKeys(); i++){
+			result.append(getPointer(i)).append(' ');
 		}
 		if(this.getRightLeaf() != 0){
-			result += this.getRightLeaf() + " ";
+			result.append(this.getRightLeaf()).append(' ');
 		}
-		result += "]";
-		this.log(result);
+		result.append(']');
+		this.log(result.toString());
 	}
 
 	public int getRightLeaf(){
-		return Bytes.bytesToInt(this.header, this.header.length-4);
+		return this.page.getInt(5);
 	}
 	/**
-	 * The right LeafNode pointer is always stored at last 4 bytes in data
+	 * The right LeafNode pointer is always stored at bytes 5 to 8 of the header
 	 * @param rightLeafID
 	 */
 	public void setRightLeaf(int rightLeafID){
-		Bytes.intToBytes(rightLeafID, this.header, this.header.length-4);
+		this.page.putInt(5, rightLeafID);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+package objects;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Class for walking the chain of LeafNodes from left to right by following their right leaf pointers.
+ * While a leaf is consumed, the scanner keeps asynchronous reads in flight for the next leaves.
+ * The IDs of the upcoming leaves are taken from the parent of the current leaf, so up to
+ * {@code readAhead} siblings can be requested at once rather than one leaf at a time. When the scan
+ * moves past the last child of that parent, the parent of the new leaf is found by a descent from the
+ * root, whose internal nodes are normally cached.
+ * Leaves are copied while they are latched, and a right leaf pointer is only followed if the leaf it was
+ * read from has not changed since, so deletes may merge leaves during a scan. When it has changed, the
+ * scanner finds the leaf after the largest key returned so far by a descent, so a leaf may be returned
+ * again, holding keys that have been returned already.
+ * @author Emil Bergwik
+ * @see BPlusTree#scanLeaves(int)
+ */
+public class LeafScanner {
+
+	private final BPlusTree tree;
+	private final Snapshot snapshot; // The snapshot read by the scanner, null to read the tree itself
+	private final int readAhead;
+	private LeafNode next; // The leaf returned by the next call to next()
+	private InternalNode parent; // Parent of the next leaf, null if the leaf is the root
+	private int childIndex; // Position of the next leaf among the children of its parent
+	private int prefetchedUpTo; // Index of the last child of the parent that has been prefetched
+	private final int lastKey; // Leaves whose keys are all greater than this key are not read ahead
+	private long after = Long.MIN_VALUE; // Largest key of the leaves returned so far
+
+	/**
+	 * Constructor for a LeafScanner starting at the given leaf.
+	 * @param tree - the tree to scan
+	 * @param first - the first leaf of the scan, as returned by a descent (so its parent is set)
+	 * @param readAhead - the number of leaves to read ahead
+	 */
+	LeafScanner(BPlusTree tree, LeafNode first, int readAhead){
+		this(tree, first, readAhead, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor for a LeafScanner that only reads ahead leaves that may contain keys up to the last key.
+	 * Leaves after it are still returned by {@link #next()}, they are just not requested in advance.
+	 * @param tree - the tree to scan
+	 * @param first - the first leaf of the scan, as returned by a descent (so its parent is set)
+	 * @param readAhead - the number of leaves to read ahead
+	 * @param lastKey - the largest key the scan is interested in
+	 */
+	LeafScanner(BPlusTree tree, LeafNode first, int readAhead, int lastKey){
+		this(tree, null, first, readAhead, lastKey);
+	}
+
+	/**
+	 * Constructor for a LeafScanner over the leaves of a snapshot. Read-ahead warms the buffer pool with the
+	 * blocks of the tree, which are the leaves of the snapshot unless they have been changed since.
+	 * @param snapshot - the snapshot to scan
+	 * @param first - the first leaf of the scan, as returned by a descent of the snapshot
+	 * @param readAhead - the number of leaves to read ahead
+	 * @param lastKey - the largest key the scan is interested in
+	 */
+	LeafScanner(Snapshot snapshot, LeafNode first, int readAhead, int lastKey){
+		this(snapshot.getTree(), snapshot, first, readAhead, lastKey);
+	}
+
+	private LeafScanner(BPlusTree tree, Snapshot snapshot, LeafNode first, int readAhead, int lastKey){
+		this.tree = tree;
+		this.snapshot = snapshot;
+		this.lastKey = lastKey;
+		// More reads in flight than the pool keeps would abandon the ones needed first
+		this.readAhead = Math.min(readAhead, tree.getBufferPool().getMaxPrefetches());
+		setNext(first);
+	}
+
+	public boolean hasNext(){
+		return next != null;
+	}
+
+	/**
+	 * Returns the next leaf of the chain and starts reading ahead of it.
+	 * @return the next leaf
+	 * @throws IOException if reading a leaf fails
+	 */
+	public LeafNode next() throws IOException{
+		if(next == null) throw new NoSuchElementException();
+		LeafNode current = next;
+		if(current.getNumberOfKeys() > 0) after = current.getKey(current.getNumberOfKeys()-1);
+		int rightID = current.getRightLeaf();
+		if(rightID == 0){
+			next = null;
+			return current;
+		}
+		LeafNode right = readRightLeaf(current);
+		if(right == null){
+			// The leaf changed since it was copied, so its right leaf pointer may be stale
+			setNext(after == Integer.MAX_VALUE ? null : tree.findLeaf(after == Long.MIN_VALUE ? Integer.MIN_VALUE : (int) after + 1));
+		}else if(parent != null && childIndex+1 < childCount(parent) && childAt(parent, childIndex+1) == rightID){
+			// The right leaf shares the parent of the current one
+			childIndex++;
+			next = right;
+			next.setParent(parent);
+			prefetch();
+		}else{
+			// The right leaf has another parent, descend to it to learn its siblings
+			setNext(right.getNumberOfKeys() == 0 ? null : snapshot != null ? snapshot.findLeaf(right.getKey(0)) : tree.findLeaf(right.getKey(0)));
+			if(next == null || next.getID() != rightID){
+				// The descent did not lead to the right leaf (e.g. an empty leaf), continue without read-ahead
+				next = right;
+				parent = null;
+			}
+		}
+		return current;
+	}
+
+	private LeafNode readRightLeaf(LeafNode leaf) throws IOException{
+		return snapshot != null ? snapshot.readLeaf(leaf.getRightLeaf()) : tree.readRightLeaf(leaf);
+	}
+
+	/* Reports a failed read of the scan to the tree, see BPlusTree#takeFailure() */
+	void failed(IOException e){
+		tree.failed(e);
+	}
+
+	/* Makes the leaf the next one to return and starts reading its siblings */
+	private void setNext(LeafNode leaf){
+		next = leaf;
+		parent = leaf == null ? null : (InternalNode) leaf.parent;
+		childIndex = 0;
+		prefetchedUpTo = 0;
+		if(parent != null){
+			int count = childCount(parent);
+			while(childIndex < count && childAt(parent, childIndex) != leaf.getID()){
+				childIndex++;
+			}
+			prefetchedUpTo = childIndex;
+		}
+		try {
+			prefetch();
+		} catch (IOException e) {
+			tree.failed(e);
+		}
+	}
+
+	/* Starts asynchronous reads for the siblings up to readAhead positions after the next leaf */
+	private void prefetch() throws IOException{
+		if(parent == null) return;
+		int last = Math.min(childIndex + readAhead, childCount(parent) - 1);
+		while(prefetchedUpTo < last){
+			// The keys of a child are at least the key before its pointer
+			if(parent.getKey(prefetchedUpTo) > lastKey) return;
+			prefetchedUpTo++;
+			tree.getBufferPool().prefetch(childAt(parent, prefetchedUpTo));
+		}
+	}
+
+	/* Returns the number of child pointers stored in an InternalNode */
+	private static int childCount(InternalNode node){
+		return node.getNumberOfChildren();
+	}
+
+	private static int childAt(InternalNode node, int index){
+		return node.getPointer(index);
+	}
+}
@@ -9,73 +9,104 @@ import data.Bytes;
 
 /**
  * Abstract class Node containing variables that are not unique to either LeafNode or InternalNode.
- * A Node contains byte array storage containers for the header, keys and pointers of the node as described below.
+ * A Node works directly on the image of its block (its page): keys and pointers are read from and written
+ * to their positions in the page, and storing the node copies the page into the block as it is.
 
  * Node contains:
  * Attribute:			Stored @ byte:
  * ID 					0 to 3
  * isLeafByte			4
- * RightLeaf (for Leaf) 5 - 8 (NOT USED SINCE VERSION 1.4)
- * keys 	 			9 to 9 + KEY_SIZE * (ORDER-1)+KEY_SIZE
- * pointers 			10 + KEY_SIZE*(ORDER-1)+KEY_SIZE to 
- * 						10 + KEY_SIZE*(ORDER-1)+KEY_SIZE + POINTER_SIZE*ORDER+POINTER_SIZE
- * 
+ * RightLeaf (for Leaf) 5 to 8 (for every node in a B-link tree)
+ * Number of keys		9 to 12
+ * keys 	 			13 to 13 + KEY_SIZE*ORDER
+ * pointers 			13 + KEY_SIZE*ORDER to 13 + KEY_SIZE*ORDER + POINTER_SIZE*(ORDER+1)
+ *
+ * The keys are kept sorted in the first slots of the key area, and the number of keys tells how many
+ * slots are in use, so searches within a node are binary searches over exactly the stored keys.
+ * In a B-link tree every node, internal or leaf, links to its right sibling in bytes 5 to 8 and stores its
+ * high key in the last 4 bytes of the block. The high key is the smallest key that belongs to the nodes to
+ * the right, so a search that finds a key at or above the high key of a node moves right along the link.
+ * The rightmost node of each level has no link, and no high key.
  * A Node is considered a root node if its parent reference is null (set in main memory)
- * 
+ *
  * Example:
  * key = 4
  * pointer = 4
  * block = 64
- * order = (40 - 9 - 4)/(4 + 4) = 51/8 = 3 (# of keys)
+ * order = (64 - 13 - 4)/(4 + 4) = 47/8 = 5 (# of keys)
  * keys = [9,21]
  * pointers = [22,38]
- * 
+ *
  * @author Emil Bergwik
  */
 public abstract class Node{
 
-	protected byte[] header;
-	protected byte[] keys;
-	protected byte[] pointers;
-	
+	static final int HEADER_SIZE = 13; // Bytes stored before the keys
+	static final int HIGH_KEY_SIZE = 4; // Bytes stored after the pointers of a node in a B-link tree
+	private static final int SLOT_SIZE = 4; // Size of a key or pointer slot
+
+	protected ByteBuffer page;
+	protected int capacity; // Number of key slots in the page
+	protected final TreeConfig config; // Configuration of the tree the node belongs to
+
 	Node parent;
 /**
- * Base constructor for Node.
- * @param ID - the ID of the Node (i.e the block number storing the Node)
+ * Constructor for a new, empty Node.
+ * @param ID - - the ID of the Node (i.e the block number storing the Node)
+ * @param isLeaf - true if the Node is a LeafNode, else false
+ * @param config - the configuration of the tree
  */
-	public Node(int ID){
-		this.header = new byte[9];
-		Bytes.intToBytes(ID, header, 0);
+	Node(int ID, boolean isLeaf, TreeConfig config){
+		this.config = config;
+		this.capacity = config.getOrder();
+		this.page = ByteBuffer.allocate(config.getBlockSize());
+		this.page.putInt(0, ID);
+		this.page.put(4, Bytes.booleanToByte(isLeaf));
 	}
 /**
- * Constructor for Node
- * @param ID - - the ID of the Node (i.e the block number storing the Node)
- * @param isLeaf - true if the Node is a LeafNode, else false
+ * Constructor for a node that has been read from {@code RandomAccessFile}. Each subclass sets up its page
+ * in its own way, see {@link #readPage(byte[])}.
+ * @param config - the configuration of the tree
  */
-	public Node(int ID, boolean isLeaf){
-		this(ID);
-		this.header[4] = Bytes.booleanToByte(isLeaf);
+	Node(TreeConfig config){
+		this.config = config;
 	}
+
 /**
- * Constructor for a node that has been read from {@code RandomAccessFile}. Each subclass uses this constructor in its own way
- * @param data
+ * Sets the page of the node to a copy of the block.
+ * @param data - the block containing the node
  */
-	public Node(){}
+	protected void readPage(byte[] data){
+		this.capacity = config.getOrder();
+		this.page = ByteBuffer.wrap(Arrays.copyOf(data, config.getBlockSize()));
+	}
+
+/**
+ * Uses the block itself as the page of the node, without copying it. The node is only valid as long
+ * as the block is (such as while its buffer pool frame is pinned), and must not be modified.
+ * @param data - the block containing the node
+ */
+	protected void viewPage(byte[] data){
+		this.capacity = config.getOrder();
+		this.page = ByteBuffer.wrap(data);
+	}
 
 	public int getID(){
-		return Bytes.bytesToInt(this.header, 0);
+		return this.page.getInt(0);
 	}
 
 	public boolean isLeaf(){
-		return Bytes.byteToBoolean(this.header[4]);
+		return Bytes.byteToBoolean(this.page.get(4));
 	}
-	
+
 	public void setParent(Node parent){
 		if(parent != null){
-			if(this.isLeaf()){
-				this.log("Set parent " + parent.getID() + " for LeafNode " + this.getID());
-			}else{
-				this.log("Set parent " + parent.getID() + " for InternalNode " + this.getID());
+			if(isLogging()){
+				if(this.isLeaf()){
+					this.log("Set parent " + parent.getID() + " for LeafNode " + this.getID());
+				}else{
+					this.log("Set parent " + parent.getID() + " for InternalNode " + this.getID());
+				}
 			}
 			this.parent = parent;
 		}else{
@@ -86,27 +117,172 @@ public abstract class Node{
 		return 0;
 	}
 
-	public byte[] getKeys(){
-		return this.keys;
+	public int getNumberOfKeys(){
+		return this.page.getInt(9);
 	}
 
-	public void setKeys(byte[] keys){
-		if(keys.length > this.keys.length+BPlusTree.getKeySize()){
-			throw new IndexOutOfBoundsException("Tried to set keys with size " + keys.length + ".");
-		}
-		this.keys = keys;
+	/**
+	 * Returns the right sibling of the node, which every node of a B-link tree and every leaf links to.
+	 * @return the block ID of the right sibling, or 0 if this is the rightmost node of its level
+	 */
+	int getRightLink(){
+		return this.page.getInt(5);
 	}
 
-	public byte[] getPointers(){
-		return this.pointers;
+	void setRightLink(int rightLink){
+		this.page.putInt(5, rightLink);
 	}
 
-	public void setPointers(byte[] pointers){
-		if(pointers.length > this.pointers.length+BPlusTree.getPointerSize()){
-			// pointer byte array larger than what is allowed
-			throw new IndexOutOfBoundsException("Tried to set pointers with size " + pointers.length + ".");
+	/**
+	 * Returns the high key of a node in a B-link tree, which is only set if the node has a right sibling.
+	 * @return the smallest key that belongs to the nodes to the right of this one
+	 */
+	int getHighKey(){
+		return this.page.getInt(this.page.capacity() - HIGH_KEY_SIZE);
+	}
+
+	void setHighKey(int highKey){
+		this.page.putInt(this.page.capacity() - HIGH_KEY_SIZE, highKey);
+	}
+
+	/**
+	 * Gets the node to move right to when looking for the key in a node of a B-link tree, which is the case
+	 * when the node was split after its parent was read and the key now belongs to a node further right.
+	 * @param key - the key to look for
+	 * @return the block ID of the right sibling, or 0 if the key belongs to this node
+	 */
+	int linkFor(int key){
+		int rightLink = getRightLink();
+		return rightLink != 0 && key >= getHighKey() ? rightLink : 0;
+	}
+
+	/**
+	 * Gets the node to move right to when looking for the key in a block of a B-link tree, without creating
+	 * a node, see {@link #linkFor(int)}.
+	 * @param block - the block containing the node
+	 * @param key - the key to look for
+	 * @return the block ID of the right sibling, or 0 if the key belongs to this node
+	 */
+	static int linkFor(byte[] block, int key){
+		int rightLink = Bytes.bytesToInt(block, 5);
+		return rightLink != 0 && key >= Bytes.bytesToInt(block, block.length - HIGH_KEY_SIZE) ? rightLink : 0;
+	}
+
+	protected void setNumberOfKeys(int numberOfKeys){
+		this.page.putInt(9, numberOfKeys);
+	}
+
+	public int getKey(int index){
+		return this.page.getInt(HEADER_SIZE + index*SLOT_SIZE);
+	}
+
+	protected void setKey(int index, int key){
+		this.page.putInt(HEADER_SIZE + index*SLOT_SIZE, key);
+	}
+
+	public int getPointer(int index){
+		return this.page.getInt(pointersOffset() + index*SLOT_SIZE);
+	}
+
+	protected void setPointer(int index, int pointer){
+		this.page.putInt(pointersOffset() + index*SLOT_SIZE, pointer);
+	}
+
+	/* Returns the position of the first pointer in the page */
+	protected int pointersOffset(){
+		return HEADER_SIZE + this.capacity*SLOT_SIZE;
+	}
+
+	/**
+	 * Moves a run of key slots within the page with a single copy, such as to open a slot for a new key.
+	 * @param from - the first slot to move
+	 * @param length - the number of slots to move
+	 * @param distance - the number of slots to move them by, negative to move them to the left
+	 */
+	protected void moveKeys(int from, int length, int distance){
+		moveSlots(HEADER_SIZE, from, length, distance);
+	}
+
+	/**
+	 * Moves a run of pointer slots within the page with a single copy.
+	 * @see #moveKeys(int, int, int)
+	 */
+	protected void movePointers(int from, int length, int distance){
+		moveSlots(pointersOffset(), from, length, distance);
+	}
+
+	/**
+	 * Copies a run of key slots to another node with a single copy, such as to move the upper half of a
+	 * node to its new right sibling when splitting.
+	 * @param target - the node to copy the keys to
+	 * @param from - the first slot to copy
+	 * @param length - the number of slots to copy
+	 * @param to - the slot of the target to copy the first key to
+	 */
+	protected void copyKeysTo(Node target, int from, int length, int to){
+		if(length <= 0) return;
+		System.arraycopy(this.page.array(), HEADER_SIZE + from*SLOT_SIZE,
+				target.page.array(), HEADER_SIZE + to*SLOT_SIZE, length*SLOT_SIZE);
+	}
+
+	/**
+	 * Copies a run of pointer slots to another node with a single copy.
+	 * @see #copyKeysTo(Node, int, int, int)
+	 */
+	protected void copyPointersTo(Node target, int from, int length, int to){
+		if(length <= 0) return;
+		System.arraycopy(this.page.array(), pointersOffset() + from*SLOT_SIZE,
+				target.page.array(), target.pointersOffset() + to*SLOT_SIZE, length*SLOT_SIZE);
+	}
+
+	private void moveSlots(int offset, int from, int length, int distance){
+		if(length <= 0) return;
+		byte[] data = this.page.array();
+		System.arraycopy(data, offset + from*SLOT_SIZE, data, offset + (from+distance)*SLOT_SIZE, length*SLOT_SIZE);
+	}
+
+	/**
+	 * Binary search for the first key that is greater than or equal to the key.
+	 * @param key - the key to search for
+	 * @return the position of the first key not smaller than the key, or the number of keys if there is none
+	 */
+	protected int lowerBound(int key){
+		int low = 0, high = getNumberOfKeys();
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(getKey(middle) < key){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Binary search for the first key that is greater than the key.
+	 * @param key - the key to search for
+	 * @return the position of the first key greater than the key, or the number of keys if there is none
+	 */
+	protected int upperBound(int key){
+		int low = 0, high = getNumberOfKeys();
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(getKey(middle) <= key){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
 		}
-		this.pointers = pointers;
+		return low;
+	}
+
+	/**
+	 * Checks if log messages are written. Callers that build large messages check this first.
+	 * @return true unless the verbosity is none
+	 */
+	protected static boolean isLogging(){
+		return CLI.VERBOSITY != "none";
 	}
 
 	public boolean isRoot(){
@@ -114,38 +290,36 @@ public abstract class Node{
 	}
 
 	public int getOrder(){
-		return BPlusTree.getOrder();
+		return config.getOrder();
 	}
 /**
  * Method used for converting the Node data object to a byte array for storage to {@code RandomAccessFile}.
  * @return the byte representation of the header, keys and pointers of this node
  */
 	public byte[] toBytes(){
-		ByteBuffer bb = ByteBuffer.allocate(BPlusTree.getBlockSize());
-		bb.put(this.header);
-		// Store the keys except for the last four extra bytes
-		for(int i=0;i<this.keys.length-4;i+=4){
-			bb.putInt(Bytes.bytesToInt(this.keys, i));
-		}
-		// Store the pointers except for the last four extra bytes
-		for(int i=0;i<this.pointers.length-4;i+=4){
-			bb.putInt(Bytes.bytesToInt(this.pointers, i));
-		}
-		byte[] result = bb.array();
-		bb.clear();
+		byte[] result = new byte[config.getBlockSize()];
+		toBytes(result);
 		return result;
 	}
 /**
- * General log function for writing important messages to console and log file in 
+ * Method for storing the Node into an existing block image, such as a frame of the buffer pool,
+ * without allocating a new array. The page already has the layout of the block, so it is copied as it is.
+ * @param block - the array to store the header, keys and pointers of this node in
+ */
+	public void toBytes(byte[] block){
+		System.arraycopy(this.page.array(), 0, block, 0, block.length);
+	}
+/**
+ * General log function for writing important messages to console and log file in
  * the correct order
  * @param message the message to write
  * @see CLI
  */
 	public void log(String message){
-		if(CLI.VERBOSITY != "none"){
+		if(isLogging()){
 			System.out.println(message);
 			CLI.pw.println(message);
 			System.out.flush();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,113 @@
+package objects;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over the <key, disk pointer> pairs of a range of keys, in ascending key order.
+ * The tree is descended once to the leaf containing the first key of the range, after which the cursor
+ * follows the right leaf pointers with a {@link LeafScanner}, so a range of k keys costs the height of
+ * the tree plus about k/B leaf reads rather than one descent per key.
+ * As an Iterator the cursor returns the disk pointers; the key of the last returned pointer is available
+ * through {@link #getKey()}.
+ * Each leaf is copied while it is latched, so inserts and deletes may run while a cursor is in use. Keys
+ * inserted behind the cursor are not returned, a key deleted after its leaf was copied may still be, and
+ * no key is returned twice.
+ * @author Emil Bergwik
+ * @see BPlusTree#scan(int, int)
+ */
+public class RangeCursor implements Iterator<Integer> {
+
+	private final LeafScanner scanner;
+	private final int to;
+	private LeafNode leaf; // The leaf holding the next entry, null when the scan has ended
+	private int position; // Position of the next entry in the leaf
+	private int key, pointer; // The entry last returned by next()
+	private long after; // Keys up to this one have been passed, a leaf may be read again after a concurrent change
+
+	/**
+	 * Constructor for a RangeCursor over the keys from the first key up to and including the last key.
+	 * @param scanner - a scanner starting at the leaf that contains (or should contain) the first key
+	 * @param from - the first key of the range
+	 * @param to - the last key of the range
+	 */
+	RangeCursor(LeafScanner scanner, int from, int to){
+		this.scanner = scanner;
+		this.to = to;
+		this.after = (long) from - 1;
+		try {
+			if(scanner.hasNext()){
+				leaf = scanner.next();
+				position = leaf.lowerBound(from);
+				skipEmptyLeaves();
+			}
+		} catch (IOException e) {
+			scanner.failed(e);
+			leaf = null;
+		}
+	}
+
+	public boolean hasNext(){
+		return leaf != null && leaf.getKey(position) <= to;
+	}
+
+	/**
+	 * Moves to the next entry of the range.
+	 * @return the disk pointer of the entry
+	 */
+	public Integer next(){
+		return nextPointer();
+	}
+
+	/**
+	 * Moves to the next entry of the range without boxing its disk pointer.
+	 * @return the disk pointer of the entry
+	 */
+	public int nextPointer(){
+		if(!hasNext()) throw new NoSuchElementException();
+		key = leaf.getKey(position);
+		pointer = leaf.getPointer(position);
+		after = key;
+		position++;
+		try {
+			skipEmptyLeaves();
+		} catch (IOException e) {
+			scanner.failed(e);
+			leaf = null;
+		}
+		return pointer;
+	}
+
+	/**
+	 * Returns the key of the entry last returned by {@link #next()}.
+	 * @return the key
+	 */
+	public int getKey(){
+		return key;
+	}
+
+	/**
+	 * Returns the disk pointer of the entry last returned by {@link #next()}.
+	 * @return the disk pointer
+	 */
+	public int getPointer(){
+		return pointer;
+	}
+
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+
+	/* Moves to the next leaf while the current one has no more entries. A leaf is only read once the range needs it. */
+	private void skipEmptyLeaves() throws IOException{
+		while(leaf != null && position == leaf.getNumberOfKeys()){
+			if(after == Integer.MAX_VALUE || !scanner.hasNext()){
+				leaf = null;
+				return;
+			}
+			leaf = scanner.next();
+			position = leaf.lowerBound((int) after + 1);
+		}
+	}
+}
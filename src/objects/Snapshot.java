@@ -0,0 +1,171 @@
+package objects;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import data.Bytes;
+import data.FileManager;
+
+/**
+ * A consistent, read only view of a tree as it was when the snapshot was taken, which stays unchanged while
+ * inserts and deletes continue on the tree. Taking a snapshot records the root of the tree between two
+ * operations. From then on, the first time an operation overwrites or frees a block the snapshot can reach,
+ * the contents the block had are copied, and the snapshot reads that copy instead of the block. Blocks that
+ * have not been changed are read from the tree itself, latched like by any other search.
+ * The copies are made in memory while the operation stores its blocks, and are written to new blocks of a
+ * version store file once the operation has released its latches, so other writers do not wait for the
+ * version store unless they have copies to write to it as well.
+ * Copies are shared by all snapshots that need them and are freed once the last of those snapshots is closed;
+ * the version store is deleted when no snapshot is open. Snapshots are not stored in the index file, so they
+ * do not survive closing the tree.
+ * Blocks freed by merges are preserved too, so a cursor over a snapshot returns the keys as they were however
+ * many keys are deleted meanwhile. A snapshot must not be used after it has been closed.
+ * @author Emil Bergwik
+ * @see BPlusTree#snapshot()
+ */
+public class Snapshot {
+
+	/*
+	 * A copy of a block, with the number of open snapshots reading it. The copy is kept in memory until the
+	 * operation that made it has written it to a block of the version store, which is 0 until then.
+	 */
+	static class Version {
+		int block;
+		int references;
+		volatile byte[] image;
+
+		Version(byte[] image){
+			this.image = image;
+		}
+	}
+
+	private final BPlusTree tree;
+	private final TreeConfig config;
+	private final FileManager versionStore;
+	private final int rootID;
+	private final int size; // Number of blocks of the tree when the snapshot was taken, later blocks are not part of it
+	// Blocks changed since the snapshot was taken -> their copy in the version store
+	final ConcurrentHashMap<Integer, Version> versions = new ConcurrentHashMap<Integer, Version>();
+
+	/**
+	 * Constructor for a Snapshot of the tree, which must be called while no operation is storing its blocks.
+	 * @param tree - the tree
+	 * @param versionStore - the file the copies of changed blocks are written to
+	 * @param rootID - the root of the tree, 0 if it is empty
+	 * @param size - the number of blocks of the tree
+	 */
+	Snapshot(BPlusTree tree, FileManager versionStore, int rootID, int size){
+		this.tree = tree;
+		this.config = tree.getConfig();
+		this.versionStore = versionStore;
+		this.rootID = rootID;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the disk pointer that the key had when the snapshot was taken.
+	 * @param key - the key to search for
+	 * @return the disk pointer of the key, or {@link BPlusTree#NOT_FOUND} if the key was not in the tree
+	 */
+	public int getDiskPointer(int key){
+		if(rootID == 0) return BPlusTree.NOT_FOUND;
+		try {
+			byte[] block = read(rootID);
+			while(true){
+				int rightID = config.isLinked() ? Node.linkFor(block, key) : 0;
+				if(rightID == 0 && Bytes.byteToBoolean(block[4])){
+					return LeafNode.find(block, key, config);
+				}
+				block = read(rightID != 0 ? rightID : InternalNode.wrap(block, config).get(key));
+			}
+		} catch (IOException e) {
+			tree.failed(e);
+		}
+		return BPlusTree.NOT_FOUND;
+	}
+
+	/**
+	 * Returns a cursor over the pairs of a range of keys as they were when the snapshot was taken.
+	 * @param from - the first key of the range
+	 * @param to - the last key of the range
+	 * @return a cursor over the range, which has no entries if the first key is greater than the last key
+	 * @see BPlusTree#scan(int, int)
+	 */
+	public RangeCursor scan(int from, int to){
+		LeafNode first = null;
+		if(from <= to){
+			try {
+				first = findLeaf(from);
+			} catch (IOException e) {
+				tree.failed(e);
+			}
+		}
+		return new RangeCursor(new LeafScanner(this, first, tree.getReadAhead(), to), from, to);
+	}
+
+	/**
+	 * Closes the snapshot, freeing the copies of blocks that no other open snapshot reads.
+	 */
+	public void close(){
+		tree.releaseSnapshot(this);
+	}
+
+	BPlusTree getTree(){
+		return tree;
+	}
+
+	int getSize(){
+		return size;
+	}
+
+	/**
+	 * Copies the leaf that should contain the key, descending from the root of the snapshot.
+	 * The parents of the leaf are set to copies of the nodes on the way.
+	 * @param key - the key to search for
+	 * @return the leaf, or null if the snapshot is of an empty tree
+	 * @throws IOException if reading a block fails
+	 */
+	LeafNode findLeaf(int key) throws IOException{
+		if(rootID == 0) return null;
+		Node parent = null;
+		int blockID = rootID;
+		while(true){
+			byte[] block = read(blockID);
+			int rightID = config.isLinked() ? Node.linkFor(block, key) : 0;
+			if(rightID != 0){
+				blockID = rightID;
+				continue;
+			}
+			Node node = Bytes.byteToBoolean(block[4]) ? new LeafNode(block, config) : new InternalNode(block, config);
+			node.setParent(parent);
+			if(node.isLeaf()) return (LeafNode) node;
+			parent = node;
+			blockID = ((InternalNode) node).get(key);
+		}
+	}
+
+	/**
+	 * Copies the leaf stored in a block as it was when the snapshot was taken.
+	 * @param blockID - the block containing the leaf
+	 * @return the leaf
+	 * @throws IOException if reading the block fails
+	 */
+	LeafNode readLeaf(int blockID) throws IOException{
+		return new LeafNode(read(blockID), config);
+	}
+
+	/*
+	 * Reads a block as it was when the snapshot was taken. An operation records the copy of a block before it
+	 * changes the block, so if no copy is recorded once the block has been read, the block was read unchanged.
+	 */
+	private byte[] read(int blockID) throws IOException{
+		Version version = versions.get(blockID);
+		if(version == null){
+			byte[] block = tree.copyBlock(blockID);
+			version = versions.get(blockID);
+			if(version == null) return block;
+		}
+		byte[] image = version.image;
+		return image != null ? image : versionStore.read(version.block);
+	}
+}
@@ -0,0 +1,81 @@
+package objects;
+
+/**
+ * The configuration of one BPlusTree, read from the header of its index file (or chosen when the file is
+ * created) and fixed for as long as the tree is open.
+ * Every node is created with the configuration of its tree and sizes its page from it, so trees with
+ * different block sizes or leaf formats can be open in the same JVM at the same time.
+ * @author Emil Bergwik
+ * @see BPlusTree
+ */
+class TreeConfig {
+
+	private final int blockSize, keySize, pointerSize, order, leafFormat;
+	private final boolean linked;
+
+	/**
+	 * Constructor for a TreeConfig. The order is calculated from the sizes.
+	 * @param blockSize - the size of each block in the index file
+	 * @param keySize - the size of a key in bytes
+	 * @param pointerSize - the size of a pointer in bytes
+	 * @param leafFormat - {@link BPlusTree#LEAF_FORMAT_FIXED} or {@link BPlusTree#LEAF_FORMAT_DELTA}
+	 * @param linked - true if the tree is a B-link tree, whose nodes store a high key and a right link
+	 */
+	TreeConfig(int blockSize, int keySize, int pointerSize, int leafFormat, boolean linked){
+		this.blockSize = blockSize;
+		this.keySize = keySize;
+		this.pointerSize = pointerSize;
+		this.leafFormat = leafFormat;
+		this.linked = linked;
+		this.order = calculateOrder();
+	}
+
+	/**
+	 * Calculate the order of the tree
+	 * The current implementation assumes that each block stores node ID (4 bytes), IsLeafByte (1 byte),
+	 * right leaf ID (4 bytes) and number of keys (4 bytes) = 13 bytes of header information
+	 * @return the order of the tree
+	 */
+	private int calculateOrder(){
+		return (getNodeSize() - Node.HEADER_SIZE - pointerSize)/(keySize + pointerSize);
+	}
+
+	int getBlockSize(){
+		return blockSize;
+	}
+	int getKeySize(){
+		return keySize;
+	}
+	int getPointerSize(){
+		return pointerSize;
+	}
+	int getOrder(){
+		return order;
+	}
+	int getLeafFormat(){
+		return leafFormat;
+	}
+	/**
+	 * Returns the number of bytes of a block that a node may use for its header, keys and pointers. This is the
+	 * whole block, except in a B-link tree, which keeps the high key of the node in the last bytes of the block.
+	 * @return the usable size of a block
+	 */
+	int getNodeSize(){
+		return linked ? blockSize - Node.HIGH_KEY_SIZE : blockSize;
+	}
+	/**
+	 * Returns true if the tree is a B-link tree, see
+	 * {@link BPlusTree#BPlusTree(data.FileManager, int, data.WriteAheadLog, int, boolean)}.
+	 * @return true if every node stores a high key and a link to its right sibling
+	 */
+	boolean isLinked(){
+		return linked;
+	}
+	/**
+	 * Returns true if the leaves of the tree are stored delta encoded.
+	 * @return true for {@link BPlusTree#LEAF_FORMAT_DELTA}
+	 */
+	boolean isLeafDeltaEncoded(){
+		return leafFormat == BPlusTree.LEAF_FORMAT_DELTA;
+	}
+}
@@ -0,0 +1,279 @@
+package objects;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import data.BufferPool;
+import data.FileManager;
+
+/**
+ * The set of nodes modified by one tree operation.
+ * Writing a node during an operation only records it here; a node written several times (such as the
+ * right node of a split, which receives the moved keys one by one) is still stored once. When the operation
+ * ends, every distinct block is encoded into its buffer pool frame exactly once, in ascending block order.
+ * Blocks freed by the operation are recorded the same way and put on the free list when the operation ends,
+ * so they are logged together with the nodes that stopped using them and no other operation can allocate
+ * them before their free list entries are stored.
+ * The set also holds the latches taken by the operation. Each block is protected by a read/write latch in
+ * the buffer pool, and operations latch their way down the tree with latch crabbing:
+ * - Lookups hold a shared latch on a node only until the child has been latched.
+ * - Inserts and deletes first descend the same way and latch only the leaf exclusively. This is enough
+ *   when the leaf is safe, that is when the change cannot split it or make it underfull.
+ * - Otherwise the operation descends again, latching every node exclusively. The latches of the ancestors
+ *   are released as soon as a node is safe, since a split or merge below it cannot reach them.
+ * A root latch in the tree guards the root, so a change of root is only seen once the new root has been
+ * stored. Every node the operation modifies is latched exclusively until the operation has been logged,
+ * except new nodes, which no other operation can reach before then. Checkpoints wait for running inserts
+ * and deletes to end.
+ * The frames stay pinned until the operation has been logged and released.
+ * In a B-link tree searches read the frames without latches, so each block is instead given a new frame
+ * image, and the new nodes of the operation are stored before the nodes that link to them. Inserts and
+ * deletes only latch the leaf, moving right as needed; a split latches the parent while the split node is
+ * still latched, the parent being the node passed on the way down, or a node to its right if that node has
+ * been split since.
+ * Each thread uses its own WriteSet, so operations of different threads do not share one.
+ * @author Emil Bergwik
+ *
+ */
+class WriteSet {
+
+	private final TreeMap<Integer, Node> nodes = new TreeMap<Integer, Node>();
+	private final TreeMap<Integer, Integer> freed = new TreeMap<Integer, Integer>(); // Freed block -> next free block
+	private final ArrayList<Integer> pinned = new ArrayList<Integer>(); // Blocks pinned by flush
+	private final LinkedHashMap<Integer, Boolean> latched = new LinkedHashMap<Integer, Boolean>(); // Latched block -> exclusive, top-down
+	private final HashSet<Integer> allocated = new HashSet<Integer>(); // Blocks allocated by the operation
+	private long numNodeWrites = 0; // Number of times a node was written by the operation
+	private long numBlockWrites = 0; // Number of blocks actually stored after coalescing
+
+	/**
+	 * Records that a node was modified. The latest state of the node is stored when the set is flushed.
+	 * @param node - the modified node
+	 */
+	void add(Node node){
+		nodes.put(node.getID(), node);
+		freed.remove(node.getID());
+		numNodeWrites++;
+	}
+
+	/**
+	 * Records that a block was freed. Any node written to the block earlier in the operation is dropped.
+	 * @param blockID - the freed block
+	 */
+	void free(int blockID){
+		nodes.remove(blockID);
+		freed.put(blockID, 0);
+	}
+
+	/**
+	 * Takes a block freed during this operation off the set, so it can be allocated again.
+	 * @return the block, or null if no block has been freed during this operation
+	 */
+	Integer reuseFreed(){
+		if(freed.isEmpty()) return null;
+		return freed.pollFirstEntry().getKey();
+	}
+
+	/**
+	 * Puts the blocks freed during this operation first on the free list, each block storing the block
+	 * that was first before it. The caller must hold the lock of the free list.
+	 * @param fm - the FileManager holding the head of the free list
+	 */
+	void linkFreed(FileManager fm){
+		for(Map.Entry<Integer, Integer> entry : freed.entrySet()){
+			entry.setValue(fm.getFreeListHead());
+			fm.setFreeListHead(entry.getKey());
+		}
+	}
+
+	/**
+	 * Records that a block was allocated for a new node during this operation.
+	 * @param blockID - the allocated block
+	 */
+	void allocate(int blockID){
+		allocated.add(blockID);
+	}
+
+	/**
+	 * Returns the blocks allocated during this operation, so they can be freed again if it is retried.
+	 * @return the allocated blocks
+	 */
+	ArrayList<Integer> getAllocated(){
+		return new ArrayList<Integer>(allocated);
+	}
+
+	/**
+	 * Pins and latches a block for this operation. The latch is held until it is released with
+	 * {@link #unlatchAbove(BufferPool, int)}, {@link #unlatchAll(BufferPool)} or when the set is released.
+	 * A block the operation has latched already is not latched again.
+	 * @param bp - the buffer pool holding the block
+	 * @param blockID - the block to latch
+	 * @param exclusive - true to latch the block exclusively, false to share it with readers
+	 * @return the frame containing the block
+	 * @throws IOException if the block has to be read and the read fails
+	 */
+	byte[] latch(BufferPool bp, int blockID, boolean exclusive) throws IOException{
+		if(latched.containsKey(blockID)){
+			// Still pinned by the first latch, so the frame stays valid
+			return bp.read(blockID);
+		}
+		byte[] frame = exclusive ? bp.pinExclusive(blockID) : bp.pinShared(blockID);
+		latched.put(blockID, exclusive);
+		return frame;
+	}
+
+	/**
+	 * Checks if the operation may modify the node stored in the block, which is the case when the block is
+	 * latched exclusively or was allocated by the operation.
+	 * @param blockID - the block of the node
+	 * @return true if the operation may modify the node
+	 */
+	boolean mayModify(int blockID){
+		return allocated.contains(blockID) || Boolean.TRUE.equals(latched.get(blockID));
+	}
+
+	/**
+	 * Releases the latches of every block latched before the given one, which are the ancestors of a node
+	 * that the operation cannot change so far up that they are affected.
+	 * @param bp - the buffer pool holding the blocks
+	 * @param blockID - the block whose latch and the latches after it are kept
+	 */
+	void unlatchAbove(BufferPool bp, int blockID){
+		Iterator<Map.Entry<Integer, Boolean>> it = latched.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Integer, Boolean> entry = it.next();
+			if(entry.getKey() == blockID) return;
+			unlatch(bp, entry.getKey(), entry.getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Releases every latch held by the operation.
+	 * @param bp - the buffer pool holding the blocks
+	 */
+	void unlatchAll(BufferPool bp){
+		for(Map.Entry<Integer, Boolean> entry : latched.entrySet()){
+			unlatch(bp, entry.getKey(), entry.getValue());
+		}
+		latched.clear();
+	}
+
+	/**
+	 * Releases the latch of one block, such as a node that a B-link operation moved right from.
+	 * @param bp - the buffer pool holding the block
+	 * @param blockID - the latched block
+	 */
+	void unlatch(BufferPool bp, int blockID){
+		Boolean exclusive = latched.remove(blockID);
+		if(exclusive != null) unlatch(bp, blockID, exclusive);
+	}
+
+	private void unlatch(BufferPool bp, int blockID, boolean exclusive){
+		if(exclusive){
+			bp.unpinExclusive(blockID, false);
+		}else{
+			bp.unpinShared(blockID);
+		}
+	}
+
+	/**
+	 * Gets the modified node stored in the block, if it has been written during this operation.
+	 * @param blockID - the block of the node
+	 * @return the modified node, or null if the block has not been written
+	 */
+	Node get(int blockID){
+		return nodes.get(blockID);
+	}
+
+	boolean isEmpty(){
+		return nodes.isEmpty() && freed.isEmpty();
+	}
+
+	Set<Integer> getBlockIDs(){
+		if(freed.isEmpty()) return nodes.keySet();
+		TreeSet<Integer> blockIDs = new TreeSet<Integer>(nodes.keySet());
+		blockIDs.addAll(freed.keySet());
+		return blockIDs;
+	}
+
+	/**
+	 * Stores every node and free list entry in its frame of the buffer pool, in ascending block order.
+	 * Each frame is left pinned; call {@link #release(BufferPool, long)} once the operation is logged.
+	 * @param bp - the buffer pool to store the nodes in
+	 * @param replace - true to give each block a new frame image, the blocks allocated by the operation first
+	 * @throws IOException if a frame has to be evicted and writing it back fails
+	 */
+	void flush(BufferPool bp, boolean replace) throws IOException{
+		if(!replace){
+			for(int blockID : getBlockIDs()){
+				byte[] frame = bp.pinForOverwrite(blockID);
+				pinned.add(blockID);
+				store(blockID, frame);
+			}
+			return;
+		}
+		// New nodes are stored first, so no search can follow a link to a block before it holds its node
+		ArrayList<Integer> blockIDs = new ArrayList<Integer>();
+		ArrayList<Integer> linking = new ArrayList<Integer>();
+		for(int blockID : getBlockIDs()){
+			if(allocated.contains(blockID)){
+				blockIDs.add(blockID);
+			}else{
+				linking.add(blockID);
+			}
+		}
+		blockIDs.addAll(linking);
+		for(int blockID : blockIDs){
+			byte[] image = new byte[bp.getFileManager().getBlockSize()];
+			store(blockID, image);
+			bp.pinAndReplace(blockID, image);
+			pinned.add(blockID);
+		}
+	}
+
+	/* Stores the node or free list entry of a block in its image */
+	private void store(int blockID, byte[] image){
+		Node node = nodes.get(blockID);
+		if(node != null){
+			node.toBytes(image);
+		}else{
+			FileManager.writeFreeBlock(image, blockID, freed.get(blockID));
+		}
+		numBlockWrites++;
+	}
+
+	/**
+	 * Unpins the frames pinned by {@link #flush(BufferPool, boolean)}, releases the latches of the operation and
+	 * empties the set. Also used to clean up after an operation that failed before or during the flush.
+	 * @param bp - the buffer pool holding the frames
+	 * @param lsn - the LSN of the log record describing the blocks, or 0 if the operation was not logged
+	 */
+	void release(BufferPool bp, long lsn){
+		for(int blockID : pinned){
+			if(lsn != 0) bp.setPageLSN(blockID, lsn);
+			bp.unpin(blockID, true);
+		}
+		unlatchAll(bp);
+		pinned.clear();
+		nodes.clear();
+		freed.clear();
+		allocated.clear();
+		numNodeWrites = 0;
+		numBlockWrites = 0;
+	}
+
+	long getNumberOfNodeWrites(){
+		return numNodeWrites;
+	}
+
+	long getNumberOfBlockWrites(){
+		return numBlockWrites;
+	}
+}